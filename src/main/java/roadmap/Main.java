@@ -1,5 +1,6 @@
 package roadmap;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
@@ -7,13 +8,16 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import roadmap.graph.CommitList;
 import roadmap.graph.Graph;
+import roadmap.graph.Horizon;
+import roadmap.graph.RefDiffPolicy;
 import roadmap.plot.Layout;
 import roadmap.plot.Plotter;
-import roadmap.ref.Ref;
 import roadmap.ref.RefFilter;
 import roadmap.ref.RefSet;
+import roadmap.ref.RefWatcher;
 import roadmap.ui.GraphPanel;
-import roadmap.util.CliApp;
+import roadmap.util.RoadmapApp;
+import roadmap.util.Workers;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
@@ -21,28 +25,42 @@ import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import java.awt.Graphics2D;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Main
-        extends CliApp {
+        extends RoadmapApp {
     public static void main(String[] args)
             throws Exception {
         exec(args, new Main());
     }
 
     @Option(
-            name = "--tags",
-            usage = "Include tags"
+            name = "--max-age",
+            usage = "Include only refs pointing to commits not older than the specified number of days",
+            metaVar = "DAYS"
     )
-    private boolean tags;
+    private int maxAge;
     @Option(
-            name = "--remotes",
-            usage = "Include remote branches"
+            name = "--history",
+            usage = "Walk only commits not older than the specified number of days",
+            metaVar = "DAYS"
     )
-    private boolean remotes;
+    private int history;
+    @Option(
+            name = "--watch",
+            usage = "Rebuild the graph whenever refs change"
+    )
+    private boolean watch;
     @Option(
             name = "-o",
             aliases = {"--output"},
@@ -50,6 +68,14 @@ public class Main
             metaVar = "OUTPUT"
     )
     private File out;
+    /** The last graph built, which is laid out again when runs are expanded. */
+    private volatile Graph graph;
+    /** Ids of commits whose runs were expanded, guarded by itself. */
+    private final Set<ObjectId> expanded = new HashSet<>();
+    /** Counts layouts, so that a slow layout never replaces a newer one. */
+    private final AtomicLong layouts = new AtomicLong();
+    /** The panel showing the graph, accessed on the event dispatch thread only. */
+    private GraphPanel panel;
 
     @Override protected void describe(PrintWriter out)
             throws Exception {
@@ -58,41 +84,94 @@ public class Main
 
     @Override protected void run(CmdLineParser parser)
             throws Exception {
+        checkOptions();
         File dir = new File(".").getAbsoluteFile();
 
         try (Repository repository = new FileRepositoryBuilder()
                 .setWorkTree(dir.getCanonicalFile())
                 .setMustExist(true)
                 .build()) {
-            try (ObjectReader objectReader = repository.newObjectReader()) {
-                run(repository, objectReader);
+            Plotter plotter = plot(repository);
+            if (out != null) {
+                saveImage(plotter, out);
+            }
+            else if (watch) {
+                CountDownLatch closed = new CountDownLatch(1);
+                showGui(plotter, closed);
+                watch(repository, closed);
+            }
+            else {
+                showGui(plotter, null);
             }
         }
     }
 
-    private void run(Repository repository, ObjectReader objectReader)
+    private Plotter plot(Repository repository)
+            throws IOException {
+        try (ObjectReader objectReader = repository.newObjectReader()) {
+            return plot(repository, objectReader);
+        }
+    }
+
+    private Plotter plot(Repository repository, ObjectReader objectReader)
             throws IOException {
         RefSet refSet = RefSet.from(repository, getRefFilter());
-        CommitList commitList = new CommitList(objectReader, refSet);
+        if (maxAge > 0) {
+            long since = System.currentTimeMillis() / 1000 - TimeUnit.DAYS.toSeconds(maxAge);
+            refSet = refSet.newerThan(objectReader, (int) since);
+        }
+        if (maxRefs > 0) {
+            refSet = refSet.mostRecent(objectReader, maxRefs);
+        }
+        CommitList commitList = new CommitList(objectReader, refSet, RefDiffPolicy.DEFAULT, getHorizon());
         Graph graph = commitList.getGraph();
-        Layout layout = new Layout(graph);
-        Plotter plotter = new Plotter(layout);
-        if (out != null) {
-            saveImage(plotter, out);
+        if (maxNodes > 0) {
+            graph = graph.coarsen(maxNodes);
         }
-        else {
-            showGui(plotter);
+        this.graph = graph;
+        return plot(graph);
+    }
+
+    private Plotter plot(Graph graph) {
+        if (compressRuns > 0) {
+            synchronized (expanded) {
+                graph = graph.compress(compressRuns, expanded);
+            }
         }
+        return new Plotter(new Layout(graph));
     }
 
-    private RefFilter getRefFilter() {
-        return new RefFilter() {
-            @Override public boolean accept(Ref ref) {
-                return ref.isLocal()
-                        || remotes && ref.isRemote()
-                        || tags && ref.isTag();
+    /** Keep the window current until it is closed, then stop watching. */
+    private void watch(Repository repository, CountDownLatch closed)
+            throws IOException, InterruptedException {
+        final RefFilter filter = getRefFilter();
+        try (RefWatcher watcher = new RefWatcher(new RefWatcher.Listener() {
+            @Override public void refsChanged(Repository db, Set<String> changed) {
+                if (!RefWatcher.affects(filter, changed)) {
+                    return;
+                }
+                try {
+                    // Counted once built, so that it replaces layouts of the old graph.
+                    Plotter plotter = plot(db);
+                    show(plotter, layouts.incrementAndGet());
+                }
+                catch (IOException ex) {
+                    // Keep showing the old graph until the next change.
+                }
             }
-        };
+        })) {
+            watcher.watch(repository);
+            closed.await();
+        }
+    }
+
+    @Override protected Horizon getHorizon() {
+        Horizon horizon = super.getHorizon();
+        if (history > 0) {
+            long since = System.currentTimeMillis() / 1000 - TimeUnit.DAYS.toSeconds(history);
+            horizon = horizon.and(Horizon.since((int) since));
+        }
+        return horizon;
     }
 
     private static void saveImage(Plotter plotter, File file)
@@ -104,15 +183,68 @@ public class Main
         ImageIO.write(image, "png", file);
     }
 
-    private static void showGui(final Plotter plotter) {
+    /**
+     * Show the graph in a window.
+     *
+     * @param plotter Plotter of the graph.
+     * @param closed  Latch counted down once the window is closed, or
+     *                {@code null} to exit the process when it is closed.
+     */
+    private void showGui(final Plotter plotter, final CountDownLatch closed) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override public void run() {
+                panel = new GraphPanel(plotter);
+                if (compressRuns > 0) {
+                    panel.setListener(new GraphPanel.Listener() {
+                        @Override public void vertexClicked(Layout.Node node) {
+                            if (node.isRun()) {
+                                synchronized (expanded) {
+                                    expanded.add(node.id);
+                                }
+                                relayout();
+                            }
+                        }
+                    });
+                }
                 JFrame frame = new JFrame("Ref Graph");
-                frame.add(new JScrollPane(new GraphPanel(plotter)));
+                frame.add(new JScrollPane(panel));
                 frame.pack();
-                frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+                if (closed != null) {
+                    // Let the caller release resources, the process ends
+                    // once the last window is disposed.
+                    frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+                    frame.addWindowListener(new WindowAdapter() {
+                        @Override public void windowClosed(WindowEvent e) {
+                            closed.countDown();
+                        }
+                    });
+                }
+                else {
+                    frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+                }
                 frame.setVisible(true);
             }
         });
     }
+
+    /** Lay the last graph out again on the worker pool, then show it. */
+    private void relayout() {
+        final long layout = layouts.incrementAndGet();
+        Workers.POOL.execute(new Runnable() {
+            @Override public void run() {
+                show(plot(graph), layout);
+            }
+        });
+    }
+
+    /** Show the plotter in the panel, unless a newer layout was started meanwhile. */
+    private void show(final Plotter plotter, final long layout) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override public void run() {
+                if (layout == layouts.get()) {
+                    panel.setPlotter(plotter);
+                }
+            }
+        });
+    }
 }
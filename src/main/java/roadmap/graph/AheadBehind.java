@@ -0,0 +1,74 @@
+package roadmap.graph;
+
+import roadmap.ref.Ref;
+
+/** Number of commits one ref is ahead of and behind another ref. */
+public final class AheadBehind {
+    private final Ref ref;
+    private final Ref base;
+    private final int ahead;
+    private final int behind;
+    private final Commit mergeBase;
+    private final boolean mergeBaseOutsideHorizon;
+
+    AheadBehind(Ref ref, Ref base, int ahead, int behind,
+                Commit mergeBase, boolean mergeBaseOutsideHorizon) {
+        this.ref = ref;
+        this.base = base;
+        this.ahead = ahead;
+        this.behind = behind;
+        this.mergeBase = mergeBase;
+        this.mergeBaseOutsideHorizon = mergeBaseOutsideHorizon;
+    }
+
+    /** @return The ref being compared. */
+    public Ref getRef() {
+        return ref;
+    }
+
+    /** @return The ref to compare with. */
+    public Ref getBase() {
+        return base;
+    }
+
+    /** @return Number of commits reachable from the ref, but not from the base. */
+    public int getAhead() {
+        return ahead;
+    }
+
+    /** @return Number of commits reachable from the base, but not from the ref. */
+    public int getBehind() {
+        return behind;
+    }
+
+    /**
+     * @return The most recent common commit in topological order,
+     * or {@code null} if the refs have unrelated histories.
+     */
+    public Commit getMergeBase() {
+        return mergeBase;
+    }
+
+    /**
+     * @return A value indicating whether both refs reach commits past
+     * the horizon of the commit list, but have no merge base within it.
+     * In this case the merge base, if any, is past the horizon, and the counts
+     * only include commits within the horizon.
+     */
+    public boolean isMergeBaseOutsideHorizon() {
+        return mergeBaseOutsideHorizon;
+    }
+
+    /** @return New instance with the ref and the base exchanged. */
+    public AheadBehind flip() {
+        return new AheadBehind(base, ref, behind, ahead, mergeBase, mergeBaseOutsideHorizon);
+    }
+
+    @Override public String toString() {
+        return "AheadBehind(" +
+                "ref=" + ref.getName() + "/" + ahead +
+                "; base=" + base.getName() + "/" + behind +
+                "; mb=" + (mergeBase != null ? mergeBase.getName()
+                : mergeBaseOutsideHorizon ? "outside" : "none") + ")";
+    }
+}
@@ -0,0 +1,250 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds commits added to and removed from many refs at once,
+ * like when a single push updates hundreds of refs.
+ *
+ * <p>Instead of calling {@link CommitDiff} for every ref update, which walks
+ * the same history over and over again, all updates share a single walk.
+ * Every walked commit carries two bit sets of update indexes: updates whose
+ * old id reaches the commit, and updates whose new id reaches the commit.
+ * The commit was added by an update if only the new id reaches it, and
+ * removed if only the old id reaches it.</p>
+ *
+ * <p>The walk goes from the most to the least recent commit, and terminates
+ * once every queued commit is reachable from old and new ids of the same
+ * updates, and is older than every changed commit, like in
+ * {@link CommitDiff}. So the cost depends on the number of changed commits,
+ * not on the number of updates. Commits are reported once the walk is over,
+ * so a commit queued again because of clock skew is reported only once, and
+ * with final bit sets.</p>
+ */
+public class BatchCommitDiff {
+    /** Update of a single ref. */
+    public static final class Update {
+        private final String ref;
+        private final ObjectId oldId;
+        private final ObjectId newId;
+
+        /**
+         * @param ref   Ref name.
+         * @param oldId Old ref id, zero id or {@code null} if ref is created.
+         * @param newId New ref id, zero id or {@code null} if ref is deleted.
+         */
+        public Update(String ref, AnyObjectId oldId, AnyObjectId newId) {
+            this.ref = ref;
+            this.oldId = oldId != null ? oldId.copy() : ObjectId.zeroId();
+            this.newId = newId != null ? newId.copy() : ObjectId.zeroId();
+        }
+
+        /** @return Ref name. */
+        public String getRef() {
+            return ref;
+        }
+
+        /** @return Old ref id, zero id if ref is created. */
+        public ObjectId getOldId() {
+            return oldId;
+        }
+
+        /** @return New ref id, zero id if ref is deleted. */
+        public ObjectId getNewId() {
+            return newId;
+        }
+
+        @Override public String toString() {
+            return "Update(" + ref + "; " + oldId.getName() + " -> " + newId.getName() + ")";
+        }
+    }
+
+    /** Receives every changed commit at most once per method. */
+    public interface Sink {
+        /**
+         * @param id      Commit id.
+         * @param updates Updates that added the commit.
+         */
+        void added(ObjectId id, List<Update> updates);
+
+        /**
+         * @param id      Commit id.
+         * @param updates Updates that removed the commit.
+         */
+        void removed(ObjectId id, List<Update> updates);
+    }
+
+    /** Walk state of a commit. */
+    private static final class State {
+        final BitSet oldIds = new BitSet();
+        final BitSet newIds = new BitSet();
+        boolean queued;
+
+        boolean isChanged() {
+            return !oldIds.equals(newIds);
+        }
+    }
+
+    private final RevWalk walk;
+
+    public BatchCommitDiff(RevWalk w) {
+        walk = w;
+    }
+
+    /**
+     * Find commits added and removed by every update.
+     *
+     * @param updates Ref updates.
+     * @param sink    Result handler.
+     * @throws IOException If I/O error occurs.
+     */
+    public void diff(List<Update> updates, Sink sink)
+            throws IOException {
+        new Walker().diff(updates, sink);
+    }
+
+    /** State of a single diff, so that diffs may be nested. */
+    private final class Walker {
+        final HashMap<RevCommit, State> states = new HashMap<>();
+        final PriorityQueue<RevCommit> queue = new PriorityQueue<>(64, CommitDiff.CMP);
+        final ArrayList<RevCommit> visited = new ArrayList<>();
+        /** Scratch bits of the child which the commit does not have yet. */
+        final BitSet delta = new BitSet();
+        /** The number of queued commits reachable from old and new ids of different updates. */
+        int pending;
+
+        void diff(List<Update> updates, Sink sink)
+                throws IOException {
+            for (int n = 0; n < updates.size(); n++) {
+                Update update = updates.get(n);
+                if (!ObjectId.zeroId().equals(update.oldId)) {
+                    BitSet bits = new BitSet();
+                    bits.set(n);
+                    paint(walk.parseCommit(update.oldId), bits, new BitSet());
+                }
+                if (!ObjectId.zeroId().equals(update.newId)) {
+                    BitSet bits = new BitSet();
+                    bits.set(n);
+                    paint(walk.parseCommit(update.newId), new BitSet(), bits);
+                }
+            }
+            int oldest = Integer.MAX_VALUE;
+            int slop = CommitDiff.OVERSCAN;
+            while (!queue.isEmpty()) {
+                if (pending == 0) {
+                    if (oldest == Integer.MAX_VALUE) {
+                        // Nothing is changed.
+                        break;
+                    }
+                    if (queue.peek().getCommitTime() < oldest) {
+                        if (slop-- == 0) {
+                            break;
+                        }
+                    }
+                    else {
+                        slop = CommitDiff.OVERSCAN;
+                    }
+                }
+                RevCommit commit = queue.poll();
+                State state = states.get(commit);
+                state.queued = false;
+                if (state.isChanged()) {
+                    pending--;
+                    oldest = Math.min(oldest, commit.getCommitTime());
+                }
+                for (RevCommit parent : commit.getParents()) {
+                    paint(parent, state.oldIds, state.newIds);
+                }
+            }
+            for (RevCommit commit : visited) {
+                State state = states.get(commit);
+                if (state.isChanged()) {
+                    BitSet added = (BitSet) state.newIds.clone();
+                    added.andNot(state.oldIds);
+                    if (!added.isEmpty()) {
+                        sink.added(commit, select(updates, added));
+                    }
+                    BitSet removed = (BitSet) state.oldIds.clone();
+                    removed.andNot(state.newIds);
+                    if (!removed.isEmpty()) {
+                        sink.removed(commit, select(updates, removed));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Merge bit sets of a child into the commit and queue it,
+         * if its bit sets have changed.
+         */
+        void paint(RevCommit commit, BitSet oldIds, BitSet newIds)
+                throws IOException {
+            State state = states.get(commit);
+            if (state == null) {
+                walk.parseHeaders(commit);
+                states.put(commit, state = new State());
+                visited.add(commit);
+            }
+            boolean changed = state.isChanged();
+            boolean grown = merge(state.oldIds, oldIds);
+            grown |= merge(state.newIds, newIds);
+            if (!grown) {
+                // Nothing new.
+                return;
+            }
+            if (state.queued) {
+                if (changed && !state.isChanged()) {
+                    pending--;
+                }
+                else if (!changed && state.isChanged()) {
+                    pending++;
+                }
+            }
+            else {
+                state.queued = true;
+                queue.add(commit);
+                if (state.isChanged()) {
+                    pending++;
+                }
+            }
+        }
+
+        /**
+         * Add bits to the target.
+         *
+         * @return A value indicating whether any of the bits is new to the target.
+         */
+        boolean merge(BitSet target, BitSet bits) {
+            delta.clear();
+            delta.or(bits);
+            delta.andNot(target);
+            if (delta.isEmpty()) {
+                return false;
+            }
+            target.or(delta);
+            return true;
+        }
+    }
+
+    private static List<Update> select(List<Update> updates, BitSet bits) {
+        if (bits.cardinality() == 1) {
+            return Collections.singletonList(updates.get(bits.nextSetBit(0)));
+        }
+        ArrayList<Update> list = new ArrayList<>(bits.cardinality());
+        for (int n = bits.nextSetBit(0); n >= 0; n = bits.nextSetBit(n + 1)) {
+            list.add(updates.get(n));
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -1,11 +1,6 @@
 package roadmap.graph;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Set;
-
-// TODO new HeadSet.Builder(nodes) should only include refs nodes, but not merge base nodes?
 
 /**
  * Beautify graph by removing extra edges between nodes.
@@ -25,14 +20,11 @@ import java.util.Set;
  *
  * <p>It seems like we implemented the algorithm for
  * <a href="http://en.wikipedia.org/wiki/Transitive_reduction">transitive reduction</a>
- * here.</p>
+ * here. A parent link is removed when the parent is reachable through
+ * another parent, which is a constant time query of the
+ * {@link ReachabilityIndex}.</p>
  */
 final class Beautifier {
-    private static final Comparator<Graph.Node> COMPARATOR = new Comparator<Graph.Node>() {
-        @Override public int compare(Graph.Node o1, Graph.Node o2) {
-            return o2.index - o1.index;
-        }
-    };
     private final Graph graph;
 
     Beautifier(Graph graph) {
@@ -43,63 +35,28 @@ final class Beautifier {
     void beautify() {
         assert graph.isConsistent();
 
-        Set<Graph.Node> nodes = graph.getNodes();
-        HeadSet.Builder hsb = new HeadSet.Builder(nodes);
-
-        ArrayList<Graph.Node> list = new ArrayList<>(nodes.size());
-        TopologicalSortIterator it = new TopologicalSortIterator(graph);
-        for (int n = 0; it.hasNext(); n++) {
-            Graph.Node node = it.next();
-            node.index = n;
-            list.add(node);
-        }
-
-        // For each parent commit...
-        for (Graph.Node node : list) {
-            // ...copy refs from its children.
-            Set<Graph.Node> children = node.getChildren();
-            if (children.isEmpty()) {
-                // This is a root node, start new heads branch.
-                HeadSet heads = new HeadSet(hsb);
-                heads.add(hsb, node);
-                node.tag(heads);
-            }
-            else if (children.size() == 1) {
-                // Borrow heads from the single child.
-                HeadSet heads = new HeadSet(hsb);
-                for (Graph.Node child : children) {
-                    heads.addAll(child.<HeadSet>tag());
-                }
-                heads.add(hsb, node);
-                node.tag(heads);
+        // Removing redundant links does not change reachability,
+        // so the same index stays valid all the way, and after.
+        ReachabilityIndex index = graph.reachability();
+        ArrayList<Graph.Node> redundant = new ArrayList<>();
+        for (Graph.Node node : graph) {
+            if (node.parentCount() < 2) {
+                continue;
             }
-            else {
-                // Combine heads from multiple children.
-                HeadSet heads = new HeadSet(hsb);
-                ArrayList<Graph.Node> l = new ArrayList<>(children);
-                Collections.sort(l, COMPARATOR);
-                for (Graph.Node child : l) {
-                    HeadSet childHeads = child.<HeadSet>tag();
-                    if (HeadSet.isMergeBase(heads, childHeads)) {
-                        heads.addAll(childHeads);
-                    }
-                    else if (heads.containsAll(childHeads)) {
-                        // Longer path leads to this node, and this node is not a merge base.
-                        // This shorter path is not interesting for us, so we remove this edge.
-                        child.unlink(node);
-                    }
-                    else {
-                        heads.addAll(childHeads);
+            for (Graph.Node parent : node.getParents()) {
+                for (Graph.Node other : node.getParents()) {
+                    if (other != parent && index.reaches(other, parent)) {
+                        // Longer path leads to this parent, and this shorter
+                        // path is not interesting for us.
+                        redundant.add(parent);
+                        break;
                     }
                 }
-                heads.add(hsb, node);
-                node.tag(heads);
             }
-        }
-
-        // Do not leave garbage behind.
-        for (Graph.Node node : list) {
-            node.tag(null);
+            for (Graph.Node parent : redundant) {
+                node.unlink(parent);
+            }
+            redundant.clear();
         }
     }
 }
@@ -1,6 +1,7 @@
 package roadmap.graph;
 
 import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -9,7 +10,12 @@ import java.util.Set;
 
 class BreadthFirstIterator
         implements Iterator<Graph.Node> {
-    private final HashSet<Graph.Node> seen = new HashSet<>();
+    /** Visited nodes of an ordinary graph. */
+    private final HashSet<Graph.Node> seen;
+    /** Visited ordinals of a frozen graph. */
+    private final BitSet visited;
+    /** The frozen graph, whose links are read by ordinal. */
+    private final Graph frozen;
     private final ArrayDeque<Graph.Node> queue = new ArrayDeque<>();
     private Graph.Node next;
 
@@ -18,8 +24,20 @@ class BreadthFirstIterator
     }
 
     BreadthFirstIterator(Set<? extends Graph.Node> roots) {
-        seen.addAll(roots);
-        queue.addAll(roots);
+        frozen = roots.isEmpty() ? null : roots.iterator().next().getFrozen();
+        if (frozen != null) {
+            seen = null;
+            visited = new BitSet(frozen.ordinals().length);
+        }
+        else {
+            seen = new HashSet<>();
+            visited = null;
+        }
+        for (Graph.Node root : roots) {
+            if (mark(root)) {
+                queue.add(root);
+            }
+        }
         next = findNext();
     }
 
@@ -38,9 +56,19 @@ class BreadthFirstIterator
 
     private Graph.Node findNext() {
         Graph.Node node = queue.poll();
-        if (node != null) {
+        if (node != null && frozen != null) {
+            Graph.Node[] ordinals = frozen.ordinals();
+            int[] parents = frozen.parentOrdinals();
+            int[] start = frozen.parentStart();
+            for (int p = start[node.index]; p < start[node.index + 1]; p++) {
+                if (mark(ordinals[parents[p]])) {
+                    queue.add(ordinals[parents[p]]);
+                }
+            }
+        }
+        else if (node != null) {
             for (Graph.Node parent : node.getParents()) {
-                if (seen.add(parent)) {
+                if (mark(parent)) {
                     queue.add(parent);
                 }
             }
@@ -48,6 +76,18 @@ class BreadthFirstIterator
         return node;
     }
 
+    /** @return {@code true} if the node was not visited before. */
+    private boolean mark(Graph.Node node) {
+        if (visited != null) {
+            if (visited.get(node.index)) {
+                return false;
+            }
+            visited.set(node.index);
+            return true;
+        }
+        return seen.add(node);
+    }
+
     @Override public void remove() {
         throw new UnsupportedOperationException();
     }
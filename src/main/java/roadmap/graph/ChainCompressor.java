@@ -0,0 +1,114 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Collapse long straight lines of nodes into single run nodes.
+ *
+ * <pre>
+ *    A   B   C   D   E
+ * <--o---o---o---o---o--<   becomes   <--o---[B..D]---o--<
+ *                                        A           E
+ * </pre>
+ *
+ * <p>A link is a chain link when the child has no other parents, and the
+ * parent has no other children. Maximal paths of chain links, which are
+ * typical for release lines with a tag on every commit, are replaced with
+ * a {@link Graph.RunNode}. Both ends of a run keep all of their other links,
+ * so the rewritten graph has the same shape, just with fewer nodes.</p>
+ *
+ * <p>The source graph is left intact. Replacements are kept in an array
+ * indexed by node ordinal, so a shared frozen graph may be compressed by
+ * several threads at once.</p>
+ */
+final class ChainCompressor {
+    private final Graph graph;
+    private final int minLength;
+    private final Set<? extends AnyObjectId> expanded;
+
+    /**
+     * @param graph     Graph to compress.
+     * @param minLength The minimum number of nodes to collapse into a run.
+     * @param expanded  Ids of nodes whose runs are to be left expanded.
+     */
+    ChainCompressor(Graph graph, int minLength, Set<? extends AnyObjectId> expanded) {
+        if (minLength < 2) {
+            throw new IllegalArgumentException("minLength: " + minLength);
+        }
+        this.graph = graph.snapshot();
+        this.minLength = minLength;
+        this.expanded = expanded;
+    }
+
+    Graph compress() {
+        Graph.Node[] order = graph.ordinals();
+        Graph.Node[] replacements = new Graph.Node[order.length];
+        // Children come first, so every chain is found from its head,
+        // and all of its nodes are mapped to their replacement.
+        ArrayList<Graph.Node> members = new ArrayList<>();
+        for (Graph.Node node : order) {
+            if (replacements[node.index] != null) {
+                continue;
+            }
+            Graph.Node next = node;
+            while (next != null) {
+                members.add(next);
+                next = chainParent(next);
+            }
+            if (members.size() >= minLength && !anyExpanded(members)) {
+                Graph.RunNode run = new Graph.RunNode(members);
+                for (Graph.Node member : members) {
+                    replacements[member.index] = run;
+                }
+            }
+            else {
+                for (Graph.Node member : members) {
+                    replacements[member.index] = member.duplicate();
+                }
+            }
+            members.clear();
+        }
+        int[] parents = graph.parentOrdinals();
+        int[] start = graph.parentStart();
+        for (int n = 0; n < order.length; n++) {
+            Graph.Node copy = replacements[n];
+            for (int p = start[n]; p < start[n + 1]; p++) {
+                Graph.Node target = replacements[parents[p]];
+                if (target != copy) {
+                    copy.link(target);
+                }
+            }
+        }
+        NodeSet roots = new NodeSet();
+        for (Graph.Node root : graph.getRoots()) {
+            roots.add(replacements[root.index]);
+        }
+        return new Graph(graph.getRefs(), roots, graph.getRefDiffs()).freeze();
+    }
+
+    /** @return The next node of the chain, or {@code null} if the chain ends here. */
+    private Graph.Node chainParent(Graph.Node node) {
+        if (node.parentCount() != 1) {
+            return null;
+        }
+        Graph.Node parent = graph.ordinals()[graph.parentOrdinals()[graph.parentStart()[node.index]]];
+        if (parent.childCount() != 1) {
+            return null;
+        }
+        return parent;
+    }
+
+    private boolean anyExpanded(ArrayList<Graph.Node> members) {
+        if (!expanded.isEmpty()) {
+            for (Graph.Node member : members) {
+                if (expanded.contains(member)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,222 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import roadmap.ref.Ref;
+import roadmap.ref.RefDiff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coarsen graph down to the specified number of nodes.
+ *
+ * <p>Nodes are picked in rounds until the budget is spent, and the rest of
+ * the nodes are contracted away, so ancestry of the picked nodes is kept.
+ * Every partition, which is a weakly connected component, first gets its
+ * most recent node, so old partitions fold into a single node before they
+ * disappear. Then ref nodes are grouped by namespace, which is the ref name
+ * without the trailing version, like <em>refs/tags/nightly-</em>, and every
+ * round picks the next most recent node of every namespace, so a namespace
+ * with thousands of tags does not crowd out a few branches. Nodes without
+ * refs, which are merge bases, form a group of their own picked last in
+ * every round, the most connected ones first.</p>
+ *
+ * <p>Namespaces and the merge base group only decide which nodes are kept,
+ * they are not folded into nodes of their own. Nodes left out are contracted
+ * away like any other, and their refs are no longer shown, since the graph
+ * has no node kind for a set of unrelated commits: {@link Graph.RunNode}
+ * stands for a straight line of history, and its vertex expands back into
+ * that line. The most recent nodes of every namespace stay, so every
+ * namespace with a node in the budget stays visible.</p>
+ *
+ * <p>Nodes are more recent when they have a later commit time, which nodes
+ * of commit list and merged graphs carry over from the commit walk. Among
+ * nodes with the same time, like nodes of synthetic graphs which have no
+ * times at all, those earlier in topological order, closer to the tips,
+ * are more recent.</p>
+ */
+final class Coarsener {
+    /** The graph to coarsen, as given. */
+    private final Graph source;
+    /** The same graph frozen, so nodes are numbered in topological order. */
+    private final Graph graph;
+    private final ReachabilityIndex index;
+
+    Coarsener(Graph graph) {
+        source = graph;
+        this.graph = graph.snapshot();
+        index = this.graph.reachability();
+    }
+
+    /**
+     * @param maxNodes The maximum number of nodes, at least one.
+     * @return Frozen coarse graph, or the same graph if it fits the budget already.
+     */
+    Graph coarsen(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("maxNodes: " + maxNodes);
+        }
+        if (index.size() <= maxNodes) {
+            return source;
+        }
+        final BitSet selected = select(maxNodes);
+        NodeSet roots = new Rewriter(graph) {
+            @Override protected boolean interesting(Graph.Node node) {
+                return selected.get(node.index);
+            }
+        }.rewrite();
+        HashSet<RefDiff> diffs = new HashSet<>();
+        for (RefDiff diff : graph.getRefDiffs()) {
+            if (isSelected(selected, diff.getA()) && isSelected(selected, diff.getB())) {
+                diffs.add(diff);
+            }
+        }
+        Graph coarse = new Graph(graph.getRefs(), roots, diffs);
+        new Beautifier(coarse).beautify();
+        return coarse.freeze();
+    }
+
+    /**
+     * @param minNodes The number of nodes to stop at.
+     * @return This graph followed by coarse graphs each about half the size
+     * of the previous one, the last one has no more than the specified
+     * number of nodes.
+     */
+    List<Graph> hierarchy(int minNodes) {
+        if (minNodes < 1) {
+            throw new IllegalArgumentException("minNodes: " + minNodes);
+        }
+        ArrayList<Graph> levels = new ArrayList<>();
+        Graph level = source;
+        levels.add(level);
+        while (level.getNodes().size() > minNodes) {
+            level = level.coarsen(Math.max(minNodes, level.getNodes().size() / 2));
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private boolean isSelected(BitSet selected, AnyObjectId id) {
+        return graph.contains(id) && selected.get(graph.node(id).index);
+    }
+
+    private BitSet select(int maxNodes) {
+        ArrayList<Graph.Node> nodes = new ArrayList<>(graph.getNodes());
+        Collections.sort(nodes, BY_RECENCY);
+
+        BitSet selected = new BitSet(nodes.size());
+        int count = 0;
+        // The most recent node of every partition.
+        BitSet components = new BitSet();
+        for (Graph.Node node : nodes) {
+            if (count == maxNodes) {
+                return selected;
+            }
+            int component = index.component(node);
+            if (!components.get(component)) {
+                components.set(component);
+                selected.set(node.index);
+                count++;
+            }
+        }
+
+        // Then round robin over namespaces, nodes which do not make it
+        // into the budget are dropped rather than folded.
+        LinkedHashMap<String, ArrayDeque<Graph.Node>> groups = new LinkedHashMap<>();
+        ArrayList<Graph.Node> mergeBases = new ArrayList<>();
+        for (Graph.Node node : nodes) {
+            if (selected.get(node.index)) {
+                continue;
+            }
+            String namespace = namespace(graph.getRefs().byId(node));
+            if (namespace == null) {
+                mergeBases.add(node);
+                continue;
+            }
+            ArrayDeque<Graph.Node> group = groups.get(namespace);
+            if (group == null) {
+                groups.put(namespace, group = new ArrayDeque<>());
+            }
+            group.add(node);
+        }
+        Collections.sort(mergeBases, BY_DEGREE);
+        ArrayList<ArrayDeque<Graph.Node>> rounds = new ArrayList<>(groups.values());
+        rounds.add(new ArrayDeque<>(mergeBases));
+        while (count < maxNodes) {
+            boolean any = false;
+            for (ArrayDeque<Graph.Node> group : rounds) {
+                Graph.Node node = group.poll();
+                if (node != null) {
+                    any = true;
+                    selected.set(node.index);
+                    if (++count == maxNodes) {
+                        break;
+                    }
+                }
+            }
+            if (!any) {
+                break;
+            }
+        }
+        return selected;
+    }
+
+    /** @return Namespace of the branch or the first ref, or {@code null} if there are no refs. */
+    private static String namespace(Set<Ref> refs) {
+        Ref first = null;
+        for (Ref ref : refs) {
+            if (ref.isBranch()) {
+                return namespace(ref.getName());
+            }
+            if (first == null) {
+                first = ref;
+            }
+        }
+        return first != null ? namespace(first.getName()) : null;
+    }
+
+    /**
+     * @param name Ref name.
+     * @return Ref name up to the first digit of the last path component,
+     * so <em>refs/tags/v1.2</em> is in <em>refs/tags/v</em>.
+     */
+    static String namespace(String name) {
+        int n = name.lastIndexOf('/') + 1;
+        while (n < name.length() && !Character.isDigit(name.charAt(n))) {
+            n++;
+        }
+        return name.substring(0, n);
+    }
+
+    private static final Comparator<Graph.Node> BY_RECENCY =
+            new Comparator<Graph.Node>() {
+                @Override public int compare(Graph.Node a, Graph.Node b) {
+                    int r = Integer.compare(b.getCommitTime(), a.getCommitTime());
+                    if (r == 0) {
+                        r = Integer.compare(a.index, b.index);
+                    }
+                    return r;
+                }
+            };
+    private static final Comparator<Graph.Node> BY_DEGREE =
+            new Comparator<Graph.Node>() {
+                @Override public int compare(Graph.Node a, Graph.Node b) {
+                    int r = Integer.compare(degree(b), degree(a));
+                    if (r == 0) {
+                        r = BY_RECENCY.compare(a, b);
+                    }
+                    return r;
+                }
+            };
+
+    private static int degree(Graph.Node node) {
+        return node.parentCount() + node.childCount();
+    }
+}
@@ -16,6 +16,7 @@ import java.util.Set;
 public class Commit
         extends ObjectId {
     private final ObjectId treeId;
+    private final int commitTime;
     private int index;
     private Object child;
     private Object parent;
@@ -23,18 +24,20 @@ public class Commit
     private HeadSet heads;
 
     protected Commit(RevCommit commit) {
-        this(commit, commit.getTree());
+        this(commit, commit.getTree(), commit.getCommitTime());
     }
 
-    protected Commit(AnyObjectId id, AnyObjectId treeId) {
+    protected Commit(AnyObjectId id, AnyObjectId treeId, int commitTime) {
         super(id);
         this.treeId = treeId.copy();
+        this.commitTime = commitTime;
         refs = Collections.emptySet();
     }
 
     protected Commit(Commit commit) {
         super(commit);
         treeId = commit.treeId;
+        commitTime = commit.commitTime;
         index = commit.index;
         child = commit.child;
         parent = commit.parent;
@@ -46,6 +49,11 @@ public class Commit
         return treeId;
     }
 
+    /** @return Committer time in seconds since the epoch. */
+    public final int getCommitTime() {
+        return commitTime;
+    }
+
     void setIndex(int index) {
         this.index = index;
     }
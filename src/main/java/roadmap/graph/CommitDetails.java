@@ -18,7 +18,7 @@ public class CommitDetails
 
     CommitDetails(RevCommit commit,
                   String message, PersonIdent author, PersonIdent committer) {
-        super(commit, commit.getTree());
+        super(commit);
         this.message = message;
         this.author = author;
         this.committer = committer;
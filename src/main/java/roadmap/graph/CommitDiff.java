@@ -2,12 +2,15 @@ package roadmap.graph;
 
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevFlagSet;
 import org.eclipse.jgit.revwalk.RevWalk;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 public class CommitDiff {
     public interface Sink {
@@ -16,6 +19,18 @@ public class CommitDiff {
         void removed(ObjectId id);
     }
 
+    /** Orders commits from the most to the least recent. */
+    static final Comparator<RevCommit> CMP = new Comparator<RevCommit>() {
+        @Override public int compare(RevCommit o1, RevCommit o2) {
+            return Integer.compare(o2.getCommitTime(), o1.getCommitTime());
+        }
+    };
+    /**
+     * The number of common commits to walk past the point where they can
+     * no longer reach commits reachable from one side only, in case commit
+     * times are skewed, like git does.
+     */
+    static final int OVERSCAN = 5;
     private final RevWalk walk;
 
     public CommitDiff(RevWalk w) {
@@ -38,10 +53,20 @@ public class CommitDiff {
      * <li>Otherwise algorithm works as follow: The added commits is the difference
      * {@code y - x}, and removed commits is the difference {@code x - y}.</li>
      * </ul>
-     * <p>The algorithm thrives to build as small sets as possible, excluding any common
-     * commits between two. It does so by iterating two graphs in parallel, terminating
-     * as soon as overlap is found. So, if tho graphs are very large, but share majority
-     * of commits, then only small subsets of unique commits will be kept.</p>
+     * <p>The algorithm paints commits with two flags, one for every side, walking
+     * from the most to the least recent commit. A commit is queued again whenever
+     * its flags change, so a commit met before its child, because of clock skew,
+     * still gets all flags of the child.</p>
+     *
+     * <p>The walk goes on while any queued commit is reachable from one side
+     * only, and then while queued common commits are not older than the oldest
+     * one-sided commit, since they may still reach it. A one-sided commit is
+     * reported to the sink as soon as {@link #OVERSCAN} more commits are walked
+     * past it, and every queued commit is older than it, so it can no longer get
+     * the flag of the other side unless commit times are skewed by more than
+     * that. The rest is reported once the walk is over. The result is as exact
+     * as what git does with the same slop, and the cost is linear in the number
+     * of walked commits.</p>
      *
      * @param a    First root commit.
      * @param b    Second root commit.
@@ -49,98 +74,166 @@ public class CommitDiff {
      */
     public void diff(ObjectId a, ObjectId b, Sink sink)
             throws IOException {
-        HashSet<RevCommit> sa = new HashSet<>();
-        HashSet<RevCommit> sb = new HashSet<>();
-        ArrayDeque<RevCommit> qa = new ArrayDeque<>();
-        ArrayDeque<RevCommit> qb = new ArrayDeque<>();
-        RevCommit ca;
-        RevCommit cb;
-        // Seed iteration on side A.
-        if (a != null && !ObjectId.zeroId().equals(a)) {
-            ca = walk.parseCommit(a);
-            sa.add(ca);
-            qa.add(ca);
-        }
-        // Seed iteration on side B.
-        if (b != null && !ObjectId.zeroId().equals(b)) {
-            cb = walk.parseCommit(b);
-            sb.add(cb);
-            qb.add(cb);
+        new Walker().diff(a, b, sink);
+    }
+
+    /** State of a single diff, so that diffs may be nested. */
+    private final class Walker {
+        final RevFlag sideA = walk.newFlag("CommitDiff.A");
+        final RevFlag sideB = walk.newFlag("CommitDiff.B");
+        final RevFlag queued = walk.newFlag("CommitDiff.Queued");
+        final RevFlagSet both = new RevFlagSet();
+        final PriorityQueue<RevCommit> queue = new PriorityQueue<>(64, CMP);
+        final ArrayList<RevCommit> visited = new ArrayList<>();
+        /** One-sided commits to report, in the order they were walked. */
+        final ArrayList<RevCommit> reports = new ArrayList<>();
+        /** The number of walked commits at the time each report was walked. */
+        int[] walkedAt = new int[64];
+        /** The index of the first report not sent to the sink yet. */
+        int reported;
+        /** The number of walked commits. */
+        int walked;
+        /** The number of queued commits which are not reachable from both roots yet. */
+        int pending;
+
+        Walker() {
+            both.add(sideA);
+            both.add(sideB);
         }
-        while (true) {
-            // Iterate two sides in parallel.
-            ca = qa.poll();
-            if (ca != null) {
-                walk.parseBody(ca);
-                int count = ca.getParentCount();
-                for (int n = 0; n < count; n++) {
-                    RevCommit parent = ca.getParent(n);
-                    if (sa.add(parent)) {
-                        qa.add(parent);
+
+        void diff(ObjectId a, ObjectId b, Sink sink)
+                throws IOException {
+            try {
+                // Seed iteration on side A.
+                if (a != null && !ObjectId.zeroId().equals(a)) {
+                    paint(walk.parseCommit(a), sideA);
+                }
+                // Seed iteration on side B.
+                if (b != null && !ObjectId.zeroId().equals(b)) {
+                    paint(walk.parseCommit(b), sideB);
+                }
+                int oldest = Integer.MAX_VALUE;
+                int slop = OVERSCAN;
+                while (!queue.isEmpty()) {
+                    if (pending == 0) {
+                        if (oldest == Integer.MAX_VALUE) {
+                            // Nothing is reachable from one side only.
+                            break;
+                        }
+                        if (queue.peek().getCommitTime() < oldest) {
+                            if (slop-- == 0) {
+                                break;
+                            }
+                        }
+                        else {
+                            slop = OVERSCAN;
+                        }
+                    }
+                    RevCommit commit = queue.poll();
+                    commit.remove(queued);
+                    walked++;
+                    if (commit.hasAll(both)) {
+                        for (RevCommit parent : commit.getParents()) {
+                            paint(parent, both);
+                        }
                     }
+                    else {
+                        pending--;
+                        oldest = Math.min(oldest, commit.getCommitTime());
+                        RevFlag side = commit.has(sideA) ? sideA : sideB;
+                        for (RevCommit parent : commit.getParents()) {
+                            paint(parent, side);
+                        }
+                        report(commit);
+                    }
+                    flush(sink, false);
                 }
+                flush(sink, true);
             }
-            cb = qb.poll();
-            if (cb != null) {
-                walk.parseBody(cb);
-                int count = cb.getParentCount();
-                for (int n = 0; n < count; n++) {
-                    RevCommit parent = cb.getParent(n);
-                    if (sb.add(parent)) {
-                        qb.add(parent);
-                    }
+            finally {
+                for (RevCommit commit : visited) {
+                    commit.remove(both);
+                    commit.remove(queued);
                 }
+                walk.disposeFlag(sideA);
+                walk.disposeFlag(sideB);
+                walk.disposeFlag(queued);
             }
-            // Check if both sides are done iterating.
-            if (ca == null && cb == null) {
-                break;
+        }
+
+        /** Remember the one-sided commit just walked to report it later. */
+        void report(RevCommit commit) {
+            int n = reports.size();
+            if (n == walkedAt.length) {
+                walkedAt = Arrays.copyOf(walkedAt, n * 2);
             }
-            if (sb.containsAll(qa) && sa.containsAll(qb)) {
-                // Side A is going to iterate commits that have already been
-                // seen on side B, and vice versa, side B is going to iterate
-                // commits that have already been seed on side A.
-                for (RevCommit commit : qa) {
-                    prune(commit, sb);
-                    sa.remove(commit);
+            walkedAt[n] = walked;
+            reports.add(commit);
+        }
+
+        /**
+         * Send reports to the sink, in the order commits were walked.
+         *
+         * @param sink Result handler.
+         * @param all  Whether the walk is over, and all flags are final.
+         */
+        void flush(Sink sink, boolean all) {
+            while (reported < reports.size()) {
+                RevCommit commit = reports.get(reported);
+                if (!all && (walked - walkedAt[reported] <= OVERSCAN
+                        || !queue.isEmpty() && queue.peek().getCommitTime() >= commit.getCommitTime())) {
+                    return;
                 }
-                for (RevCommit commit : qb) {
-                    prune(commit, sa);
-                    sb.remove(commit);
+                reports.set(reported++, null);
+                // A commit may have become common since it was walked.
+                if (!commit.hasAll(both)) {
+                    if (commit.has(sideA)) {
+                        sink.removed(commit);
+                    }
+                    else {
+                        sink.added(commit);
+                    }
                 }
-                break;
             }
         }
-        // Generate result for removed commits.
-        for (RevCommit commit : sa) {
-            if (!sb.contains(commit)) {
-                sink.removed(commit);
-            }
-        }
-        // Generate result for added commits.
-        for (RevCommit commit : sb) {
-            if (!sa.contains(commit)) {
-                sink.added(commit);
+
+        void paint(RevCommit commit, RevFlag flag)
+                throws IOException {
+            if (!commit.has(flag)) {
+                RevFlagSet flags = new RevFlagSet();
+                flags.add(flag);
+                paint(commit, flags);
             }
         }
-    }
 
-    /**
-     * Remove all (grand-)parents of the specified commit in the specified seen
-     * set and queue on the other side of iteration.
-     *
-     * @param commit The commit whose (grand-)parents to prune from the other side.
-     * @param seen   The other side seen set to prune.
-     */
-    private void prune(RevCommit commit, Set<RevCommit> seen)
-            throws IOException {
-        ArrayDeque<RevCommit> queue = new ArrayDeque<>();
-        queue.add(commit);
-        while ((commit = queue.poll()) != null) {
-            if (seen.remove(commit)) {
-                walk.parseBody(commit);
-                int count = commit.getParentCount();
-                for (int n = 0; n < count; n++) {
-                    queue.add(commit.getParent(n));
+        /**
+         * Add flags to the commit and queue it, if the flags have changed.
+         *
+         * @param commit The commit to paint.
+         * @param flags  Flags of the commit child.
+         */
+        void paint(RevCommit commit, RevFlagSet flags)
+                throws IOException {
+            if (commit.hasAll(flags)) {
+                return;
+            }
+            walk.parseHeaders(commit);
+            boolean seen = commit.hasAny(both);
+            boolean common = commit.hasAll(both);
+            commit.add(flags);
+            if (!seen) {
+                visited.add(commit);
+            }
+            if (commit.has(queued)) {
+                if (!common && commit.hasAll(both)) {
+                    pending--;
+                }
+            }
+            else {
+                commit.add(queued);
+                queue.add(commit);
+                if (!commit.hasAll(both)) {
+                    pending++;
                 }
             }
         }
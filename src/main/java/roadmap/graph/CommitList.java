@@ -2,6 +2,7 @@ package roadmap.graph;
 
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.StopWalkException;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
@@ -9,26 +10,33 @@ import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.util.RawParseUtils;
 import roadmap.ref.Ref;
 import roadmap.ref.RefDiff;
+import roadmap.ref.RefFilter;
 import roadmap.ref.RefSet;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Immutable list of all repository commits sorted in topological order.
@@ -92,6 +100,8 @@ public class CommitList
             extends org.eclipse.jgit.revwalk.RevCommit {
         private Commit commit;
         private Object child;
+        /** Whether this commit is within the horizon. */
+        private boolean walked;
 
         RevCommit(AnyObjectId id) {
             super(id);
@@ -100,6 +110,7 @@ public class CommitList
         @Override public void reset() {
             super.reset();
             commit = null;
+            walked = false;
         }
 
         void addChild(RevCommit child) {
@@ -141,7 +152,7 @@ public class CommitList
 
         Commit getCommit() {
             if (commit == null) {
-                commit = new Commit(this, getTree());
+                commit = new Commit(this);
             }
             return commit;
         }
@@ -169,6 +180,53 @@ public class CommitList
         }
     }
 
+    /**
+     * Excludes commits past the horizon, except ref tips.
+     *
+     * <p>Commits come to the filter in commit time order, so once a commit
+     * is past the horizon, all the following commits are past the horizon
+     * too, barring clock skew. The walk stops there, but only after every
+     * ref tip was seen.</p>
+     */
+    private static class HorizonFilter
+            extends RevFilter {
+        private final Horizon horizon;
+        private final Set<ObjectId> tips;
+        private final HashSet<ObjectId> pending;
+        private int depth;
+
+        HorizonFilter(Horizon horizon, Set<ObjectId> tips) {
+            this.horizon = horizon;
+            this.tips = tips;
+            pending = new HashSet<>(tips);
+        }
+
+        @Override public boolean include(org.eclipse.jgit.revwalk.RevWalk walker,
+                                         org.eclipse.jgit.revwalk.RevCommit c)
+                throws StopWalkException {
+            boolean tip = pending.remove(c);
+            if (depth < horizon.depth && c.getCommitTime() >= horizon.since) {
+                depth++;
+                return true;
+            }
+            if (tip) {
+                return true;
+            }
+            if (pending.isEmpty()) {
+                throw StopWalkException.INSTANCE;
+            }
+            return false;
+        }
+
+        @Override public boolean requiresCommitBody() {
+            return false;
+        }
+
+        @Override public RevFilter clone() {
+            return new HorizonFilter(horizon, tips);
+        }
+    }
+
     /** Mutable structure that assists in making immutable commit list. */
     private static class CommitListBuilder {
         private static final int DIR_SIZE = 32;
@@ -378,51 +436,6 @@ public class CommitList
         }
     }
 
-    /** Prevents overflowing with ref diff pairs when there are too many refs. */
-    private class RefDiffSink
-            extends HashSet<RefDiff>
-            implements RefDiff.Sink {
-        /**
-         * Empirical study suggests that the application and web UI handles
-         * repositories of order of ~100 refs quite well. This amounts to
-         * roughly 100^2 = 10000 ref diff pairs. So we set upper threshold
-         * roughly the same.
-         */
-        static final int THRESHOLD = 150;
-        /** Only include ref pair if any one of its commits is interesting. */
-        final HashSet<ObjectId> interesting = new HashSet<>();
-
-        RefDiffSink(RefSet refs) {
-            // All heads from a repository.
-            HashSet<Commit> heads = new HashSet<>();
-            for (Ref ref : refs.all()) {
-                heads.add(map(ref.getId()));
-            }
-            add(heads);
-        }
-
-        void add(HashSet<Commit> refs) {
-            ArrayList<Commit> list = new ArrayList<>(refs);
-            Collections.sort(list, CMP);
-            for (Commit commit : list) {
-                if (interesting.size() < THRESHOLD) {
-                    interesting.add(commit);
-                }
-                else {
-                    break;
-                }
-            }
-        }
-
-        @Override public void add(AnyObjectId mergeBase,
-                                  AnyObjectId a, int commitsA,
-                                  AnyObjectId b, int commitsB) {
-            if (interesting.contains(a) && interesting.contains(b)) {
-                add(new RefDiff(mergeBase, a, commitsA, b, commitsB));
-            }
-        }
-    }
-
     /** Sorts commits in order from most to least recent. */
     static final Comparator<Commit> CMP = new Comparator<Commit>() {
         @Override public int compare(Commit o1, Commit o2) {
@@ -432,44 +445,118 @@ public class CommitList
     private static final int BLOCK_BITS = 10;
     private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
     private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    /** The maximum number of cached filtered graphs. */
+    private static final int MAX_VIEWS = 8;
     private final RefSet refs;
+    private final Horizon horizon;
     private final Commit[][] list;
     private final Commit[][] hashTable;
     private final int size;
+    /** Indexes of commits with parents past the horizon. */
+    private final BitSet boundary;
     private final HeadSet.Builder hsb;
     private final Graph graph;
+    /**
+     * Memoized ahead and behind counts keyed by a pair of head indexes,
+     * values are arrays of ahead count, behind count, merge base index
+     * and bits telling whether the ref and the base reach boundary commits.
+     */
+    private final ConcurrentHashMap<Long, int[]> aheadBehind = new ConcurrentHashMap<>();
+    /** Graphs of filtered refs, the least recently used first. */
+    private final LinkedHashMap<RefFilter, Graph> views = new LinkedHashMap<RefFilter, Graph>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<RefFilter, Graph> eldest) {
+            return size() > MAX_VIEWS;
+        }
+    };
 
     public CommitList(ObjectReader reader, RefSet r)
             throws IOException {
+        this(reader, r, RefDiffPolicy.DEFAULT);
+    }
+
+    /**
+     * Make commit list of all commits reachable from the specified refs.
+     *
+     * @param reader Object reader to load commits.
+     * @param r      Set of refs to start from.
+     * @param policy Decides which ref diff pairs to keep.
+     * @throws IOException If I/O error occurs.
+     */
+    public CommitList(ObjectReader reader, RefSet r, RefDiffPolicy policy)
+            throws IOException {
+        this(reader, r, policy, Horizon.NONE);
+    }
+
+    /**
+     * Make commit list of commits reachable from the specified refs
+     * within the specified horizon.
+     *
+     * <p>Commits with parents past the horizon become boundary commits.
+     * Merge bases and ahead and behind counts are computed only from
+     * the commits within the horizon.</p>
+     *
+     * @param reader  Object reader to load commits.
+     * @param r       Set of refs to start from.
+     * @param policy  Decides which ref diff pairs to keep.
+     * @param horizon Decides how deep into history to walk.
+     * @throws IOException If I/O error occurs.
+     */
+    public CommitList(ObjectReader reader, RefSet r, RefDiffPolicy policy, Horizon horizon)
+            throws IOException {
         refs = r;
+        this.horizon = horizon;
 
         Set<ObjectId> tips = refs.roots();
 
         RevWalk revWalk = new RevWalk(reader);
         revWalk.setRetainBody(false);
         revWalk.sort(RevSort.TOPO);
+        if (horizon.isBounded()) {
+            revWalk.setRevFilter(new HorizonFilter(horizon, tips));
+        }
         for (AnyObjectId id : tips) {
             revWalk.markStart(revWalk.parseCommit(id));
         }
 
         CommitListBuilder b = new CommitListBuilder();
+        boundary = new BitSet();
 
         try {
-            // Weave the graph of commits, store commits in the list
-            // sorted in topological order.
+            // Topological sort buffers all commits anyway, so collect them
+            // first to know which parents are within the horizon.
+            ArrayList<RevCommit> walked = new ArrayList<>();
             for (org.eclipse.jgit.revwalk.RevCommit tmp : revWalk) {
                 RevCommit rc = (RevCommit) tmp;
+                rc.walked = true;
+                walked.add(rc);
+            }
+            checkInterrupted();
 
+            // Weave the graph of commits, store commits in the list
+            // sorted in topological order.
+            for (RevCommit rc : walked) {
+                if ((b.getSize() & BLOCK_MASK) == 0) {
+                    checkInterrupted();
+                }
                 // Setup children of this rev commit.
                 for (int n = 0; n < rc.getParentCount(); n++) {
-                    ((RevCommit) rc.getParent(n)).addChild(rc);
+                    RevCommit parent = (RevCommit) rc.getParent(n);
+                    if (parent.walked) {
+                        parent.addChild(rc);
+                    }
                 }
 
                 // Create commit from rev object.
                 Commit commit = rc.getCommit();
                 commit.setIndex(b.getSize());
                 for (int n = 0; n < rc.getParentCount(); n++) {
-                    commit.addParent(((RevCommit) rc.getParent(n)).getCommit());
+                    RevCommit parent = (RevCommit) rc.getParent(n);
+                    if (parent.walked) {
+                        commit.addParent(parent.getCommit());
+                    }
+                    else {
+                        boundary.set(commit.getIndex());
+                    }
                 }
                 for (int n = 0; n < rc.getChildCount(); n++) {
                     commit.addChild(rc.getChild(n).getCommit());
@@ -487,21 +574,33 @@ public class CommitList
         size = b.getSize();
         hsb = new HeadSet.Builder(tips);
         HashSet<ObjectId> mergeBases = new HashSet<>();
-        RefDiffSink diffs = new RefDiffSink(refs);
-        init(mergeBases, diffs);
-        graph = buildGraph(mergeBases, diffs);
+        RefDiffStore diffs = new RefDiffStore(this, hsb, policy);
+        try {
+            init(mergeBases, diffs);
+        }
+        finally {
+            diffs.seal();
+        }
+        graph = buildGraph(mergeBases, diffs.asSet());
     }
 
     private CommitList(RefSet refs, CommitListBuilder b) {
         this.refs = refs;
+        horizon = Horizon.NONE;
+        boundary = new BitSet();
         list = b.getList();
         hashTable = b.getHashTable();
         size = b.getSize();
         hsb = new HeadSet.Builder(refs.roots());
         HashSet<ObjectId> mergeBases = new HashSet<>();
-        RefDiffSink diffs = new RefDiffSink(refs);
-        init(mergeBases, diffs);
-        graph = buildGraph(mergeBases, diffs);
+        RefDiffStore diffs = new RefDiffStore(this, hsb, RefDiffPolicy.DEFAULT);
+        try {
+            init(mergeBases, diffs);
+        }
+        finally {
+            diffs.seal();
+        }
+        graph = buildGraph(mergeBases, diffs.asSet());
     }
 
     /** @return Make ref graph from the current list of commits and refs. */
@@ -510,7 +609,7 @@ public class CommitList
         buildGraph(mergeBases, roots);
         Graph graph = new Graph(refs, roots, diffs);
         new Beautifier(graph).beautify();
-        return graph;
+        return graph.freeze();
     }
 
     /** For every commit find set of refs this commit is reachable from. */
@@ -547,10 +646,10 @@ public class CommitList
 
             Set<Ref> refs = commit.getRefs();
             if (!refs.isEmpty()) {
+                // Every child head reaches this ref commit, report each one
+                // only once even if it is reachable through many children.
+                hsb.asMergeBase(diffs, commit, heads);
                 heads = heads.addRefs(hsb, refs);
-                for (HeadSet tmp : hsc) {
-                    hsb.asMergeBase(diffs, commit, tmp);
-                }
                 mergeBase = true;
             }
 
@@ -614,6 +713,20 @@ public class CommitList
         return refs;
     }
 
+    /** @return The horizon this list was built within. */
+    public Horizon getHorizon() {
+        return horizon;
+    }
+
+    /**
+     * @param commit A commit from this list.
+     * @return A value indicating whether the commit has parents
+     * past the horizon, which are missing from this list.
+     */
+    public boolean isBoundary(Commit commit) {
+        return boundary.get(commit.getIndex());
+    }
+
     /** @return A value indicating whether the list is empty. */
     public boolean isEmpty() {
         return size == 0;
@@ -701,6 +814,86 @@ public class CommitList
         return graph;
     }
 
+    /**
+     * Get graph of only those refs which are accepted by the filter.
+     *
+     * <p>This is what {@link Graph#copy(RefFilter)} makes, but nothing is
+     * recomputed from commits. Nodes of the filtered graph are a subset of
+     * nodes of the full graph, they are either commits with accepted refs,
+     * or merge bases of accepted refs. The latter are found by restricting
+     * head sets of children of each node to accepted heads. The full graph
+     * is then contracted to the selected nodes. So the cost depends on
+     * the size of the ref graph, not on the number of commits.</p>
+     *
+     * <p>Graphs are cached per filter, so switching back and forth between
+     * a few views of the same list is cheap. Filters are compared with
+     * {@code equals}, so the same filter instance should be reused.</p>
+     *
+     * @param filter Selects refs to show.
+     * @return Graph of the accepted refs and their merge bases.
+     */
+    public synchronized Graph graphFor(RefFilter filter) {
+        if (filter == RefFilter.ANY) {
+            return graph;
+        }
+        Graph view = views.get(filter);
+        if (view == null) {
+            views.put(filter, view = project(filter));
+        }
+        return view;
+    }
+
+    private Graph project(RefFilter filter) {
+        // Heads of accepted refs.
+        HeadSet mask = new HeadSet(hsb);
+        for (Ref ref : refs.all()) {
+            if (filter.accept(ref)) {
+                mask.add(hsb, ref.getId());
+            }
+        }
+        // The full graph is frozen, so nodes are keyed by ordinals.
+        final BitSet selected = new BitSet(graph.getNodes().size());
+        for (Graph.Node node : graph) {
+            int head = hsb.indexOf(node);
+            if (head >= 0 && mask.contains(head) || isMergeBase(map(node), mask)) {
+                selected.set(node.index);
+            }
+        }
+        NodeSet roots = new Rewriter(graph) {
+            @Override protected boolean interesting(Graph.Node node) {
+                return selected.get(node.index);
+            }
+        }.rewrite();
+        HashSet<RefDiff> diffs = new HashSet<>();
+        for (RefDiff diff : graph.getRefDiffs()) {
+            if (mask.contains(hsb.indexOf(diff.getA())) && mask.contains(hsb.indexOf(diff.getB()))) {
+                diffs.add(diff);
+            }
+        }
+        Graph view = new Graph(refs, roots, diffs);
+        new Beautifier(view).beautify();
+        return view.freeze();
+    }
+
+    /** @return Whether the commit is a merge base of the heads in the mask. */
+    private static boolean isMergeBase(Commit commit, HeadSet mask) {
+        HeadSetCollection hsc = new HeadSetCollection(commit);
+        if (hsc.size() < 2) {
+            return false;
+        }
+        HeadSet heads = new HeadSet(hsc.get(0));
+        heads.retainAll(mask);
+        for (int n = 1; n < hsc.size(); n++) {
+            HeadSet tmp = new HeadSet(hsc.get(n));
+            tmp.retainAll(mask);
+            if (HeadSet.isMergeBase(heads, tmp)) {
+                return true;
+            }
+            heads.addAll(tmp);
+        }
+        return false;
+    }
+
     /**
      * Find all refs that the specified commit is reachable from.
      *
@@ -718,6 +911,23 @@ public class CommitList
         }
     }
 
+    /**
+     * Find all refs that any of the specified commits is reachable from.
+     *
+     * @param commits Set of commit indexes in this list.
+     * @param refs    user specified set of refs to update.
+     */
+    public void getRefs(BitSet commits, Set<Ref> refs) {
+        HeadSet union = new HeadSet(hsb);
+        for (int index = commits.nextSetBit(0); index >= 0; index = commits.nextSetBit(index + 1)) {
+            union.addAll(get(index).getHeads());
+        }
+        HeadSet.Head[] heads = hsb.select(union);
+        for (HeadSet.Head head : heads) {
+            refs.addAll(this.refs.byId(head));
+        }
+    }
+
     /** Result of method {@link CommitList#countGroupByRef(CommitList.CommitMatcher)}. */
     public static class GroupByRefMap {
         private final HashMap<AnyObjectId, HeadSet.Head> total
@@ -779,6 +989,113 @@ public class CommitList
         return new GroupByRefMap(total, matched);
     }
 
+    /**
+     * Count commits the specified ref is ahead of and behind the base ref.
+     *
+     * <p>The answer comes from head sets of commits, no commits are loaded
+     * from the database, and the result is memoized.</p>
+     *
+     * @param ref  The ref to compare.
+     * @param base The ref to compare with.
+     * @return Ahead and behind counts.
+     */
+    public AheadBehind aheadBehind(Ref ref, Ref base) {
+        return aheadBehind(base, Collections.singletonList(ref)).get(0);
+    }
+
+    /**
+     * Count commits every specified ref is ahead of and behind the base ref.
+     *
+     * <p>All refs missing from the memo are counted in a single pass
+     * over the list.</p>
+     *
+     * <p>If the list was built within a horizon, only commits within
+     * the horizon are counted. When both refs reach boundary commits,
+     * but have no merge base within the horizon, the pair is marked as
+     * having merge base outside the horizon.</p>
+     *
+     * @param base The ref to compare with.
+     * @param refs The refs to compare.
+     * @return Ahead and behind counts in the order of the specified refs.
+     */
+    public List<AheadBehind> aheadBehind(Ref base, Collection<Ref> refs) {
+        int b = headIndex(base);
+        int start = indexOf(base.getId());
+        Ref[] ref = refs.toArray(new Ref[refs.size()]);
+        int[] heads = new int[ref.length];
+        int[][] counts = new int[ref.length][];
+        int[] missing = new int[ref.length];
+        int m = 0;
+        for (int n = 0; n < ref.length; n++) {
+            heads[n] = headIndex(ref[n]);
+            counts[n] = aheadBehind.get(key(heads[n], b));
+            if (counts[n] == null) {
+                counts[n] = new int[] {0, 0, -1, 0};
+                missing[m++] = n;
+                start = Math.min(start, indexOf(ref[n].getId()));
+            }
+        }
+        if (m > 0) {
+            // Neither ref nor base can reach commits before their tips.
+            for (int index = start; index < size; index++) {
+                HeadSet hs = get(index).getHeads();
+                boolean inBase = hs.contains(b);
+                boolean atBoundary = boundary.get(index);
+                for (int k = 0; k < m; k++) {
+                    int n = missing[k];
+                    int[] c = counts[n];
+                    if (hs.contains(heads[n])) {
+                        if (!inBase) {
+                            c[0]++;
+                        }
+                        else if (c[2] == -1) {
+                            c[2] = index;
+                        }
+                        if (atBoundary) {
+                            c[3] |= 1;
+                        }
+                    }
+                    else if (inBase) {
+                        c[1]++;
+                    }
+                    if (inBase && atBoundary) {
+                        c[3] |= 2;
+                    }
+                }
+            }
+            for (int k = 0; k < m; k++) {
+                int n = missing[k];
+                aheadBehind.putIfAbsent(key(heads[n], b), counts[n]);
+            }
+        }
+        ArrayList<AheadBehind> result = new ArrayList<>(ref.length);
+        for (int n = 0; n < ref.length; n++) {
+            int[] c = counts[n];
+            result.add(new AheadBehind(ref[n], base, c[0], c[1],
+                    c[2] != -1 ? get(c[2]) : null, c[2] == -1 && c[3] == 3));
+        }
+        return result;
+    }
+
+    int headIndex(Ref ref) {
+        if (!refs.byId(ref.getId()).contains(ref)) {
+            throw new IllegalStateException("unknown ref " + ref);
+        }
+        return hsb.indexOf(ref.getId());
+    }
+
+    private static Long key(int ref, int base) {
+        return (long) ref << 32 | base;
+    }
+
+    /** Abandon the build if the thread was interrupted, because nobody needs the result anymore. */
+    private static void checkInterrupted()
+            throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("commit list build interrupted");
+        }
+    }
+
     /** @return Immutable view of the commit list. */
     public List<Commit> adapt() {
         return new AbstractList<Commit>() {
@@ -819,7 +1136,7 @@ public class CommitList
         w.flush();
     }
 
-    private static class Parser {
+    static class Parser {
         static String getMessage(byte[] bytes) {
             int offset = RawParseUtils.commitMessage(bytes, 0);
             if (offset < 0) {
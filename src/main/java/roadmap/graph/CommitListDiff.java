@@ -1,12 +1,20 @@
 package roadmap.graph;
 
 import org.eclipse.jgit.lib.ObjectId;
+import roadmap.ref.Ref;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * Finds added and removed commits between to lists, starting from the specified
@@ -20,6 +28,97 @@ import java.util.PriorityQueue;
  * commits have been removed.
  */
 public class CommitListDiff {
+    /**
+     * Difference between two snapshots of the same repository.
+     *
+     * <p>Commits are identified by their indexes, removed commits by indexes
+     * in the old list, and added commits by indexes in the new list.</p>
+     */
+    public static final class Snapshot {
+        private final CommitList from;
+        private final CommitList to;
+        private final BitSet removed;
+        private final BitSet added;
+        private final Map<String, BitSet> removedByRef;
+        private final Map<String, BitSet> addedByRef;
+
+        private Snapshot(CommitList from, CommitList to,
+                         BitSet removed, BitSet added,
+                         Map<String, BitSet> removedByRef,
+                         Map<String, BitSet> addedByRef) {
+            this.from = from;
+            this.to = to;
+            this.removed = removed;
+            this.added = added;
+            this.removedByRef = removedByRef;
+            this.addedByRef = addedByRef;
+        }
+
+        /** @return The old commit list. */
+        public CommitList getFrom() {
+            return from;
+        }
+
+        /** @return The new commit list. */
+        public CommitList getTo() {
+            return to;
+        }
+
+        /** @return Indexes in the old list of commits missing from the new list. */
+        public BitSet getRemoved() {
+            return (BitSet) removed.clone();
+        }
+
+        /** @return Indexes in the new list of commits missing from the old list. */
+        public BitSet getAdded() {
+            return (BitSet) added.clone();
+        }
+
+        /**
+         * @param ref Ref name.
+         * @return Indexes in the old list of commits which the ref no longer contains.
+         */
+        public BitSet getRemoved(String ref) {
+            return copy(removedByRef.get(ref));
+        }
+
+        /**
+         * @param ref Ref name.
+         * @return Indexes in the new list of commits which the ref did not contain before.
+         */
+        public BitSet getAdded(String ref) {
+            return copy(addedByRef.get(ref));
+        }
+
+        /** @return Names of refs which lost any commits. */
+        public Set<String> getRefsWithRemoved() {
+            return Collections.unmodifiableSet(removedByRef.keySet());
+        }
+
+        /** @return Names of refs which got any commits. */
+        public Set<String> getRefsWithAdded() {
+            return Collections.unmodifiableSet(addedByRef.keySet());
+        }
+
+        /**
+         * Report all added and removed commits regardless of refs.
+         *
+         * @param sink Result handler.
+         */
+        public void diff(CommitDiff.Sink sink) {
+            for (int n = removed.nextSetBit(0); n >= 0; n = removed.nextSetBit(n + 1)) {
+                sink.removed(from.get(n));
+            }
+            for (int n = added.nextSetBit(0); n >= 0; n = added.nextSetBit(n + 1)) {
+                sink.added(to.get(n));
+            }
+        }
+
+        private static BitSet copy(BitSet bits) {
+            return bits != null ? (BitSet) bits.clone() : new BitSet();
+        }
+    }
+
     /**
      * Iterates over all (grand-)parents of a commits using topological
      * sorting. It relies on the fact that topological commit ordering is
@@ -116,4 +215,125 @@ public class CommitListDiff {
             }
         }
     }
+
+    /**
+     * Find all commits added and removed between two snapshots of the same
+     * repository, both in total and for every ref.
+     *
+     * <p>Commits of both lists are matched with a merge join over arrays
+     * sorted by commit id, no hash lookups are made. Then a commit is added
+     * to a ref if the ref contains it in the new list, and either the commit
+     * is missing from the old list, or the old ref with the same name did not
+     * contain it. Removed commits are found the same way in reverse. Whether
+     * a ref contains a commit is answered by commit head sets.</p>
+     *
+     * @param from The old commit list.
+     * @param to   The new commit list.
+     * @return Difference between two lists.
+     */
+    public static Snapshot snapshot(CommitList from, CommitList to) {
+        int[] fromToTo = new int[from.size()];
+        int[] toToFrom = new int[to.size()];
+        join(from, to, fromToTo, toToFrom);
+        BitSet removed = new BitSet(from.size());
+        BitSet added = new BitSet(to.size());
+        for (int n = 0; n < fromToTo.length; n++) {
+            if (fromToTo[n] == -1) {
+                removed.set(n);
+            }
+        }
+        for (int n = 0; n < toToFrom.length; n++) {
+            if (toToFrom[n] == -1) {
+                added.set(n);
+            }
+        }
+        return new Snapshot(from, to, removed, added,
+                diffByRef(from, to, fromToTo),
+                diffByRef(to, from, toToFrom));
+    }
+
+    /** Match commits of two lists by id and record matching indexes, or -1. */
+    private static void join(CommitList a, CommitList b, int[] ab, int[] ba) {
+        Commit[] sa = sorted(a);
+        Commit[] sb = sorted(b);
+        Arrays.fill(ab, -1);
+        Arrays.fill(ba, -1);
+        int i = 0;
+        int j = 0;
+        while (i < sa.length && j < sb.length) {
+            int r = sa[i].compareTo(sb[j]);
+            if (r < 0) {
+                i++;
+            }
+            else if (r > 0) {
+                j++;
+            }
+            else {
+                ab[sa[i].getIndex()] = sb[j].getIndex();
+                ba[sb[j].getIndex()] = sa[i].getIndex();
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static Commit[] sorted(CommitList list) {
+        Commit[] commits = new Commit[list.size()];
+        for (int n = 0; n < commits.length; n++) {
+            commits[n] = list.get(n);
+        }
+        Arrays.sort(commits);
+        return commits;
+    }
+
+    /**
+     * For every ref of the list {@code a} find commits it contains,
+     * which the same ref of the list {@code b} does not contain.
+     */
+    private static Map<String, BitSet> diffByRef(CommitList a, CommitList b, int[] ab) {
+        // Group refs of list a by head, pair them with heads of list b.
+        Collection<Ref> all = a.getRefs().all();
+        Ref[][] refs = new Ref[all.size()][];
+        int[][] others = new int[all.size()][];
+        for (Ref ref : all) {
+            int head = a.headIndex(ref);
+            Ref other = find(b, ref.getName());
+            int otherHead = other != null ? b.headIndex(other) : -1;
+            if (refs[head] == null) {
+                refs[head] = new Ref[] {ref};
+                others[head] = new int[] {otherHead};
+            }
+            else {
+                int l = refs[head].length;
+                refs[head] = Arrays.copyOf(refs[head], l + 1);
+                refs[head][l] = ref;
+                others[head] = Arrays.copyOf(others[head], l + 1);
+                others[head][l] = otherHead;
+            }
+        }
+        HashMap<String, BitSet> result = new HashMap<>();
+        for (int n = 0; n < ab.length; n++) {
+            HeadSet heads = a.get(n).getHeads();
+            HeadSet otherHeads = ab[n] != -1 ? b.get(ab[n]).getHeads() : null;
+            for (int head = heads.nextHead(0); head >= 0; head = heads.nextHead(head + 1)) {
+                for (int k = 0; k < refs[head].length; k++) {
+                    int other = others[head][k];
+                    if (otherHeads == null || other == -1 || !otherHeads.contains(other)) {
+                        String name = refs[head][k].getName();
+                        BitSet bits = result.get(name);
+                        if (bits == null) {
+                            result.put(name, bits = new BitSet());
+                        }
+                        bits.set(n);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Ref find(CommitList list, String name) {
+        Collection<Ref> refs = list.getRefs().selectAll(Collections.singleton(name));
+        return refs.isEmpty() ? null : refs.iterator().next();
+    }
 }
@@ -0,0 +1,325 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Columnar side index of commit metadata.
+ *
+ * <p>The commit list deliberately does not keep commit attributes such as
+ * author or commit time, so any predicate over these attributes has to load
+ * every candidate commit from the database. This index stores commit time,
+ * author time and dictionary encoded author and committer emails in primitive
+ * arrays indexed by commit index, so that predicates built by this index
+ * are evaluated without any object I/O.</p>
+ *
+ * <p>Emails are compared case-insensitively, they are stored in lower case.</p>
+ *
+ * <p>The index is only valid for the commit list it was built from.</p>
+ */
+public final class CommitMetaIndex {
+    private static final int MAGIC = 0x52434d49; // RCMI
+    private static final int VERSION = 1;
+    private final int size;
+    private final ObjectId fingerprint;
+    private final int[] commitTime;
+    private final int[] authorTime;
+    private final int[] author;
+    private final int[] committer;
+    /** Dictionary of all emails, indexed by email id. */
+    private final String[] emails;
+    /** Maps email to email id. */
+    private final HashMap<String, Integer> emailIds;
+
+    private CommitMetaIndex(int size, ObjectId fingerprint,
+                            int[] commitTime, int[] authorTime,
+                            int[] author, int[] committer,
+                            String[] emails) {
+        this.size = size;
+        this.fingerprint = fingerprint;
+        this.commitTime = commitTime;
+        this.authorTime = authorTime;
+        this.author = author;
+        this.committer = committer;
+        this.emails = emails;
+        emailIds = new HashMap<>(emails.length * 2);
+        for (int n = 0; n < emails.length; n++) {
+            emailIds.put(emails[n], n);
+        }
+    }
+
+    /**
+     * Build index by reading every commit of the specified list.
+     *
+     * @param reader Object reader to load commits.
+     * @param list   Commit list to build index for.
+     * @return New index.
+     * @throws IOException If I/O error occurs.
+     */
+    public static CommitMetaIndex build(ObjectReader reader, CommitList list)
+            throws IOException {
+        int size = list.size();
+        int[] commitTime = new int[size];
+        int[] authorTime = new int[size];
+        int[] author = new int[size];
+        int[] committer = new int[size];
+        ArrayList<String> emails = new ArrayList<>();
+        HashMap<String, Integer> emailIds = new HashMap<>();
+        for (Commit commit : list) {
+            int index = commit.getIndex();
+            byte[] buffer = reader.open(commit, Constants.OBJ_COMMIT).getCachedBytes();
+            int ptr = RawParseUtils.author(buffer, 0);
+            if (ptr >= 0) {
+                author[index] = intern(emails, emailIds, email(buffer, ptr));
+                authorTime[index] = time(buffer, ptr);
+            }
+            else {
+                author[index] = -1;
+            }
+            ptr = RawParseUtils.committer(buffer, 0);
+            if (ptr >= 0) {
+                committer[index] = intern(emails, emailIds, email(buffer, ptr));
+                commitTime[index] = time(buffer, ptr);
+            }
+            else {
+                committer[index] = -1;
+            }
+        }
+        return new CommitMetaIndex(size, IndexFile.fingerprint(list),
+                commitTime, authorTime, author, committer,
+                emails.toArray(new String[emails.size()]));
+    }
+
+    /**
+     * Read index previously written by {@link #write(OutputStream)}.
+     *
+     * @param in   Input stream to read index from.
+     * @param list Commit list the index was built for.
+     * @return Index read from the stream.
+     * @throws IOException If I/O error occurs, or if the index
+     *                     does not match the commit list.
+     */
+    public static CommitMetaIndex read(InputStream in, CommitList list)
+            throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        ObjectId fingerprint = IndexFile.readHeader(data, MAGIC, VERSION, list);
+        int size = list.size();
+        String[] emails = new String[data.readInt()];
+        for (int n = 0; n < emails.length; n++) {
+            emails[n] = data.readUTF();
+        }
+        int[] commitTime = readColumn(data, size);
+        int[] authorTime = readColumn(data, size);
+        int[] author = readColumn(data, size);
+        int[] committer = readColumn(data, size);
+        return new CommitMetaIndex(size, fingerprint,
+                commitTime, authorTime, author, committer, emails);
+    }
+
+    /**
+     * Write index to the specified stream.
+     *
+     * @param out Output stream to write index to.
+     * @throws IOException If I/O error occurs.
+     */
+    public void write(OutputStream out)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        IndexFile.writeHeader(data, MAGIC, VERSION, size, fingerprint);
+        data.writeInt(emails.length);
+        for (String email : emails) {
+            data.writeUTF(email);
+        }
+        writeColumn(data, commitTime);
+        writeColumn(data, authorTime);
+        writeColumn(data, author);
+        writeColumn(data, committer);
+        data.flush();
+    }
+
+    /** @return Number of indexed commits. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index Commit index.
+     * @return Commit time in seconds since epoch.
+     */
+    public int getCommitTime(int index) {
+        return commitTime[index];
+    }
+
+    /**
+     * @param index Commit index.
+     * @return Author time in seconds since epoch.
+     */
+    public int getAuthorTime(int index) {
+        return authorTime[index];
+    }
+
+    /**
+     * @param index Commit index.
+     * @return Lower case author email, or {@code null} if commit has no author.
+     */
+    public String getAuthorEmail(int index) {
+        return email(author[index]);
+    }
+
+    /**
+     * @param index Commit index.
+     * @return Lower case committer email, or {@code null} if commit has no committer.
+     */
+    public String getCommitterEmail(int index) {
+        return email(committer[index]);
+    }
+
+    /**
+     * @param emails Author emails.
+     * @return Predicate that matches commits authored by any of the specified emails.
+     */
+    public CommitList.CommitMatcher authorIn(Collection<String> emails) {
+        return new EmailMatcher(author, select(emails));
+    }
+
+    /**
+     * @param emails Committer emails.
+     * @return Predicate that matches commits committed by any of the specified emails.
+     */
+    public CommitList.CommitMatcher committerIn(Collection<String> emails) {
+        return new EmailMatcher(committer, select(emails));
+    }
+
+    /**
+     * @param since Lower bound of commit time, inclusive.
+     * @param until Upper bound of commit time, exclusive.
+     * @return Predicate that matches commits committed in the specified time range.
+     */
+    public CommitList.CommitMatcher committedBetween(int since, int until) {
+        return new TimeMatcher(commitTime, since, until);
+    }
+
+    /**
+     * @param since Lower bound of author time, inclusive.
+     * @param until Upper bound of author time, exclusive.
+     * @return Predicate that matches commits authored in the specified time range.
+     */
+    public CommitList.CommitMatcher authoredBetween(int since, int until) {
+        return new TimeMatcher(authorTime, since, until);
+    }
+
+    private String email(int id) {
+        if (id == -1) {
+            return null;
+        }
+        return emails[id];
+    }
+
+    private boolean[] select(Collection<String> emails) {
+        boolean[] selected = new boolean[this.emails.length];
+        for (String email : emails) {
+            Integer id = emailIds.get(email.toLowerCase(Locale.ROOT));
+            if (id != null) {
+                selected[id] = true;
+            }
+        }
+        return selected;
+    }
+
+    private final class EmailMatcher
+            implements CommitList.CommitMatcher {
+        final int[] column;
+        final boolean[] selected;
+
+        EmailMatcher(int[] column, boolean[] selected) {
+            this.column = column;
+            this.selected = selected;
+        }
+
+        @Override public boolean matches(Commit commit) {
+            int index = commit.getIndex();
+            if (index >= size) {
+                return false;
+            }
+            int id = column[index];
+            return id != -1 && selected[id];
+        }
+    }
+
+    private final class TimeMatcher
+            implements CommitList.CommitMatcher {
+        final int[] column;
+        final int since;
+        final int until;
+
+        TimeMatcher(int[] column, int since, int until) {
+            this.column = column;
+            this.since = since;
+            this.until = until;
+        }
+
+        @Override public boolean matches(Commit commit) {
+            int index = commit.getIndex();
+            if (index >= size) {
+                return false;
+            }
+            int time = column[index];
+            return since <= time && time < until;
+        }
+    }
+
+    private static int intern(ArrayList<String> emails,
+                              HashMap<String, Integer> emailIds,
+                              String email) {
+        Integer id = emailIds.get(email);
+        if (id == null) {
+            id = emails.size();
+            emails.add(email);
+            emailIds.put(email, id);
+        }
+        return id;
+    }
+
+    /** Parse email from person identity line, e.g. {@code Name <email> 1234567890 +0000}. */
+    private static String email(byte[] buffer, int ptr) {
+        int lt = RawParseUtils.next(buffer, ptr, '<');
+        int gt = RawParseUtils.next(buffer, lt, '>');
+        return RawParseUtils.decode(buffer, lt, gt - 1).toLowerCase(Locale.ROOT);
+    }
+
+    /** Parse time from person identity line, e.g. {@code Name <email> 1234567890 +0000}. */
+    private static int time(byte[] buffer, int ptr) {
+        int gt = RawParseUtils.next(buffer, ptr, '>');
+        return RawParseUtils.parseBase10(buffer, gt, null);
+    }
+
+    private static int[] readColumn(DataInputStream in, int size)
+            throws IOException {
+        int[] column = new int[size];
+        for (int n = 0; n < size; n++) {
+            column[n] = in.readInt();
+        }
+        return column;
+    }
+
+    private static void writeColumn(DataOutputStream out, int[] column)
+            throws IOException {
+        for (int value : column) {
+            out.writeInt(value);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package roadmap.graph;
 
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.revwalk.RevCommit;
 import roadmap.ref.Ref;
 import roadmap.ref.RefDiff;
@@ -10,12 +11,16 @@ import roadmap.ref.RefSet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.AbstractSet;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
@@ -85,9 +90,10 @@ public class Graph
         }
 
         private final int commitTime;
-        private final NodeHashSet parents = new NodeHashSet();
-        private final NodeHashSet children = new NodeHashSet();
-        private Object tag;
+        private NodeHashSet parents = new NodeHashSet();
+        private NodeHashSet children = new NodeHashSet();
+        /** The frozen graph which keeps links of this node, if any. */
+        private Graph frozen;
         int inDegree, index;
 
         Node(AnyObjectId id) {
@@ -105,50 +111,126 @@ public class Graph
             commitTime = commit.getCommitTime();
         }
 
+        Node(Commit commit) {
+            super(commit);
+            commitTime = commit.getCommitTime();
+        }
+
+        /** @return Committer time in seconds since the epoch, or zero if not known. */
         public int getCommitTime() {
             return commitTime;
         }
 
-        /** @return Live set of parent nodes. */
+        /** @return Live set of parent nodes, which is unmodifiable once the graph is frozen. */
         public Set<Node> getParents() {
+            if (frozen != null) {
+                return frozen.parentsOf(index);
+            }
             return parents;
         }
 
         /** @return Unmodifiable set of nodes for which this node is a parent. */
         public Set<Node> getChildren() {
+            if (frozen != null) {
+                return frozen.childrenOf(index);
+            }
             return Collections.unmodifiableSet(children);
         }
 
+        /** @return The number of parents, without making a set view of them. */
+        public int parentCount() {
+            if (frozen != null) {
+                return frozen.parentStart[index + 1] - frozen.parentStart[index];
+            }
+            return parents.size();
+        }
+
+        /** @return The number of children, without making a set view of them. */
+        public int childCount() {
+            if (frozen != null) {
+                return frozen.childStart[index + 1] - frozen.childStart[index];
+            }
+            return children.size();
+        }
+
+        /** @return New unlinked node of the same kind, id and time. */
+        Node duplicate() {
+            return new Node(this);
+        }
+
+        /** @return The frozen graph of this node, or {@code null}. */
+        Graph getFrozen() {
+            return frozen;
+        }
+
         void link(Node parent) {
+            checkModifiable();
             parents.add(parent);
         }
 
         void unlink(Node parent) {
-            parents.remove(parent);
+            checkModifiable();
+            if (parents.remove(parent)) {
+                parent.children.remove(this);
+            }
+        }
+
+        private void checkModifiable() {
+            if (frozen != null) {
+                throw new IllegalStateException("frozen node " + name());
+            }
         }
 
         boolean isConsistent() {
-            for (Node parent : parents) {
-                if (!parent.children.contains(this)) {
+            for (Node parent : getParents()) {
+                if (!parent.getChildren().contains(this)) {
                     return false;
                 }
             }
-            for (Node child : children) {
-                if (!child.parents.contains(this)) {
+            for (Node child : getChildren()) {
+                if (!child.getParents().contains(this)) {
                     return false;
                 }
             }
             return true;
         }
+    }
+
+    /**
+     * Node standing for a straight line of commits, with one parent and
+     * one child each, collapsed by {@link #compress(int, Set)}. The run
+     * has the id of its newest commit.
+     */
+    public static class RunNode
+            extends Node {
+        private final List<Node> members;
+
+        RunNode(List<Node> members) {
+            super(members.get(0));
+            this.members = new ArrayList<>(members.size());
+            for (Node member : members) {
+                if (member instanceof RunNode) {
+                    // Runs of runs are flattened.
+                    this.members.addAll(((RunNode) member).members);
+                }
+                else {
+                    this.members.add(member);
+                }
+            }
+        }
 
-        @SuppressWarnings("unchecked") <T> T tag(T aux) {
-            T val = (T) tag;
-            tag = aux;
-            return val;
+        @Override Node duplicate() {
+            return new RunNode(members);
         }
 
-        @SuppressWarnings("unchecked") <T> T tag() {
-            return (T) tag;
+        /** @return Unmodifiable list of ids of the collapsed commits, newest first. */
+        public List<ObjectId> getIds() {
+            return Collections.<ObjectId>unmodifiableList(members);
+        }
+
+        /** @return Id of the oldest collapsed commit. */
+        public ObjectId getLast() {
+            return members.get(members.size() - 1);
         }
     }
 
@@ -160,6 +242,14 @@ public class Graph
     final NodeSet roots;
     /** Set of differences between refs. */
     private final Set<RefDiff> refDiffs;
+    /** Reachability index, built on demand. */
+    private ReachabilityIndex reachability;
+    /** Nodes by ordinal in topological order, children first, once frozen. */
+    private Node[] byOrdinal;
+    /** Parent ordinals of node <em>n</em> are at [parentStart[n], parentStart[n + 1]). */
+    private int[] parentStart, parentOrdinals;
+    /** Child ordinals of node <em>n</em> are at [childStart[n], childStart[n + 1]). */
+    private int[] childStart, childOrdinals;
 
     /** Create empty graph. */
     private Graph() {
@@ -218,11 +308,210 @@ public class Graph
         }
     }
 
-    /** @return Unmodifiable iterator with no particular node ordering. */
+    /**
+     * Test whether one node is an ancestor of the other.
+     *
+     * <p>The first query builds the reachability index of the graph,
+     * then every query takes constant time. The graph must not be
+     * modified once queried.</p>
+     *
+     * @param ancestor Presumed ancestor node.
+     * @param node     Presumed descendant node.
+     * @return A value indicating whether the ancestor is reachable from
+     * the node following parents, or is the node itself.
+     * @throws IllegalArgumentException If either node is not from this graph.
+     */
+    public boolean isAncestor(Node ancestor, Node node) {
+        return reachability().reaches(node, ancestor);
+    }
+
+    /**
+     * Find the best common ancestors of two nodes, which are common
+     * ancestors that are not ancestors of any other common ancestor.
+     *
+     * @param a First node.
+     * @param b Second node.
+     * @return Unmodifiable list of the best common ancestors, empty if there are none.
+     * @throws IllegalArgumentException If either node is not from this graph.
+     * @see #isAncestor(Node, Node)
+     */
+    public List<Node> commonAncestors(Node a, Node b) {
+        return Collections.unmodifiableList(reachability().commonAncestors(a, b));
+    }
+
+    /** @return Reachability index of this graph, which is built on first use. */
+    synchronized ReachabilityIndex reachability() {
+        if (reachability == null) {
+            reachability = new ReachabilityIndex(this);
+        }
+        return reachability;
+    }
+
+    /**
+     * @return Unmodifiable iterator with no particular node ordering,
+     * or in topological order once the graph is frozen.
+     */
     @Override public Iterator<Node> iterator() {
+        if (byOrdinal != null) {
+            return Collections.unmodifiableList(Arrays.asList(byOrdinal)).iterator();
+        }
         return Collections.unmodifiableSet(nodes).iterator();
     }
 
+    /**
+     * Make this graph immutable and compact.
+     *
+     * <p>Nodes are numbered densely in topological order, and links move
+     * from per node hash sets to shared adjacency arrays. Sets of parents
+     * and children remain available as read only views of these arrays.
+     * Traversals of a frozen graph are plain loops over ordinals, with
+     * bit sets instead of hash sets to mark visited nodes.</p>
+     *
+     * @return This graph.
+     */
+    public synchronized Graph freeze() {
+        if (byOrdinal != null) {
+            return this;
+        }
+        Node[] order = new Node[nodes.size()];
+        TopologicalSortIterator it = new TopologicalSortIterator(this);
+        for (int n = 0; it.hasNext(); n++) {
+            order[n] = it.next();
+            order[n].index = n;
+        }
+        parentStart = new int[order.length + 1];
+        childStart = new int[order.length + 1];
+        for (int n = 0; n < order.length; n++) {
+            parentStart[n + 1] = parentStart[n] + order[n].parents.size();
+            childStart[n + 1] = childStart[n] + order[n].children.size();
+        }
+        parentOrdinals = new int[parentStart[order.length]];
+        childOrdinals = new int[childStart[order.length]];
+        for (int n = 0; n < order.length; n++) {
+            int p = parentStart[n];
+            for (Node parent : order[n].parents) {
+                parentOrdinals[p++] = parent.index;
+            }
+            int c = childStart[n];
+            for (Node child : order[n].children) {
+                childOrdinals[c++] = child.index;
+            }
+            // Sorted, so that links are looked up with a binary search
+            // and visited in topological order.
+            Arrays.sort(parentOrdinals, parentStart[n], p);
+            Arrays.sort(childOrdinals, childStart[n], c);
+        }
+        for (Node node : order) {
+            node.parents = null;
+            node.children = null;
+            node.frozen = this;
+        }
+        // The index numbered nodes on its own.
+        reachability = null;
+        byOrdinal = order;
+        return this;
+    }
+
+    /** @return A value indicating whether the graph is frozen. */
+    public boolean isFrozen() {
+        return byOrdinal != null;
+    }
+
+    /**
+     * @return This graph if frozen, or a frozen copy otherwise, so that
+     * rewrites can keep their scratch state in arrays indexed by ordinal.
+     */
+    Graph snapshot() {
+        return byOrdinal != null ? this : copy().freeze();
+    }
+
+    /** @return Nodes of a frozen graph by ordinal, the array must not be modified. */
+    Node[] ordinals() {
+        return byOrdinal;
+    }
+
+    /**
+     * Parent ordinals of a frozen graph, the parents of node <em>n</em> are
+     * at [{@link #parentStart()}[n], {@link #parentStart()}[n + 1]) in
+     * topological order. The array must not be modified.
+     */
+    int[] parentOrdinals() {
+        return parentOrdinals;
+    }
+
+    /** @return Start of parent ordinals of every node, see {@link #parentOrdinals()}. */
+    int[] parentStart() {
+        return parentStart;
+    }
+
+    /**
+     * Child ordinals of a frozen graph, the children of node <em>n</em> are
+     * at [{@link #childStart()}[n], {@link #childStart()}[n + 1]) in
+     * topological order. The array must not be modified.
+     */
+    int[] childOrdinals() {
+        return childOrdinals;
+    }
+
+    /** @return Start of child ordinals of every node, see {@link #childOrdinals()}. */
+    int[] childStart() {
+        return childStart;
+    }
+
+    private Set<Node> parentsOf(int ordinal) {
+        return new OrdinalSet(parentOrdinals, parentStart[ordinal], parentStart[ordinal + 1]);
+    }
+
+    private Set<Node> childrenOf(int ordinal) {
+        return new OrdinalSet(childOrdinals, childStart[ordinal], childStart[ordinal + 1]);
+    }
+
+    /** Read only set view of a range of an adjacency array. */
+    private final class OrdinalSet
+            extends AbstractSet<Node> {
+        private final int[] ordinals;
+        private final int from;
+        private final int to;
+
+        OrdinalSet(int[] ordinals, int from, int to) {
+            this.ordinals = ordinals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override public int size() {
+            return to - from;
+        }
+
+        @Override public boolean contains(Object o) {
+            if (!(o instanceof Node) || ((Node) o).frozen != Graph.this) {
+                return false;
+            }
+            return Arrays.binarySearch(ordinals, from, to, ((Node) o).index) >= 0;
+        }
+
+        @Override public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                int i = from;
+
+                @Override public boolean hasNext() {
+                    return i < to;
+                }
+
+                @Override public Node next() {
+                    if (i == to) {
+                        throw new NoSuchElementException();
+                    }
+                    return byOrdinal[ordinals[i++]];
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
     /**
      * Find merge bases for the specified nodes.
      *
@@ -240,6 +529,18 @@ public class Graph
     /**
      * Find merge bases for the specified nodes.
      *
+     * <p>Merge bases are nodes where histories of different heads meet,
+     * which are the nodes reached by the heads of one of their children,
+     * or by the node itself if it is a head, and by heads of the children
+     * before it in topological order, so that neither set of heads
+     * includes the other. Unlike {@link #commonAncestors(Node, Node)},
+     * these are not only the best common ancestors, since histories may
+     * meet again further down.</p>
+     *
+     * <p>Heads reaching a node are told by the reachability index, so
+     * only nodes with several children reached by at least two heads
+     * are looked at.</p>
+     *
      * @param heads      Nodes whose merge bases to find.
      * @param mergeBases Set to fill in with merge base nodes.
      */
@@ -248,52 +549,66 @@ public class Graph
             // Merging a head with itself.
             mergeBases.addAll(heads);
         }
+        else if (byOrdinal == null) {
+            // Number nodes of a frozen copy, then map merge bases back.
+            Graph snapshot = copy().freeze();
+            NodeSet copies = new NodeSet();
+            for (Node node : heads) {
+                copies.add(snapshot.node(node));
+            }
+            ArrayList<Node> found = new ArrayList<>();
+            snapshot.findMergeBases(copies, found);
+            for (Node node : found) {
+                mergeBases.add(node(node));
+            }
+        }
         else {
             // Merging several different heads.
+            ReachabilityIndex index = reachability();
             HeadSet.Builder hsb = new HeadSet.Builder(heads);
-            // Mark roots.
-            for (Node node : heads) {
-                HeadSet myHeads = new HeadSet(hsb);
-                myHeads.add(hsb, node);
-                node.tag(myHeads);
-            }
-            Iterator<Node> it = new TopologicalSortIterator(this);
-            Node last = null;
-            while (it.hasNext()) {
-                if (last != null) {
-                    last.tag(null); // Do not leave garbage behind us.
+            Node[] headNodes = heads.toArray(new Node[heads.size()]);
+            for (Node node : byOrdinal) {
+                int from = childStart[node.index];
+                int to = childStart[node.index + 1];
+                boolean head = heads.contains(node);
+                if (to - from + (head ? 1 : 0) < 2 || reachedBy(index, hsb, headNodes, node).size() < 2) {
+                    continue;
                 }
-                Node node = it.next();
-                // What are our heads?
-                HeadSet myHeads = node.tag();
-                if (myHeads != null) {
-                    // Copy heads onto parents.
-                    for (Node parent : node.getParents()) {
-                        HeadSet parentHeads = parent.tag();
-                        if (parentHeads == null) {
-                            // Simply pass my heads onto parent.
-                            parent.tag(myHeads);
-                        }
-                        else {
-                            if (myHeads != parentHeads) {
-                                if (HeadSet.isMergeBase(myHeads, parentHeads)) {
-                                    mergeBases.add(parent);
-                                }
-                                // Merge with parent heads.
-                                HeadSet tmp = new HeadSet(hsb);
-                                tmp.addAll(myHeads);
-                                tmp.addAll(parentHeads);
-                                parent.tag(tmp);
-                            }
+                HeadSet seen = null;
+                if (head) {
+                    seen = new HeadSet(hsb);
+                    seen.add(hsb, node);
+                }
+                // Children in topological order, as heads flow down to parents.
+                for (int c = from; c < to; c++) {
+                    HeadSet childHeads = reachedBy(index, hsb, headNodes, byOrdinal[childOrdinals[c]]);
+                    if (childHeads.size() == 0) {
+                        continue;
+                    }
+                    if (seen == null) {
+                        seen = childHeads;
+                    }
+                    else {
+                        if (HeadSet.isMergeBase(childHeads, seen)) {
+                            mergeBases.add(node);
+                            break;
                         }
+                        seen.addAll(childHeads);
                     }
                 }
-                last = node;
             }
-            if (last != null) {
-                last.tag(null); // Do not leave garbage behind us.
+        }
+    }
+
+    /** @return Set of the heads which reach the node. */
+    private static HeadSet reachedBy(ReachabilityIndex index, HeadSet.Builder hsb, Node[] heads, Node node) {
+        HeadSet set = new HeadSet(hsb);
+        for (Node head : heads) {
+            if (index.reaches(head, node)) {
+                set.add(hsb, head);
             }
         }
+        return set;
     }
 
     /**
@@ -305,6 +620,74 @@ public class Graph
         return new Rewriter.Simplifier(this, filter).simplify();
     }
 
+    /**
+     * Make copy of this graph with straight lines of nodes collapsed.
+     *
+     * <p>Nodes linked one after another, each with the only parent and
+     * the only child, are replaced with a single {@link RunNode}, so
+     * thousands of nightly tags on a release line take a single vertex
+     * to lay out and draw. Runs are expanded back on demand by passing
+     * the id of any of their nodes.</p>
+     *
+     * @param minLength The minimum number of nodes to collapse, at least two.
+     * @param expanded  Ids of nodes whose runs are to be left expanded.
+     * @return Frozen copy of this graph with runs collapsed.
+     */
+    public Graph compress(int minLength, Set<? extends AnyObjectId> expanded) {
+        return new ChainCompressor(this, minLength, expanded).compress();
+    }
+
+    /**
+     * Merge graphs built for different refs of the same repository,
+     * like graphs built by separate jobs for every team namespace.
+     *
+     * <p>All nodes and ref differences of the graphs are kept. Merge bases
+     * of refs of different graphs, and links between nodes of different
+     * graphs, are found with a walk from the graph roots, which only goes
+     * down to where the histories of all refs meet.</p>
+     *
+     * @param reader Object reader of the repository the graphs were built for.
+     * @param graphs Graphs to merge, at least one.
+     * @return New frozen graph of the refs of all graphs.
+     * @throws IOException              If I/O error occurs.
+     * @throws IllegalArgumentException If there are no graphs, or refs
+     *                                  with the same name point to different commits.
+     */
+    public static Graph merge(ObjectReader reader, List<Graph> graphs)
+            throws IOException {
+        return new GraphMerger(reader, graphs).merge();
+    }
+
+    /**
+     * Make coarse copy of this graph with at most the specified number
+     * of nodes, so that layout and rendering costs are bounded no matter
+     * how large the repository is.
+     *
+     * <p>The most recent node of every partition is kept first, then the
+     * most recent refs of every namespace, like <em>refs/tags/nightly-</em>,
+     * in turns, then the most connected merge bases. Recency is by commit
+     * time, then by topological order for nodes with the same time, see
+     * {@link Node#getCommitTime()}. Ancestry of the kept nodes is
+     * preserved.</p>
+     *
+     * @param maxNodes The maximum number of nodes, at least one.
+     * @return Frozen coarse graph, or this graph if it is small enough.
+     */
+    public Graph coarsen(int maxNodes) {
+        return new Coarsener(this).coarsen(maxNodes);
+    }
+
+    /**
+     * Build hierarchy of progressively coarser graphs, each one about
+     * half the size of the previous one, see {@link #coarsen(int)}.
+     *
+     * @param minNodes The size of the coarsest graph to stop at, at least one.
+     * @return Unmodifiable list of graphs, starting with this graph.
+     */
+    public List<Graph> hierarchy(int minNodes) {
+        return Collections.unmodifiableList(new Coarsener(this).hierarchy(minNodes));
+    }
+
     /**
      * Make deep clone that is exact copy of this graph
      * but does not share nodes with this graph.
@@ -312,10 +695,33 @@ public class Graph
      * @return Deep copy of this graph.
      */
     public Graph copy() {
+        if (byOrdinal != null) {
+            return copyFrozen();
+        }
         return new Graph(refs, copy(roots), refDiffs);
     }
 
+    private Graph copyFrozen() {
+        Node[] clones = new Node[byOrdinal.length];
+        for (int n = 0; n < byOrdinal.length; n++) {
+            clones[n] = byOrdinal[n].duplicate();
+        }
+        NodeSet newRoots = new NodeSet();
+        for (int n = 0; n < clones.length; n++) {
+            for (int p = parentStart[n]; p < parentStart[n + 1]; p++) {
+                clones[n].link(clones[parentOrdinals[p]]);
+            }
+            if (childStart[n] == childStart[n + 1]) {
+                newRoots.add(clones[n]);
+            }
+        }
+        return new Graph(refs, newRoots, refDiffs);
+    }
+
     void fix() {
+        if (byOrdinal != null) {
+            throw new IllegalStateException("frozen graph");
+        }
         for (Node node : nodes) {
             node.children.clear();
         }
@@ -328,12 +734,12 @@ public class Graph
 
     boolean isConsistent() {
         for (Node node : nodes) {
-            for (Node parent : node.parents) {
+            for (Node parent : node.getParents()) {
                 if (!nodes.contains(parent)) {
                     return false;
                 }
             }
-            for (Node child : node.children) {
+            for (Node child : node.getChildren()) {
                 if (!nodes.contains(child)) {
                     return false;
                 }
@@ -354,7 +760,7 @@ public class Graph
         ArrayDeque<Node> queue = new ArrayDeque<>();
         // Seed traversal with roots.
         for (Node node : roots) {
-            Node clone = new Node(node);
+            Node clone = node.duplicate();
             newRoots.add(clone);
             map.put(node, clone);
             queue.add(node);
@@ -366,7 +772,7 @@ public class Graph
             for (Node parent : node.getParents()) {
                 Node c = map.get(parent);
                 if (c == null) {
-                    map.put(parent, c = new Node(parent));
+                    map.put(parent, c = parent.duplicate());
                     queue.add(parent);
                 }
                 clone.link(c);
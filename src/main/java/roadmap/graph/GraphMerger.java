@@ -0,0 +1,295 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import roadmap.ref.RefDiff;
+import roadmap.ref.RefSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge graphs built independently for different refs of the same repository.
+ *
+ * <p>Nodes of the source graphs are refs and merge bases of their own refs,
+ * so they are all kept. What is missing are merge bases of refs of different
+ * graphs, and links between nodes of different graphs. Both are found with
+ * a single walk from the roots of all graphs, which marks every commit with
+ * the refs it is reachable from, just like {@link CommitList} does. A commit
+ * is a merge base when its children are reachable from sets of refs neither
+ * of which includes the other, see {@link HeadSet#isMergeBase(HeadSet, HeadSet)}.
+ * Sets of graphs are not enough, since two refs of the same graph may meet
+ * two refs of the other graph at different commits.</p>
+ *
+ * <p>Commits are walked in commit time order, newest first, so the walk
+ * streams and only parses the commits it visits. Commits whose times are
+ * skewed may be visited before some of their children. When such a child
+ * later brings more refs or pending nodes to an already visited commit, the
+ * commit is queued again and passes the difference on to its parents. Once
+ * all nodes of the source graphs are reached, and every queued commit is
+ * reachable from all refs and is not a merge base, the walk goes on only
+ * while queued commits are not older than the oldest node, since they may
+ * still lead to it, and then for {@link CommitDiff#OVERSCAN} more commits,
+ * in case commit times are skewed, like {@link CommitDiff} does. There can
+ * be no more merge bases or links past that point, so the rest of the
+ * history is never read.</p>
+ *
+ * <p>Ref differences of the source graphs are kept as they are, differences
+ * between refs of different graphs are not computed.</p>
+ */
+final class GraphMerger {
+    /** Specialized rev commit class. */
+    private static class RevCommit
+            extends org.eclipse.jgit.revwalk.RevCommit {
+        /** Refs the children of this commit visited so far are reachable from, may be shared. */
+        HeadSet heads;
+        /** Whether the commit is a merge base of different refs. */
+        boolean mergeBase;
+        /** Nodes to link to the nearest node among ancestors, may be shared. */
+        NodeSet pending;
+        /** Whether the commit is queued to be visited. */
+        boolean queued;
+        /** Node of the commit, if it is a node of the merged graph. */
+        Graph.Node node;
+        /** Set of the single node, passed on to parents as their pending set. */
+        NodeSet self;
+
+        RevCommit(AnyObjectId id) {
+            super(id);
+        }
+
+        @Override public void reset() {
+            super.reset();
+            heads = null;
+            mergeBase = false;
+            pending = null;
+            queued = false;
+            node = null;
+            self = null;
+        }
+    }
+
+    /** Specialized rev walk class. */
+    private static class RevWalk
+            extends org.eclipse.jgit.revwalk.RevWalk {
+        RevWalk(ObjectReader reader) {
+            super(reader);
+        }
+
+        @Override protected org.eclipse.jgit.revwalk.RevCommit createCommit(AnyObjectId id) {
+            return new RevCommit(id);
+        }
+
+        @Override public RevCommit parseCommit(AnyObjectId id)
+                throws MissingObjectException, IncorrectObjectTypeException, IOException {
+            return (RevCommit) super.parseCommit(id);
+        }
+    }
+
+    private final ObjectReader reader;
+    private final List<Graph> graphs;
+    private final PriorityQueue<RevCommit> queue = new PriorityQueue<>(64, CommitDiff.CMP);
+    private RevWalk revWalk;
+    private HeadSet.Builder hsb;
+    /** Queued commits which are partial, see {@link #isPartial(RevCommit)}. */
+    private int partial;
+    /** The number of commits visited. */
+    private int walked;
+
+    GraphMerger(ObjectReader reader, List<Graph> graphs) {
+        if (graphs.isEmpty()) {
+            throw new IllegalArgumentException("graphs: " + graphs.size());
+        }
+        this.reader = reader;
+        this.graphs = graphs;
+    }
+
+    Graph merge()
+            throws IOException {
+        RefSet refs = graphs.get(0).getRefs();
+        HashSet<RefDiff> diffs = new HashSet<>();
+        NodeSet known = new NodeSet();
+        for (Graph graph : graphs) {
+            if (graph != graphs.get(0)) {
+                refs = refs.union(graph.getRefs());
+            }
+            diffs.addAll(graph.getRefDiffs());
+            known.addAll(graph.getNodes());
+        }
+        hsb = new HeadSet.Builder(refs.roots());
+
+        ArrayList<Graph.Node> nodes = new ArrayList<>();
+        revWalk = new RevWalk(reader);
+        revWalk.setRetainBody(false);
+        try {
+            for (Graph graph : graphs) {
+                for (Graph.Node root : graph.getRoots()) {
+                    RevCommit rc = revWalk.parseCommit(root);
+                    if (rc.heads == null) {
+                        rc.heads = new HeadSet(hsb);
+                        enqueue(rc);
+                    }
+                }
+            }
+
+            int found = 0;
+            int oldest = Integer.MAX_VALUE;
+            int slop = CommitDiff.OVERSCAN;
+            while (!queue.isEmpty()) {
+                if (found == known.size() && partial == 0) {
+                    if (queue.peek().getCommitTime() < oldest) {
+                        if (slop-- == 0) {
+                            break;
+                        }
+                    }
+                    else {
+                        slop = CommitDiff.OVERSCAN;
+                    }
+                }
+                RevCommit rc = queue.poll();
+                rc.queued = false;
+                if (isPartial(rc)) {
+                    partial--;
+                }
+                walked++;
+                // Heads of the children only, so that a ref is never a merge
+                // base of itself, and parents get this ref on top of them.
+                HeadSet heads = rc.heads;
+                if (hsb.indexOf(rc) >= 0) {
+                    heads = new HeadSet(heads);
+                    heads.add(hsb, rc);
+                }
+                NodeSet pending = rc.pending != null ? rc.pending : NONE;
+                boolean isKnown = known.contains(rc);
+                if (isKnown || rc.mergeBase) {
+                    if (rc.node == null) {
+                        rc.node = new Graph.Node(rc);
+                        rc.self = new NodeSet();
+                        rc.self.add(rc.node);
+                        nodes.add(rc.node);
+                        oldest = Math.min(oldest, rc.getCommitTime());
+                        if (isKnown) {
+                            found++;
+                        }
+                    }
+                    // Links of a commit visited again are made again, which changes nothing.
+                    for (Graph.Node child : pending) {
+                        child.link(rc.node);
+                    }
+                    pending = rc.self;
+                }
+                for (int n = 0; n < rc.getParentCount(); n++) {
+                    visitParent(heads, (RevCommit) rc.getParent(n), pending);
+                }
+            }
+        }
+        finally {
+            revWalk.dispose();
+            revWalk = null;
+            queue.clear();
+        }
+
+        // Nodes no node links to are roots.
+        NodeSet linked = new NodeSet();
+        for (Graph.Node node : nodes) {
+            linked.addAll(node.getParents());
+        }
+        NodeSet roots = new NodeSet();
+        for (Graph.Node node : nodes) {
+            if (!linked.contains(node)) {
+                roots.add(node);
+            }
+        }
+        Graph graph = new Graph(refs, roots, diffs);
+        new Beautifier(graph).beautify();
+        return graph.freeze();
+    }
+
+    /** @return The number of commits visited by the last merge. */
+    int walked() {
+        return walked;
+    }
+
+    /** Queue the commit to be visited, unless it is queued already. */
+    private void enqueue(RevCommit rc)
+            throws IOException {
+        if (!rc.queued) {
+            revWalk.parseHeaders(rc);
+            rc.queued = true;
+            queue.add(rc);
+            if (isPartial(rc)) {
+                partial++;
+            }
+        }
+    }
+
+    /**
+     * Pass refs and pending nodes of a child onto a parent. A parent which
+     * was visited before the child, because of skewed commit times, is
+     * queued again if it gets anything new.
+     */
+    private void visitParent(HeadSet heads, RevCommit parent, NodeSet pending)
+            throws IOException {
+        boolean wasPartial = parent.queued && isPartial(parent);
+        boolean changed = false;
+        HeadSet parentHeads = parent.heads;
+        if (parentHeads == null) {
+            // Reached for the first time.
+            parent.heads = heads;
+            changed = true;
+        }
+        else if (parentHeads != heads && !parentHeads.containsAll(heads)) {
+            if (heads.containsAll(parentHeads)) {
+                parent.heads = heads;
+            }
+            else {
+                parent.mergeBase = true;
+                HeadSet tmp = new HeadSet(parentHeads);
+                tmp.addAll(heads);
+                parent.heads = tmp;
+            }
+            changed = true;
+        }
+        if (parent.pending == null || parent.pending != pending && !parent.pending.containsAll(pending)) {
+            changed |= !pending.isEmpty();
+            parent.pending = union(parent.pending, pending);
+        }
+        if (parent.queued) {
+            if (wasPartial != isPartial(parent)) {
+                partial += wasPartial ? -1 : 1;
+            }
+        }
+        else if (changed) {
+            enqueue(parent);
+        }
+    }
+
+    /**
+     * @return A value indicating whether the commit still matters, which is
+     * when it is a merge base, or not reachable from all refs yet.
+     */
+    private boolean isPartial(RevCommit rc) {
+        return rc.mergeBase || rc.heads.size() != hsb.size();
+    }
+
+    /** @return Union of both sets, either set is shared when possible. */
+    private static NodeSet union(NodeSet a, NodeSet b) {
+        if (a == null || a == b || b.containsAll(a)) {
+            return b;
+        }
+        if (a.containsAll(b)) {
+            return a;
+        }
+        NodeSet result = new NodeSet(a);
+        result.addAll(b);
+        return result;
+    }
+
+    /** Pending set of commits with nothing to link. */
+    private static final NodeSet NONE = new NodeSet();
+}
@@ -23,6 +23,8 @@ final class HeadSet {
          * means, the number of commits having this ref.
          */
         int commits;
+        /** Index of this head in the builder, which is its bit in head sets. */
+        int index;
 
         Head(AnyObjectId src) {
             super(src);
@@ -46,6 +48,9 @@ final class HeadSet {
                 this.id[index++] = new Head(x);
             }
             Arrays.sort(this.id);
+            for (int n = 0; n < this.id.length; n++) {
+                this.id[n].index = n;
+            }
         }
 
         /**
@@ -57,6 +62,7 @@ final class HeadSet {
             id = new Head[that.id.length];
             for (int i = 0; i < that.id.length; i++) {
                 id[i] = new Head(that.id[i]);
+                id[i].index = i;
             }
         }
 
@@ -236,6 +242,12 @@ final class HeadSet {
         }
     }
 
+    void retainAll(HeadSet that) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= that.words[i];
+        }
+    }
+
     boolean contains(Builder builder, AnyObjectId head) {
         int bit = builder.indexOf(head);
         int wordIndex = bit >>> 5;
@@ -243,6 +255,31 @@ final class HeadSet {
         return (words[wordIndex] & mask) != 0;
     }
 
+    boolean contains(int bit) {
+        return (words[bit >>> 5] & 1 << bit) != 0;
+    }
+
+    /**
+     * @param from Bit to start from.
+     * @return Index of the next set bit, or -1 if there is no such bit.
+     */
+    int nextHead(int from) {
+        int i = from >>> 5;
+        if (i >= words.length) {
+            return -1;
+        }
+        int w = words[i] & -1 << from;
+        while (true) {
+            if (w != 0) {
+                return (i << 5) + Integer.numberOfTrailingZeros(w);
+            }
+            if (++i == words.length) {
+                return -1;
+            }
+            w = words[i];
+        }
+    }
+
     boolean containsAll(HeadSet that) {
         for (int i = 0; i < words.length; i++) {
             if ((words[i] & that.words[i]) != that.words[i]) {
@@ -0,0 +1,65 @@
+package roadmap.graph;
+
+/**
+ * Decides how deep into history a commit list walks.
+ *
+ * <p>Roadmaps rarely care about commits older than a year or so, yet
+ * an unbounded commit list walks down to the very first commit. A horizon
+ * bounds the walk either by commit time, or by the number of commits,
+ * or by both. Commits past the horizon are not loaded, and commits whose
+ * parents are past the horizon become boundary commits, which look like
+ * root commits in the list.</p>
+ *
+ * <p>Ref tips are always loaded, even if they are past the horizon.</p>
+ */
+public final class Horizon {
+    /** Horizon that does not bound the walk. */
+    public static final Horizon NONE = new Horizon(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    /** Commits older than this time in seconds since the epoch are past the horizon. */
+    final int since;
+    /** Commits after this number of walked commits are past the horizon. */
+    final int depth;
+
+    private Horizon(int since, int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth: " + depth);
+        }
+        this.since = since;
+        this.depth = depth;
+    }
+
+    /**
+     * @param commitTime Commit time in seconds since the epoch.
+     * @return Horizon that excludes commits older than the specified time.
+     */
+    public static Horizon since(int commitTime) {
+        return new Horizon(commitTime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param commits The maximum number of commits to walk.
+     * @return Horizon that excludes all commits after the specified number
+     * of the most recent commits.
+     */
+    public static Horizon depth(int commits) {
+        return new Horizon(Integer.MIN_VALUE, commits);
+    }
+
+    /**
+     * @param that Another horizon.
+     * @return Horizon that excludes commits past any of the two horizons.
+     */
+    public Horizon and(Horizon that) {
+        return new Horizon(Math.max(since, that.since), Math.min(depth, that.depth));
+    }
+
+    /** @return A value indicating whether this horizon bounds the walk at all. */
+    public boolean isBounded() {
+        return since != Integer.MIN_VALUE || depth != Integer.MAX_VALUE;
+    }
+
+    @Override public String toString() {
+        return "Horizon(since=" + since + "; depth=" + depth + ")";
+    }
+}
@@ -0,0 +1,74 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Common header of side index files persisted next to a commit list.
+ *
+ * <p>Side indexes address commits by their index in the commit list,
+ * so an index file is only valid for the very same list it was built
+ * from. To detect stale files we store a fingerprint, which is SHA-1
+ * of all commit ids taken in the list order.</p>
+ */
+final class IndexFile {
+    private IndexFile() {}
+
+    /**
+     * Compute fingerprint of the specified commit list.
+     *
+     * @param list Commit list.
+     * @return SHA-1 of all commit ids in the list order.
+     */
+    static ObjectId fingerprint(CommitList list) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] raw = new byte[20];
+        for (Commit commit : list) {
+            commit.copyRawTo(raw, 0);
+            md.update(raw);
+        }
+        return ObjectId.fromRaw(md.digest());
+    }
+
+    static void writeHeader(DataOutputStream out, int magic, int version,
+                            int size, ObjectId fingerprint)
+            throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeInt(size);
+        byte[] raw = new byte[20];
+        fingerprint.copyRawTo(raw, 0);
+        out.write(raw);
+    }
+
+    static ObjectId readHeader(DataInputStream in, int magic, int version, CommitList list)
+            throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException("not an index file");
+        }
+        if (in.readInt() != version) {
+            throw new IOException("unsupported index file version");
+        }
+        if (in.readInt() != list.size()) {
+            throw new IOException("index file does not match commit list");
+        }
+        byte[] raw = new byte[20];
+        in.readFully(raw);
+        ObjectId fingerprint = ObjectId.fromRaw(raw);
+        if (!fingerprint.equals(fingerprint(list))) {
+            throw new IOException("index file does not match commit list");
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,359 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import roadmap.ref.Ref;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index of commit message tokens.
+ *
+ * <p>For every token, such as a word or a ticket id like <em>ABC-123</em>,
+ * the index keeps a posting list of indexes of commits whose message
+ * contains this token. Posting lists are sorted and compressed with delta
+ * and variable length encoding.</p>
+ *
+ * <p>Tokens are runs of letters, digits, dashes and underscores, compared
+ * case-insensitively. A compound token, such as <em>ABC-123</em>, is indexed
+ * both as a whole and as its parts <em>ABC</em> and <em>123</em>.</p>
+ *
+ * <p>Combined with the commit list head sets, the index answers which refs
+ * contain commits with matching messages without any object I/O.</p>
+ */
+public final class MessageIndex {
+    /**
+     * Builds index incrementally in the commit list order.
+     *
+     * <p>The commit list is sorted topologically, and we add commits
+     * in the order of their indexes, so that every posting list is built
+     * already sorted just by appending to it.</p>
+     */
+    public static final class Builder {
+        private final CommitList list;
+        private final HashMap<String, Postings> postings = new HashMap<>();
+        private int next;
+
+        public Builder(CommitList list) {
+            this.list = list;
+        }
+
+        /** @return Index of the next commit to add. */
+        public int getNext() {
+            return next;
+        }
+
+        /** @return Value indicating whether all commits from the list were added. */
+        public boolean isComplete() {
+            return next == list.size();
+        }
+
+        /**
+         * Add the specified number of next commits to the index.
+         *
+         * @param reader Object reader to load commit messages.
+         * @param count  Maximum number of commits to add.
+         * @return This instance for fluent interface.
+         * @throws IOException If I/O error occurs.
+         */
+        public Builder add(ObjectReader reader, int count)
+                throws IOException {
+            LinkedHashSet<String> tokens = new LinkedHashSet<>();
+            int end = (int) Math.min((long) next + count, list.size());
+            for (; next < end; next++) {
+                Commit commit = list.get(next);
+                byte[] buffer = reader.open(commit, Constants.OBJ_COMMIT).getCachedBytes();
+                tokenize(CommitList.Parser.getMessage(buffer), tokens);
+                for (String token : tokens) {
+                    Postings p = postings.get(token);
+                    if (p == null) {
+                        postings.put(token, p = new Postings());
+                    }
+                    p.add(next);
+                }
+                tokens.clear();
+            }
+            return this;
+        }
+
+        /**
+         * Add all remaining commits to the index.
+         *
+         * @param reader Object reader to load commit messages.
+         * @return This instance for fluent interface.
+         * @throws IOException If I/O error occurs.
+         */
+        public Builder addAll(ObjectReader reader)
+                throws IOException {
+            return add(reader, list.size() - next);
+        }
+
+        /**
+         * @return New index of all commits of the list.
+         * @throws IllegalStateException If not all commits were added yet,
+         *                               since a partial index would be taken
+         *                               for a complete one once written.
+         */
+        public MessageIndex build() {
+            if (!isComplete()) {
+                throw new IllegalStateException("index is incomplete: "
+                        + next + " of " + list.size() + " commits");
+            }
+            HashMap<String, byte[]> map = new HashMap<>(postings.size() * 2);
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                map.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+            return new MessageIndex(list.size(), IndexFile.fingerprint(list), map);
+        }
+    }
+
+    /** Growable posting list with delta encoded commit indexes. */
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int last = -1;
+
+        void add(int index) {
+            int delta = index - last;
+            last = index;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7f) != 0) {
+                data[length++] = (byte) (0x80 | delta & 0x7f);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    private static final int MAGIC = 0x524d5849; // RMXI
+    private static final int VERSION = 1;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private final int size;
+    private final ObjectId fingerprint;
+    private final HashMap<String, byte[]> postings;
+
+    private MessageIndex(int size, ObjectId fingerprint, HashMap<String, byte[]> postings) {
+        this.size = size;
+        this.fingerprint = fingerprint;
+        this.postings = postings;
+    }
+
+    /**
+     * Read index previously written by {@link #write(OutputStream)}.
+     *
+     * @param in   Input stream to read index from.
+     * @param list Commit list the index was built for.
+     * @return Index read from the stream.
+     * @throws IOException If I/O error occurs, or if the index
+     *                     does not match the commit list.
+     */
+    public static MessageIndex read(InputStream in, CommitList list)
+            throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        ObjectId fingerprint = IndexFile.readHeader(data, MAGIC, VERSION, list);
+        int count = data.readInt();
+        HashMap<String, byte[]> postings = new HashMap<>(count * 2);
+        for (int n = 0; n < count; n++) {
+            String token = data.readUTF();
+            byte[] bytes = new byte[data.readInt()];
+            data.readFully(bytes);
+            postings.put(token, bytes);
+        }
+        return new MessageIndex(list.size(), fingerprint, postings);
+    }
+
+    /**
+     * Write index to the specified stream.
+     *
+     * @param out Output stream to write index to.
+     * @throws IOException If I/O error occurs.
+     */
+    public void write(OutputStream out)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        IndexFile.writeHeader(data, MAGIC, VERSION, size, fingerprint);
+        data.writeInt(postings.size());
+        for (Map.Entry<String, byte[]> entry : postings.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeInt(entry.getValue().length);
+            data.write(entry.getValue());
+        }
+        data.flush();
+    }
+
+    /** @return Number of distinct tokens. */
+    public int getTokenCount() {
+        return postings.size();
+    }
+
+    /**
+     * Get indexes of commits whose messages contain the specified token.
+     *
+     * @param token A single token.
+     * @return Sorted array of commit indexes, empty if token is unknown.
+     */
+    public int[] postings(String token) {
+        byte[] bytes = postings.get(token.toLowerCase(Locale.ROOT));
+        if (bytes == null) {
+            return new int[0];
+        }
+        int[] result = new int[bytes.length];
+        int length = 0;
+        int last = -1;
+        int ptr = 0;
+        while (ptr < bytes.length) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[ptr++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+            result[length++] = last += delta;
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Find commits whose messages contain all tokens of the specified query.
+     *
+     * @param query Query text, such as <em>ABC-123</em> or <em>fix memory leak</em>.
+     * @return Set of matching commit indexes.
+     */
+    public BitSet find(String query) {
+        LinkedHashSet<String> tokens = new LinkedHashSet<>();
+        tokenize(query, tokens);
+        BitSet result = null;
+        for (String token : tokens) {
+            BitSet bits = new BitSet(size);
+            for (int index : postings(token)) {
+                bits.set(index);
+            }
+            if (result == null) {
+                result = bits;
+            }
+            else {
+                result.and(bits);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        if (result == null) {
+            result = new BitSet();
+        }
+        return result;
+    }
+
+    /**
+     * @param query Query text.
+     * @return Predicate that matches commits whose messages contain
+     * all tokens of the specified query.
+     */
+    public CommitList.CommitMatcher matcher(String query) {
+        final BitSet bits = find(query);
+        return new CommitList.CommitMatcher() {
+            @Override public boolean matches(Commit commit) {
+                return bits.get(commit.getIndex());
+            }
+        };
+    }
+
+    /**
+     * Find refs that contain commits whose messages match the specified query.
+     *
+     * @param list  Commit list the index was built for.
+     * @param query Query text.
+     * @param refs  user specified set of refs to update.
+     */
+    public void findRefs(CommitList list, String query, Set<Ref> refs) {
+        if (list.size() != size) {
+            throw new IllegalArgumentException("index does not match commit list");
+        }
+        list.getRefs(find(query), refs);
+    }
+
+    /**
+     * Split text into lower case tokens.
+     *
+     * @param text   Text to split.
+     * @param tokens Collection to add tokens to.
+     */
+    static void tokenize(String text, Collection<String> tokens) {
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && !isTokenChar(text.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < length && isTokenChar(text.charAt(end))) {
+                end++;
+            }
+            addToken(text, start, end, tokens);
+            start = end;
+        }
+    }
+
+    private static void addToken(String text, int start, int end, Collection<String> tokens) {
+        // Trim separators.
+        while (start < end && isSeparator(text.charAt(start))) {
+            start++;
+        }
+        while (start < end && isSeparator(text.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end || end - start > MAX_TOKEN_LENGTH) {
+            return;
+        }
+        tokens.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+        // Add parts of compound token.
+        int part = start;
+        for (int n = start; n < end; n++) {
+            if (isSeparator(text.charAt(n))) {
+                addPart(text, part, n, tokens);
+                part = n + 1;
+            }
+        }
+        if (part > start) {
+            addPart(text, part, end, tokens);
+        }
+    }
+
+    private static void addPart(String text, int start, int end, Collection<String> tokens) {
+        if (start < end) {
+            tokens.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private static boolean isTokenChar(char c) {
+        return Character.isLetterOrDigit(c) || isSeparator(c);
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '-' || c == '_';
+    }
+}
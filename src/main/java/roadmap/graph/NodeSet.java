@@ -17,6 +17,8 @@ class NodeSet
     private static final int INITIAL_CAPACITY = 32;
     private Graph.Node[] data;
     private int size;
+    /** The number of live and deleted slots, lookups need some free slots to stop at. */
+    private int used;
 
     /**
      * Fill in node set from the specified roots.
@@ -27,10 +29,12 @@ class NodeSet
     static NodeSet fill(NodeSet roots) {
         NodeSet nodes = new NodeSet();
         ArrayDeque<Graph.Node> queue = new ArrayDeque<>(roots);
+        nodes.addAll(roots);
         Graph.Node node;
         while ((node = queue.poll()) != null) {
-            if (nodes.add(node)) {
-                for (Graph.Node parent : node.getParents()) {
+            for (Graph.Node parent : node.getParents()) {
+                // Queue every node once, when it is first added.
+                if (nodes.add(parent)) {
                     queue.add(parent);
                 }
             }
@@ -57,16 +61,26 @@ class NodeSet
 
     @Override public boolean add(Graph.Node node) {
         int p = slot(data, node);
-        while (data[p] != null && data[p] != DELETED) {
-            if (AnyObjectId.equals(data[p], node)) {
+        int free = -1;
+        while (data[p] != null) {
+            if (data[p] == DELETED) {
+                if (free == -1) {
+                    free = p;
+                }
+            }
+            else if (AnyObjectId.equals(data[p], node)) {
                 return false;
             }
             p = next(data, p);
         }
-        data[p] = node;
+        if (free == -1) {
+            free = p;
+            used++;
+        }
+        data[free] = node;
         size++;
-        if (size > data.length * 0.7) {
-            rehash(size * 2);
+        if (used > data.length * 0.7) {
+            rehash(Math.max(INITIAL_CAPACITY, size * 2));
         }
         return true;
     }
@@ -113,6 +127,7 @@ class NodeSet
     @Override public void clear() {
         data = new Graph.Node[INITIAL_CAPACITY];
         size = 0;
+        used = 0;
     }
 
     public Graph.Node get(AnyObjectId id) {
@@ -134,8 +149,9 @@ class NodeSet
                 clear();
             }
             else {
+                // Keep the shrunk table at most half full.
                 int l = data.length / 2;
-                if (size <= l && l >= INITIAL_CAPACITY) {
+                if (size <= l / 2 && l >= INITIAL_CAPACITY) {
                     rehash(l);
                 }
             }
@@ -154,6 +170,7 @@ class NodeSet
             }
         }
         this.data = data;
+        used = this.size;
     }
 
     private static int slot(AnyObjectId[] data, AnyObjectId node) {
@@ -0,0 +1,434 @@
+package roadmap.graph;
+
+import roadmap.util.Workers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Answers whether one graph node is reachable from another in constant time.
+ *
+ * <p>Nodes are decomposed into chains, every chain is a path following
+ * parent links, so a node on a chain reaches all the nodes further along
+ * the chain. For every node and every chain, the index keeps the position
+ * of the first node on the chain reachable from that node. A node reaches
+ * the other one when the other one is not before the first reachable node
+ * of its chain.</p>
+ *
+ * <p>Labels only span chains of the same weakly connected component, so
+ * the index takes <em>O(n&middot;k)</em> memory, where <em>k</em> is the
+ * number of chains of a component. This is much less than the
+ * <em>O(n&sup2;)</em> bits of pairwise reachability when there are many refs
+ * on a few lines of history. Chains are found greedily, so <em>k</em> may be
+ * well above the width of the component, like for a fan of tags on a single
+ * commit, where every tag makes a chain of its own. Components with more
+ * than one chain per 32 nodes, whose labels would take more memory than
+ * pairwise reachability, get a bit set of reachable nodes for every node
+ * instead, so the index never takes more than <em>O(n&sup2;)</em> bits.</p>
+ *
+ * <p>The best common ancestors of two nodes are found from the labels too.
+ * A best common ancestor is the first common ancestor on its chain, since
+ * the nodes before it on the chain are its descendants, so there is one
+ * candidate per chain, the later of the first positions reachable from
+ * either node. A candidate is one of the best unless any of its children
+ * is a common ancestor as well.</p>
+ *
+ * <p>Components are independent, so big graphs with many components are
+ * indexed on the shared worker pool, a component per task.</p>
+ *
+ * <p>The index is keyed by {@link Graph.Node#index}, which are ordinals
+ * of a frozen graph. Nodes of other graphs are numbered by the index,
+ * and it is only valid until the graph links are changed so that
+ * reachability changes, or until the graph is frozen. Removing
+ * redundant links keeps it valid.</p>
+ */
+final class ReachabilityIndex {
+    /** The number of nodes to index components of in parallel at. */
+    static final int PARALLEL_THRESHOLD = 4096;
+    /** Nodes in topological order, children first. */
+    private final Graph.Node[] nodes;
+    /** Parents of node <em>n</em> are at [parentStart[n], parentStart[n + 1]) of {@link #parents}. */
+    private final int[] parentStart;
+    private final int[] parents;
+    /** Children of node <em>n</em> are at [childStart[n], childStart[n + 1]) of {@link #children}. */
+    private final int[] childStart;
+    private final int[] children;
+    /** Component of every node. */
+    private final int[] component;
+    /** Indexes of nodes grouped by component, in topological order within every component. */
+    private final int[] members;
+    /** Start of every component in {@link #members}, and the end of the last one. */
+    private final int[] offsets;
+    /** Chain of every node, chains are numbered within their component. */
+    private final int[] chain;
+    /** Position of every node on its chain, ancestors are further along. */
+    private final int[] position;
+    /** Indexes of nodes grouped by component, then by chain, in the chain order. */
+    private final int[] byChain;
+    /**
+     * For every component, start of every chain in {@link #byChain},
+     * and the end of the last one.
+     */
+    private final int[][] chainStart;
+    /**
+     * For every node, the first reachable position on every chain of its
+     * component, or {@code null} if its component has bit set labels.
+     */
+    private final int[][] first;
+    /**
+     * For every node of a component with bit set labels, the nodes it reaches,
+     * by their index in the component.
+     */
+    private final long[][] bits;
+
+    /**
+     * Build index of all nodes of the graph.
+     *
+     * @param graph Graph to index.
+     */
+    ReachabilityIndex(Graph graph) {
+        this(graph, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Build index of all nodes of the graph.
+     *
+     * @param graph             Graph to index.
+     * @param parallelThreshold The number of nodes to index components in parallel at.
+     */
+    ReachabilityIndex(Graph graph, int parallelThreshold) {
+        if (graph.isFrozen()) {
+            // Frozen nodes are numbered in topological order,
+            // and keep their links by ordinal already.
+            nodes = graph.ordinals();
+            parentStart = graph.parentStart();
+            parents = graph.parentOrdinals();
+            childStart = graph.childStart();
+            children = graph.childOrdinals();
+        }
+        else {
+            nodes = new Graph.Node[graph.getNodes().size()];
+            TopologicalSortIterator it = new TopologicalSortIterator(graph);
+            for (int n = 0; it.hasNext(); n++) {
+                nodes[n] = it.next();
+                nodes[n].index = n;
+            }
+            parentStart = new int[nodes.length + 1];
+            childStart = new int[nodes.length + 1];
+            for (int n = 0; n < nodes.length; n++) {
+                parentStart[n + 1] = parentStart[n] + nodes[n].parentCount();
+                childStart[n + 1] = childStart[n] + nodes[n].childCount();
+            }
+            parents = new int[parentStart[nodes.length]];
+            children = new int[childStart[nodes.length]];
+            for (int n = 0; n < nodes.length; n++) {
+                int p = parentStart[n];
+                for (Graph.Node parent : nodes[n].getParents()) {
+                    parents[p++] = parent.index;
+                }
+                int c = childStart[n];
+                for (Graph.Node child : nodes[n].getChildren()) {
+                    children[c++] = child.index;
+                }
+            }
+        }
+        int size = nodes.length;
+
+        component = new int[size];
+        int components = components();
+        offsets = new int[components + 1];
+        for (int n = 0; n < size; n++) {
+            offsets[component[n] + 1]++;
+        }
+        for (int c = 0; c < components; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        members = new int[size];
+        int[] fill = Arrays.copyOf(offsets, components);
+        for (int n = 0; n < size; n++) {
+            members[fill[component[n]]++] = n;
+        }
+
+        chain = new int[size];
+        position = new int[size];
+        byChain = new int[size];
+        chainStart = new int[components][];
+        first = new int[size][];
+        bits = new long[size][];
+        Arrays.fill(chain, -1);
+        if (size < parallelThreshold || components == 1) {
+            for (int c = 0; c < components; c++) {
+                index(c);
+            }
+        }
+        else {
+            Workers.POOL.invoke(new IndexTask(0, components, parallelThreshold));
+        }
+    }
+
+    /** Index a single component. */
+    private void index(int c) {
+        int from = offsets[c];
+        int to = offsets[c + 1];
+
+        // Greedy chain decomposition, start new chains at the topmost
+        // nodes which are not on any chain yet, and extend them
+        // through parents which are not on any chain yet either.
+        int chains = 0;
+        int[] starts = new int[to - from + 1];
+        int k = from;
+        for (int m = from; m < to; m++) {
+            if (chain[members[m]] != -1) {
+                continue;
+            }
+            starts[chains] = k;
+            int p = 0;
+            int n = members[m];
+            while (n != -1) {
+                chain[n] = chains;
+                position[n] = p++;
+                byChain[k++] = n;
+                int next = -1;
+                for (int i = parentStart[n]; i < parentStart[n + 1]; i++) {
+                    if (chain[parents[i]] == -1) {
+                        next = parents[i];
+                        break;
+                    }
+                }
+                n = next;
+            }
+            chains++;
+        }
+        starts[chains] = k;
+        chainStart[c] = Arrays.copyOf(starts, chains + 1);
+
+        // Label nodes parents first, a node reaches everything its parents reach.
+        if ((long) chains * 32 <= to - from) {
+            for (int m = to - 1; m >= from; m--) {
+                int n = members[m];
+                int[] label = new int[chains];
+                Arrays.fill(label, Integer.MAX_VALUE);
+                label[chain[n]] = position[n];
+                for (int p = parentStart[n]; p < parentStart[n + 1]; p++) {
+                    int[] tmp = first[parents[p]];
+                    for (int i = 0; i < label.length; i++) {
+                        if (tmp[i] < label[i]) {
+                            label[i] = tmp[i];
+                        }
+                    }
+                }
+                first[n] = label;
+            }
+        }
+        else {
+            // Chains are too many, use the position in the component instead.
+            for (int m = from; m < to; m++) {
+                position[members[m]] = m - from;
+            }
+            for (int m = to - 1; m >= from; m--) {
+                int n = members[m];
+                long[] label = new long[(to - from + 63) >>> 6];
+                label[(m - from) >>> 6] |= 1L << (m - from);
+                for (int p = parentStart[n]; p < parentStart[n + 1]; p++) {
+                    long[] tmp = bits[parents[p]];
+                    for (int i = 0; i < label.length; i++) {
+                        label[i] |= tmp[i];
+                    }
+                }
+                bits[n] = label;
+            }
+        }
+    }
+
+    /** Indexes a range of components, splitting it while it is big enough. */
+    private final class IndexTask
+            extends RecursiveAction {
+        final int from;
+        final int to;
+        final int threshold;
+
+        IndexTask(int from, int to, int threshold) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override protected void compute() {
+            if (to - from == 1 || offsets[to] - offsets[from] < threshold) {
+                for (int c = from; c < to; c++) {
+                    index(c);
+                }
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new IndexTask(from, middle, threshold),
+                        new IndexTask(middle, to, threshold));
+            }
+        }
+    }
+
+    /** @return The number of indexed nodes. */
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @param node Graph node.
+     * @return A value indicating whether the node is indexed.
+     */
+    boolean contains(Graph.Node node) {
+        int n = node.index;
+        return 0 <= n && n < nodes.length && nodes[n] == node;
+    }
+
+    /**
+     * @param node Graph node.
+     * @return Number of the weakly connected component of the node.
+     * @throws IllegalArgumentException If the node is not indexed.
+     */
+    int component(Graph.Node node) {
+        return component[indexOf(node)];
+    }
+
+    /**
+     * Test whether the node is reachable by following parent links.
+     *
+     * @param from Node to start from.
+     * @param to   Node to reach.
+     * @return A value indicating whether <em>to</em> is <em>from</em>
+     * itself or one of its ancestors.
+     * @throws IllegalArgumentException If either node is not indexed.
+     */
+    boolean reaches(Graph.Node from, Graph.Node to) {
+        int f = indexOf(from);
+        int t = indexOf(to);
+        return component[f] == component[t] && reaches(f, t);
+    }
+
+    /**
+     * Find the best common ancestors of two nodes, that is common ancestors
+     * which are not ancestors of any other common ancestor.
+     *
+     * <p>Takes <em>O(k&middot;d)</em> time, where <em>k</em> is the number
+     * of chains of the component and <em>d</em> is the number of children of
+     * a candidate. Components with bit set labels take time proportional
+     * to the number of common ancestors instead.</p>
+     *
+     * @param a First node.
+     * @param b Second node.
+     * @return Best common ancestors in topological order, either node itself
+     * if it is an ancestor of the other one.
+     * @throws IllegalArgumentException If either node is not indexed.
+     */
+    List<Graph.Node> commonAncestors(Graph.Node a, Graph.Node b) {
+        int ia = indexOf(a);
+        int ib = indexOf(b);
+        int c = component[ia];
+        if (c != component[ib]) {
+            return Collections.emptyList();
+        }
+        int[] best;
+        int count = 0;
+        if (first[ia] != null) {
+            int[] la = first[ia];
+            int[] lb = first[ib];
+            int[] starts = chainStart[c];
+            best = new int[la.length];
+            for (int j = 0; j < la.length; j++) {
+                // Unreachable chains have positions past their ends.
+                int p = Math.max(la[j], lb[j]);
+                if (p < starts[j + 1] - starts[j] && isBest(ia, ib, byChain[starts[j] + p])) {
+                    best[count++] = byChain[starts[j] + p];
+                }
+            }
+            Arrays.sort(best, 0, count);
+        }
+        else {
+            long[] ba = bits[ia];
+            long[] bb = bits[ib];
+            int from = offsets[c];
+            best = new int[offsets[c + 1] - from];
+            for (int w = 0; w < ba.length; w++) {
+                long common = ba[w] & bb[w];
+                while (common != 0) {
+                    int n = members[from + (w << 6) + Long.numberOfTrailingZeros(common)];
+                    common &= common - 1;
+                    if (isBest(ia, ib, n)) {
+                        best[count++] = n;
+                    }
+                }
+            }
+        }
+        ArrayList<Graph.Node> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(nodes[best[i]]);
+        }
+        return list;
+    }
+
+    /** Test whether no child of a common ancestor is a common ancestor too. */
+    private boolean isBest(int a, int b, int n) {
+        for (int c = childStart[n]; c < childStart[n + 1]; c++) {
+            if (reaches(a, children[c]) && reaches(b, children[c])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean reaches(int f, int t) {
+        int[] label = first[f];
+        if (label != null) {
+            return label[chain[t]] <= position[t];
+        }
+        int p = position[t];
+        return (bits[f][p >>> 6] & 1L << p) != 0;
+    }
+
+    private int indexOf(Graph.Node node) {
+        if (!contains(node)) {
+            throw new IllegalArgumentException("unknown node " + node.name());
+        }
+        return node.index;
+    }
+
+    /**
+     * Find weakly connected components.
+     *
+     * @return The number of components.
+     */
+    private int components() {
+        Arrays.fill(component, -1);
+        int components = 0;
+        int[] queue = new int[nodes.length];
+        for (int n = 0; n < nodes.length; n++) {
+            if (component[n] != -1) {
+                continue;
+            }
+            component[n] = components;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = n;
+            while (head < tail) {
+                int node = queue[head++];
+                for (int p = parentStart[node]; p < parentStart[node + 1]; p++) {
+                    if (component[parents[p]] == -1) {
+                        component[parents[p]] = components;
+                        queue[tail++] = parents[p];
+                    }
+                }
+                for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                    if (component[children[c]] == -1) {
+                        component[children[c]] = components;
+                        queue[tail++] = children[c];
+                    }
+                }
+            }
+            components++;
+        }
+        return components;
+    }
+}
@@ -0,0 +1,88 @@
+package roadmap.graph;
+
+/**
+ * Decides which ref diff pairs a commit list keeps.
+ *
+ * <p>The number of ref pairs grows quadratically with the number of refs,
+ * so for repositories with thousands of branches we want to keep only
+ * some of them. The policy selects the pairs, while the ref diff store
+ * keeps the selected pairs in compact primitive arrays, and moves them
+ * to a temporary file once there are too many of them.</p>
+ */
+public final class RefDiffPolicy {
+    enum Kind {
+        /** Keep every pair. */
+        ALL,
+        /** Keep a pair only if both refs are among the N most recent. */
+        RECENT,
+        /** Keep a pair only if it is among the K closest pairs of any of its refs. */
+        TOP_PER_REF
+    }
+
+    /** The number of in-memory pairs after which pairs are spilled to disk. */
+    static final int DEFAULT_SPILL_THRESHOLD = 1 << 20;
+    /**
+     * Empirical study suggests that the application and web UI handles
+     * repositories of order of ~100 refs quite well. This amounts to
+     * roughly 100^2 = 10000 ref diff pairs. So by default we only keep
+     * pairs of the 150 most recent refs.
+     */
+    public static final RefDiffPolicy DEFAULT = recent(150);
+
+    final Kind kind;
+    final int limit;
+    final int spillThreshold;
+
+    private RefDiffPolicy(Kind kind, int limit, int spillThreshold) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit: " + limit);
+        }
+        if (spillThreshold <= 0) {
+            throw new IllegalArgumentException("spill threshold: " + spillThreshold);
+        }
+        this.kind = kind;
+        this.limit = limit;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /** @return Policy that keeps every ref pair. */
+    public static RefDiffPolicy all() {
+        return new RefDiffPolicy(Kind.ALL, 0, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param refs The number of the most recent ref tips.
+     * @return Policy that keeps a pair only if both its ref tips are among
+     * the specified number of the most recent ref tips.
+     */
+    public static RefDiffPolicy recent(int refs) {
+        return new RefDiffPolicy(Kind.RECENT, refs, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param k The number of pairs to keep for every ref.
+     * @return Policy that for every ref tip keeps the specified number of pairs
+     * with the least number of commits between the ref tips.
+     */
+    public static RefDiffPolicy topPerRef(int k) {
+        return new RefDiffPolicy(Kind.TOP_PER_REF, k, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * Make a copy of this policy with different spill threshold.
+     *
+     * <p>The top-per-ref policy never spills, because it only keeps
+     * a bounded number of pairs per ref anyway.</p>
+     *
+     * @param entries The number of in-memory pairs after which the pairs
+     *                are spilled to a temporary file.
+     * @return New policy instance.
+     */
+    public RefDiffPolicy spillThreshold(int entries) {
+        return new RefDiffPolicy(kind, limit, entries);
+    }
+
+    @Override public String toString() {
+        return "RefDiffPolicy(" + kind + "; limit=" + limit + ")";
+    }
+}
@@ -0,0 +1,405 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import roadmap.ref.RefDiff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact store of ref diffs.
+ *
+ * <p>Every ref diff is packed into a fixed number of ints: merge base commit
+ * index, head indexes and commit counts. Ref diffs are stored in blocks,
+ * like commits in the commit list, and are materialized to {@link RefDiff}
+ * objects only on iteration.</p>
+ *
+ * <p>Memory stays linear in the number of kept pairs. In addition, once
+ * the number of in-memory pairs exceeds the spill threshold of the policy,
+ * full blocks are moved to a temporary file while commits are walked. Once
+ * the walk is over, {@link #seal()} maps the file into memory read only and
+ * deletes it, so spilled blocks stay out of the heap for good, and are paged
+ * in by the operating system only when iterated, while no file outlives the
+ * walk of a long running process.</p>
+ *
+ * <p>The commit list never reports the same pair twice, so the store does not
+ * need to deduplicate pairs.</p>
+ */
+final class RefDiffStore
+        implements RefDiff.Sink {
+    private static final int BLOCK_BITS = 10;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    // Fields of a packed entry.
+    private static final int MB = 0;
+    private static final int A = 1;
+    private static final int COMMITS_A = 2;
+    private static final int B = 3;
+    private static final int COMMITS_B = 4;
+    /** The number of heaps holding an entry, only for top-per-ref policy. */
+    private static final int HOLDERS = 5;
+    private static final int FIELDS = 6;
+    /** The number of ints of a mapped segment of spilled blocks, a multiple of block size. */
+    private static final int SEGMENT_INTS = 1024 * BLOCK_SIZE * FIELDS;
+    private final CommitList list;
+    private final HeadSet.Builder hsb;
+    private final RefDiffPolicy policy;
+    /** Only for recent policy, indicates whether a head is interesting. */
+    private final boolean[] interesting;
+    /** Only for top-per-ref policy, per head heaps of the closest entries. */
+    private final Heap[] heaps;
+    /** In-memory blocks of packed entries. */
+    private int[][] blocks = new int[0][];
+    /** The number of in-memory entries, including dead ones. */
+    private int size;
+    /** The number of dead entries, only for top-per-ref policy. */
+    private int dead;
+    /** Temporary file with spilled blocks. */
+    private File spill;
+    /** The number of spilled entries, always a multiple of block size. */
+    private int spilled;
+    /** Spilled blocks mapped read only, once sealed. */
+    private IntBuffer[] mapped;
+
+    RefDiffStore(CommitList list, HeadSet.Builder hsb, RefDiffPolicy policy) {
+        this.list = list;
+        this.hsb = hsb;
+        this.policy = policy;
+        switch (policy.kind) {
+            case RECENT:
+                interesting = recent(list, hsb, policy.limit);
+                heaps = null;
+                break;
+            case TOP_PER_REF:
+                interesting = null;
+                heaps = new Heap[hsb.size()];
+                break;
+            default:
+                interesting = null;
+                heaps = null;
+                break;
+        }
+    }
+
+    /** Mark the specified number of the most recent heads as interesting. */
+    private static boolean[] recent(CommitList list, HeadSet.Builder hsb, int limit) {
+        boolean[] interesting = new boolean[hsb.size()];
+        if (limit >= hsb.size()) {
+            Arrays.fill(interesting, true);
+        }
+        else {
+            // Sort heads from most to least recent, the commit list is sorted topologically.
+            long[] order = new long[hsb.size()];
+            for (int n = 0; n < order.length; n++) {
+                order[n] = (long) list.indexOf(hsb.id[n]) << 32 | n;
+            }
+            Arrays.sort(order);
+            for (int n = 0; n < limit; n++) {
+                interesting[(int) order[n]] = true;
+            }
+        }
+        return interesting;
+    }
+
+    @Override public void add(AnyObjectId mergeBase,
+                              AnyObjectId a, int commitsA,
+                              AnyObjectId b, int commitsB) {
+        int ia = head(a);
+        int ib = head(b);
+        if (interesting != null && !(interesting[ia] && interesting[ib])) {
+            return;
+        }
+        int e = append(((Commit) mergeBase).getIndex(), ia, commitsA, ib, commitsB);
+        if (heaps != null) {
+            // New entry is dead until any heap holds it.
+            dead++;
+            int distance = commitsA + commitsB;
+            offer(ia, distance, e);
+            offer(ib, distance, e);
+            if (field(e, HOLDERS) == 0) {
+                // Not close enough for any head, forget it right away.
+                size--;
+                dead--;
+            }
+            else if (dead > BLOCK_SIZE && dead > size / 2) {
+                compact();
+            }
+        }
+        else if (size >= policy.spillThreshold && size >= 2 * BLOCK_SIZE) {
+            spill();
+        }
+    }
+
+    private int head(AnyObjectId id) {
+        if (id instanceof HeadSet.Head) {
+            return ((HeadSet.Head) id).index;
+        }
+        return hsb.indexOf(id);
+    }
+
+    private int append(int mb, int a, int commitsA, int b, int commitsB) {
+        int e = size++;
+        int dirIdx = e >> BLOCK_BITS;
+        if (dirIdx == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length + 32);
+        }
+        if (blocks[dirIdx] == null) {
+            blocks[dirIdx] = new int[BLOCK_SIZE * FIELDS];
+        }
+        int[] block = blocks[dirIdx];
+        int p = (e & BLOCK_MASK) * FIELDS;
+        block[p + MB] = mb;
+        block[p + A] = a;
+        block[p + COMMITS_A] = commitsA;
+        block[p + B] = b;
+        block[p + COMMITS_B] = commitsB;
+        block[p + HOLDERS] = 0;
+        return e;
+    }
+
+    /** @return Field of an entry, spilled entries come first. */
+    private int field(int e, int field) {
+        if (e < spilled) {
+            int p = e * FIELDS + field;
+            return mapped[p / SEGMENT_INTS].get(p % SEGMENT_INTS);
+        }
+        e -= spilled;
+        return blocks[e >> BLOCK_BITS][(e & BLOCK_MASK) * FIELDS + field];
+    }
+
+    private void hold(int e, int delta) {
+        int[] block = blocks[e >> BLOCK_BITS];
+        int p = (e & BLOCK_MASK) * FIELDS + HOLDERS;
+        int holders = block[p] += delta;
+        if (holders == 0) {
+            dead++;
+        }
+        else if (holders == 1 && delta > 0) {
+            dead--;
+        }
+    }
+
+    private void offer(int head, int distance, int e) {
+        if (policy.limit == 0) {
+            return;
+        }
+        Heap heap = heaps[head];
+        if (heap == null) {
+            heaps[head] = heap = new Heap(policy.limit);
+        }
+        if (heap.size < policy.limit) {
+            heap.push(distance, e);
+            hold(e, 1);
+        }
+        else if (distance < heap.distance[0]) {
+            int old = heap.entry[0];
+            heap.replaceTop(distance, e);
+            hold(e, 1);
+            hold(old, -1);
+        }
+    }
+
+    /** Remove dead entries and renumber live ones. */
+    private void compact() {
+        int[] remap = new int[size];
+        int[][] blocks = this.blocks;
+        int size = this.size;
+        this.blocks = new int[0][];
+        this.size = 0;
+        for (int e = 0; e < size; e++) {
+            int[] block = blocks[e >> BLOCK_BITS];
+            int p = (e & BLOCK_MASK) * FIELDS;
+            if (block[p + HOLDERS] > 0) {
+                int n = append(block[p + MB], block[p + A], block[p + COMMITS_A],
+                        block[p + B], block[p + COMMITS_B]);
+                this.blocks[n >> BLOCK_BITS][(n & BLOCK_MASK) * FIELDS + HOLDERS] = block[p + HOLDERS];
+                remap[e] = n;
+            }
+            else {
+                remap[e] = -1;
+            }
+        }
+        for (Heap heap : heaps) {
+            if (heap != null) {
+                for (int n = 0; n < heap.size; n++) {
+                    heap.entry[n] = remap[heap.entry[n]];
+                }
+            }
+        }
+        dead = 0;
+    }
+
+    /** Move all full in-memory blocks to the temporary file. */
+    private void spill() {
+        int full = size >> BLOCK_BITS;
+        try {
+            if (spill == null) {
+                spill = File.createTempFile("refdiff", ".tmp");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE * FIELDS * 4);
+            try (FileOutputStream out = new FileOutputStream(spill, true)) {
+                for (int n = 0; n < full; n++) {
+                    buffer.clear();
+                    buffer.asIntBuffer().put(blocks[n]);
+                    out.write(buffer.array());
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("cannot spill ref diffs", ex);
+        }
+        int[][] tmp = new int[Math.max(32, blocks.length - full)][];
+        System.arraycopy(blocks, full, tmp, 0, blocks.length - full);
+        blocks = tmp;
+        spilled += full << BLOCK_BITS;
+        size -= full << BLOCK_BITS;
+    }
+
+    /**
+     * Map spilled blocks read only, and delete the temporary file.
+     * Called once all ref diffs are added. The mapping outlives the file,
+     * and is released along with this store.
+     */
+    void seal() {
+        if (spill == null) {
+            return;
+        }
+        long ints = (long) spilled * FIELDS;
+        IntBuffer[] segments = new IntBuffer[(int) ((ints + SEGMENT_INTS - 1) / SEGMENT_INTS)];
+        try (RandomAccessFile in = new RandomAccessFile(spill, "r")) {
+            FileChannel channel = in.getChannel();
+            for (int n = 0; n < segments.length; n++) {
+                long from = (long) n * SEGMENT_INTS;
+                long length = Math.min(SEGMENT_INTS, ints - from);
+                segments[n] = channel.map(FileChannel.MapMode.READ_ONLY, from * 4, length * 4).asIntBuffer();
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("cannot map spilled ref diffs", ex);
+        }
+        finally {
+            if (!spill.delete()) {
+                spill.deleteOnExit();
+            }
+            spill = null;
+        }
+        mapped = segments;
+    }
+
+    /** @return The number of kept ref diffs. */
+    int size() {
+        return spilled + size - (heaps != null ? dead : 0);
+    }
+
+    /** @return Unmodifiable set view of the kept ref diffs. */
+    Set<RefDiff> asSet() {
+        return new AbstractSet<RefDiff>() {
+            @Override public int size() {
+                return RefDiffStore.this.size();
+            }
+
+            @Override public Iterator<RefDiff> iterator() {
+                return new IteratorImpl();
+            }
+        };
+    }
+
+    private final class IteratorImpl
+            implements Iterator<RefDiff> {
+        final int total = spilled + size;
+        int e;
+
+        IteratorImpl() {
+            if (spill != null) {
+                throw new IllegalStateException("ref diffs are not sealed");
+            }
+            e = findNext(0);
+        }
+
+        int findNext(int e) {
+            if (heaps != null) {
+                while (e < total && field(e, HOLDERS) == 0) {
+                    e++;
+                }
+            }
+            return e;
+        }
+
+        @Override public boolean hasNext() {
+            return e < total;
+        }
+
+        @Override public RefDiff next() {
+            if (e >= total) {
+                throw new NoSuchElementException();
+            }
+            RefDiff diff = new RefDiff(list.get(field(e, MB)),
+                    hsb.id[field(e, A)], field(e, COMMITS_A),
+                    hsb.id[field(e, B)], field(e, COMMITS_B));
+            e = findNext(e + 1);
+            return diff;
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Bounded max-heap of entries ordered by distance. */
+    private static final class Heap {
+        final int[] distance;
+        final int[] entry;
+        int size;
+
+        Heap(int capacity) {
+            distance = new int[capacity];
+            entry = new int[capacity];
+        }
+
+        void push(int d, int e) {
+            int n = size++;
+            while (n > 0) {
+                int parent = (n - 1) >>> 1;
+                if (distance[parent] >= d) {
+                    break;
+                }
+                distance[n] = distance[parent];
+                entry[n] = entry[parent];
+                n = parent;
+            }
+            distance[n] = d;
+            entry[n] = e;
+        }
+
+        void replaceTop(int d, int e) {
+            int n = 0;
+            while (true) {
+                int child = 2 * n + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distance[child + 1] > distance[child]) {
+                    child++;
+                }
+                if (distance[child] <= d) {
+                    break;
+                }
+                distance[n] = distance[child];
+                entry[n] = entry[child];
+                n = child;
+            }
+            distance[n] = d;
+            entry[n] = e;
+        }
+    }
+}
@@ -3,16 +3,25 @@ package roadmap.graph;
 import roadmap.ref.Ref;
 import roadmap.ref.RefFilter;
 
-import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.Set;
 
-/** Rewrite graph by eliminating uninteresting nodes. */
+/**
+ * Rewrite graph by eliminating uninteresting nodes.
+ *
+ * <p>The rewritten graph consists of fresh copies of the interesting nodes,
+ * and every interesting node is linked to the nearest interesting ancestors
+ * of its uninteresting parents. The source graph is left intact, scratch
+ * state is kept in arrays indexed by node ordinal rather than in node tags,
+ * so a shared frozen graph may be rewritten by several threads at once.</p>
+ */
 abstract class Rewriter {
+    /** Replacement of uninteresting nodes without interesting ancestors. */
+    private static final NodeSet NONE = new NodeSet();
     protected final Graph graph;
 
     Rewriter(Graph graph) {
-        this.graph = graph;
+        this.graph = graph.snapshot();
     }
 
     protected boolean interesting(Graph.Node node) {
@@ -20,101 +29,98 @@ abstract class Rewriter {
     }
 
     /**
-     * Iterate through graph nodes, if an uninteresting node is encountered,
-     * replace it with interesting children of this node.
+     * Contract the graph in a single pass over nodes in reverse topological
+     * order, so parents are always visited before children.
      *
-     * @return New root nodes of the rewritten graph.
+     * <p>Every interesting node is mapped to its copy in the new graph, and
+     * every uninteresting node is mapped to the set of copies it is replaced
+     * with. The replacement of an uninteresting node is computed once from
+     * the replacements of its parents, and is shared with the parent whenever it is
+     * the same, so long chains of uninteresting nodes are neither rescanned
+     * nor copied over and over again.</p>
+     *
+     * @return Root nodes of the rewritten graph.
      */
     NodeSet rewrite() {
-        // Interesting roots.
-        NodeSet in = new NodeSet();
-        // Uninteresting roots.
-        NodeSet un = new NodeSet();
-        // Split roots to interesting and uninteresting ones.
-        for (Graph.Node root : graph.getRoots()) {
-            if (interesting(root)) {
-                in.add(root);
-            }
-            else {
-                un.add(root);
-            }
-        }
-        // Start traversal from interesting roots only.
-        ArrayDeque<Graph.Node> queue = new ArrayDeque<>(in);
-        NodeSet seen = new NodeSet(queue);
-        Graph.Node node;
-        while ((node = queue.poll()) != null) {
-            // New parents for this node.
-            NodeSet parents = new NodeSet();
-            // Iterate over the existing parents.
-            Iterator<Graph.Node> it = node.getParents().iterator();
-            while (it.hasNext()) {
-                Graph.Node parent = it.next();
-                it.remove();
-                if (interesting(parent)) {
-                    // Keep this parent.
-                    parents.add(parent);
-                    if (seen.add(parent)) {
-                        queue.add(parent);
+        Graph.Node[] order = graph.ordinals();
+        int[] parents = graph.parentOrdinals();
+        int[] start = graph.parentStart();
+        Object[] replacements = new Object[order.length];
+        ArrayList<Graph.Node> copies = new ArrayList<>();
+        // Copies linked as a parent of some other copy.
+        NodeSet linked = new NodeSet();
+        for (int n = order.length - 1; n >= 0; n--) {
+            Graph.Node node = order[n];
+            if (interesting(node)) {
+                Graph.Node copy = node.duplicate();
+                for (int p = start[n]; p < start[n + 1]; p++) {
+                    Object replacement = replacements[parents[p]];
+                    if (replacement instanceof Graph.Node) {
+                        copy.link((Graph.Node) replacement);
+                        linked.add((Graph.Node) replacement);
                     }
-                }
-                else {
-                    // Find parent's interesting parents.
-                    NodeSet replaces = new NodeSet();
-                    replace(parent, replaces);
-                    parents.addAll(replaces);
-                    for (Graph.Node replace : replaces) {
-                        if (seen.add(replace)) {
-                            queue.add(replace);
+                    else {
+                        for (Graph.Node replace : (NodeSet) replacement) {
+                            copy.link(replace);
+                            linked.add(replace);
                         }
                     }
                 }
+                replacements[n] = copy;
+                copies.add(copy);
             }
-            // Update parents out of iteration cycle to avoid concurrent modification.
-            for (Graph.Node parent : parents) {
-                node.link(parent);
+            else {
+                replacements[n] = replace(parents, start[n], start[n + 1], replacements);
             }
         }
-        // Replace each uninteresting root with its interesting children.
-        for (Graph.Node root : un) {
-            NodeSet replaces = new NodeSet();
-            replace(root, replaces);
-            for (Graph.Node replace : replaces) {
-                // Set interesting children as roots, but only if not seen previously,
-                // otherwise they are reachable from other interesting roots.
-                // By definition reachable nodes cannot be roots.
-                if (seen.add(replace)) {
-                    in.add(replace);
-                }
+        // Copies nobody links to are roots, including the interesting
+        // ancestors of uninteresting roots.
+        NodeSet roots = new NodeSet();
+        for (Graph.Node copy : copies) {
+            if (!linked.contains(copy)) {
+                roots.add(copy);
             }
         }
-        return in;
+        return roots;
     }
 
-    private void replace(Graph.Node root, NodeSet replaces) {
-        // Initiate search in the sub-graph starting from the
-        // specified child. Stop search as soon as interesting
-        // parents are found.
-        ArrayDeque<Graph.Node> queue = new ArrayDeque<>();
-        queue.add(root);
-        NodeSet seen = new NodeSet(queue);
-        Graph.Node node;
-        while ((node = queue.poll()) != null) {
-            if (queue.isEmpty()) {
-                seen.clear();
+    /**
+     * @param parents      Parent ordinals of the graph.
+     * @param from         Start of the parents of an uninteresting node,
+     *                     which are mapped already.
+     * @param to           End of the parents of the node.
+     * @param replacements Replacements by node ordinal.
+     * @return Copies of the nearest interesting ancestors,
+     * the returned set may be shared and must not be modified.
+     */
+    private static NodeSet replace(int[] parents, int from, int to, Object[] replacements) {
+        NodeSet result = NONE;
+        boolean owned = false;
+        for (int p = from; p < to; p++) {
+            Object replacement = replacements[parents[p]];
+            if (replacement instanceof Graph.Node) {
+                if (!owned) {
+                    result = new NodeSet(result);
+                    owned = true;
+                }
+                result.add((Graph.Node) replacement);
             }
-            for (Graph.Node parent : node.getParents()) {
-                if (interesting(parent)) {
-                    replaces.add(parent);
+            else {
+                NodeSet set = (NodeSet) replacement;
+                if (result == NONE) {
+                    // Share the parent replacement while possible.
+                    result = set;
                 }
-                else {
-                    // Keep this parent.
-                    if (seen.add(parent)) {
-                        queue.add(parent);
+                else if (result != set && !result.containsAll(set)) {
+                    if (!owned) {
+                        result = new NodeSet(result);
+                        owned = true;
                     }
+                    result.addAll(set);
                 }
             }
         }
+        return result;
     }
 
     /** Remove nodes with tags only except those that are merge bases. */
@@ -125,21 +131,15 @@ abstract class Rewriter {
         private final RefFilter filter;
 
         Simplifier(Graph graph, RefFilter filter) {
-            // The current implementation is not particularly efficient
-            // as it makes two copies of the specified graph.
-            // The first copy is needed to clone every node of the graph.
-            // The second copy is needed to correctly fill in the internal set
-            // of all graph nodes.
-            super(graph.copy());
+            super(graph);
             this.filter = filter;
         }
 
         Graph simplify() {
             NodeSet roots = rewrite();
             Graph result = new Graph(graph.getRefs(), roots, graph.getRefDiffs());
-            result.fix();
             new Beautifier(result).beautify();
-            return result;
+            return result.freeze();
         }
 
         @Override protected boolean interesting(Graph.Node node) {
@@ -1,6 +1,7 @@
 package roadmap.graph;
 
 import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -9,13 +10,23 @@ import java.util.Set;
 class TopologicalSortIterator
         implements Iterator<Graph.Node> {
     private final ArrayDeque<Graph.Node> queue = new ArrayDeque<>();
+    /** Nodes of a frozen graph by ordinal, which are sorted already. */
+    private Graph.Node[] ordinals;
+    /** Ordinals to visit, or {@code null} to visit all of them. */
+    private BitSet selected;
+    private int cursor;
     private Graph.Node next;
 
     TopologicalSortIterator(Graph graph) {
-        queue.addAll(graph.getRoots());
-        for (Graph.Node node : graph) {
-            for (Graph.Node parent : node.getParents()) {
-                parent.inDegree++;
+        if (graph.isFrozen()) {
+            ordinals = graph.ordinals();
+        }
+        else {
+            queue.addAll(graph.getRoots());
+            for (Graph.Node node : graph) {
+                for (Graph.Node parent : node.getParents()) {
+                    parent.inDegree++;
+                }
             }
         }
         next = findNext();
@@ -26,12 +37,34 @@ class TopologicalSortIterator
     }
 
     TopologicalSortIterator(Set<? extends Graph.Node> roots) {
-        queue.addAll(roots);
-        BreadthFirstIterator it = new BreadthFirstIterator(roots);
-        while (it.hasNext()) {
-            Graph.Node node = it.next();
-            for (Graph.Node parent : node.getParents()) {
-                parent.inDegree++;
+        Graph frozen = roots.isEmpty() ? null : roots.iterator().next().getFrozen();
+        if (frozen != null) {
+            // Parents follow children in ordinal order, so reachable
+            // nodes are marked in a single pass.
+            ordinals = frozen.ordinals();
+            selected = new BitSet(ordinals.length);
+            int from = ordinals.length;
+            for (Graph.Node root : roots) {
+                selected.set(root.index);
+                from = Math.min(from, root.index);
+            }
+            int[] parents = frozen.parentOrdinals();
+            int[] start = frozen.parentStart();
+            for (int n = selected.nextSetBit(from); n >= 0; n = selected.nextSetBit(n + 1)) {
+                for (int p = start[n]; p < start[n + 1]; p++) {
+                    selected.set(parents[p]);
+                }
+            }
+            cursor = from;
+        }
+        else {
+            queue.addAll(roots);
+            BreadthFirstIterator it = new BreadthFirstIterator(roots);
+            while (it.hasNext()) {
+                Graph.Node node = it.next();
+                for (Graph.Node parent : node.getParents()) {
+                    parent.inDegree++;
+                }
             }
         }
         next = findNext();
@@ -51,6 +84,15 @@ class TopologicalSortIterator
     }
 
     private Graph.Node findNext() {
+        if (ordinals != null) {
+            if (selected != null) {
+                cursor = selected.nextSetBit(cursor);
+            }
+            if (cursor < 0 || cursor >= ordinals.length) {
+                return null;
+            }
+            return ordinals[cursor++];
+        }
         Graph.Node node = queue.poll();
         if (node != null) {
             for (Graph.Node parent : node.getParents()) {
@@ -3,18 +3,23 @@ package roadmap.plot;
 import org.eclipse.jgit.lib.ObjectId;
 import roadmap.graph.Graph;
 import roadmap.ref.Ref;
+import roadmap.util.Workers;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class Layout {
     public interface VertexVisitor {
@@ -32,9 +37,12 @@ public class Layout {
             updateIndexes();
         }
 
-        /** Rearrange vertexes after crossing reduction step. */
+        /**
+         * Rearrange vertexes after crossing reduction step. The sort is
+         * stable, so vertexes at the same position keep their order.
+         */
         void rearrange() {
-            Collections.sort(this, VERTEX_BY_LANE);
+            Collections.sort(this, VERTEX_BY_MEDIAN);
             updateIndexes();
         }
 
@@ -96,11 +104,22 @@ public class Layout {
         }
     }
 
-    /** Graph edge crossing reduction facility. */
+    /**
+     * Graph edge crossing reduction facility.
+     *
+     * <p>Layers are swept back and forth, and every vertex moves to the
+     * median lane of its neighbors on the layer just arranged. Crossings are
+     * counted after every sweep, and sweeps stop once they no longer reduce
+     * the number of crossings, or the work budget of the layout is spent.
+     * The best arrangement seen is kept.</p>
+     */
     private class LayerStack {
-        // TODO calculate sweeps from the number of nodes in the graph?
+        /** The maximum number of sweeps. */
         static final int MAX_SWEEPS = 15;
+        /** The number of sweeps without fewer crossings to give up after. */
+        static final int MAX_IDLE_SWEEPS = 2;
         final Layer[] layers;
+        int vertexes;
         int lanes;
 
         LayerStack(int height) {
@@ -112,13 +131,18 @@ public class Layout {
 
         void add(Vertex v) {
             layers[v.layer].add(v);
+            vertexes++;
         }
 
         void reduceCrossings() {
             for (Layer layer : layers) {
                 layer.init();
             }
-            for (int n = 0; n < MAX_SWEEPS; n++) {
+            long best = countCrossings();
+            Vertex[][] bestOrder = saveOrder();
+            int idle = 0;
+            long work = 0;
+            for (int n = 0; n < MAX_SWEEPS && best > 0 && idle < MAX_IDLE_SWEEPS; n++) {
                 // Left-to-right
                 for (int l = 0; l < layers.length - 1; l++) {
                     crossingReductionStep(l + 1, l);
@@ -127,35 +151,181 @@ public class Layout {
                 for (int l = layers.length - 1; l > 0; l--) {
                     crossingReductionStep(l - 1, l);
                 }
+                long crossings = countCrossings();
+                if (crossings < best) {
+                    best = crossings;
+                    bestOrder = saveOrder();
+                    idle = 0;
+                }
+                else {
+                    idle++;
+                }
+                // Every sweep visits all vertexes, so big stacks get fewer sweeps.
+                work += vertexes;
+                if (work >= budget) {
+                    break;
+                }
             }
+            restoreOrder(bestOrder);
         }
 
         void crossingReductionStep(int layerIndex, int otherLayerIndex) {
             Layer layer = layers[layerIndex];
-            Layer otherLayer = layers[otherLayerIndex];
-            for (Vertex vertex : layer) {
-                ArrayList<Vertex> edges = otherLayerIndex < layerIndex
-                        ? vertex.incoming : vertex.outgoing;
-                vertex.lane = barycenter(otherLayer, edges);
+            if (layer.size() < parallelThreshold) {
+                medians(layer, otherLayerIndex, 0, layer.size());
+            }
+            else {
+                new MedianTask(layer, otherLayerIndex, 0, layer.size()).invoke();
             }
             layer.rearrange();
         }
 
-        int barycenter(Layer otherLayer, ArrayList<Vertex> edges) {
-            int bc = 0;
+        /** Compute median positions of the range of vertexes of a layer. */
+        void medians(Layer layer, int otherLayerIndex, int from, int to) {
+            for (int n = from; n < to; n++) {
+                Vertex vertex = layer.get(n);
+                ArrayList<Vertex> edges = otherLayerIndex < vertex.layer
+                        ? vertex.incoming : vertex.outgoing;
+                vertex.position = median(otherLayerIndex, edges, vertex.lane);
+            }
+        }
+
+        /**
+         * @param otherLayerIndex Layer of neighbors to consider.
+         * @param edges           Neighbor vertexes.
+         * @param lane            Current lane, kept when there are no neighbors.
+         * @return Weighted median lane of the neighbors.
+         */
+        double median(int otherLayerIndex, ArrayList<Vertex> edges, int lane) {
+            int[] lanes = new int[edges.size()];
             int n = 0;
             for (Vertex edge : edges) {
-                for (Vertex other : otherLayer) {
-                    if (edge == other) {
-                        bc += other.lane;
-                        n++;
-                    }
+                // Lanes of the other layer are up to date.
+                if (edge.layer == otherLayerIndex) {
+                    lanes[n++] = edge.lane;
                 }
             }
             if (n == 0) {
-                return 0;
+                return lane;
+            }
+            Arrays.sort(lanes, 0, n);
+            int m = n / 2;
+            if (n % 2 == 1) {
+                return lanes[m];
+            }
+            if (n == 2) {
+                return (lanes[0] + lanes[1]) / 2.0;
+            }
+            // Lean towards the side where neighbors are packed closer.
+            double left = lanes[m - 1] - lanes[0];
+            double right = lanes[n - 1] - lanes[m];
+            if (left + right == 0) {
+                return (lanes[m - 1] + lanes[m]) / 2.0;
+            }
+            return (lanes[m - 1] * right + lanes[m] * left) / (left + right);
+        }
+
+        /** @return The number of edge crossings between all adjacent layers. */
+        long countCrossings() {
+            if (vertexes < parallelThreshold) {
+                return countCrossings(0, layers.length - 1);
+            }
+            return new CrossingsTask(0, layers.length - 1).invoke();
+        }
+
+        /**
+         * @param from The first layer.
+         * @param to   The last layer, exclusive.
+         * @return The number of edge crossings between layers of the range and the next ones.
+         */
+        long countCrossings(int from, int to) {
+            long crossings = 0;
+            for (int l = from; l < to; l++) {
+                // Lanes of edge ends on the next layer, ordered by
+                // lanes on this layer first, and lanes on the next one then.
+                int[] ends = new int[16];
+                int size = 0;
+                for (Vertex vertex : layers[l]) {
+                    int start = size;
+                    for (Vertex outgoing : vertex.outgoing) {
+                        if (outgoing.layer == l + 1) {
+                            if (size == ends.length) {
+                                ends = Arrays.copyOf(ends, size * 2);
+                            }
+                            ends[size++] = outgoing.lane;
+                        }
+                    }
+                    Arrays.sort(ends, start, size);
+                }
+                crossings += Layout.countCrossings(ends, size, layers[l + 1].size());
+            }
+            return crossings;
+        }
+
+        Vertex[][] saveOrder() {
+            Vertex[][] order = new Vertex[layers.length][];
+            for (int l = 0; l < layers.length; l++) {
+                order[l] = layers[l].toArray(new Vertex[layers[l].size()]);
+            }
+            return order;
+        }
+
+        void restoreOrder(Vertex[][] order) {
+            for (int l = 0; l < layers.length; l++) {
+                layers[l].clear();
+                layers[l].addAll(Arrays.asList(order[l]));
+                layers[l].updateIndexes();
+            }
+        }
+
+        /** Computes median positions of a big layer in parallel. */
+        class MedianTask
+                extends RecursiveAction {
+            final Layer layer;
+            final int otherLayerIndex;
+            final int from;
+            final int to;
+
+            MedianTask(Layer layer, int otherLayerIndex, int from, int to) {
+                this.layer = layer;
+                this.otherLayerIndex = otherLayerIndex;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override protected void compute() {
+                if (to - from < Math.max(2, parallelThreshold)) {
+                    medians(layer, otherLayerIndex, from, to);
+                }
+                else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new MedianTask(layer, otherLayerIndex, from, middle),
+                            new MedianTask(layer, otherLayerIndex, middle, to));
+                }
+            }
+        }
+
+        /** Counts crossings between pairs of layers of a big stack in parallel. */
+        class CrossingsTask
+                extends RecursiveTask<Long> {
+            final int from;
+            final int to;
+
+            CrossingsTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override protected Long compute() {
+                if (to - from < 2) {
+                    return countCrossings(from, to);
+                }
+                int middle = (from + to) >>> 1;
+                CrossingsTask left = new CrossingsTask(from, middle);
+                left.fork();
+                long right = new CrossingsTask(middle, to).compute();
+                return left.join() + right;
             }
-            return (int) Math.round((double) bc / n);
         }
 
         /** Beautify graph by attempting to makes lines straighter. */
@@ -175,7 +345,7 @@ public class Layout {
     /** Groups subgraph nodes. */
     public class Partition
             implements Iterable<Vertex> {
-        private final HashSet<Node> roots = new HashSet<>();
+        private final LinkedHashSet<Node> roots = new LinkedHashSet<>();
         private final ArrayList<Vertex> points = new ArrayList<>();
         private final Vertex tail;
         private int layers;
@@ -230,8 +400,6 @@ public class Layout {
             Collections.sort(points, VERTEX_BY_POSITION);
 
             lanes = stack.lanes;
-            totalLayers = Math.max(totalLayers, layers);
-            totalLanes += lanes;
         }
 
         private int splitIntoLayers() {
@@ -284,7 +452,7 @@ public class Layout {
 
         private void insertBends() {
             class Rewriter {
-                HashSet<Vertex> vertexes = new HashSet<>();
+                LinkedHashSet<Vertex> vertexes = new LinkedHashSet<>();
                 Vertex base;
 
                 Rewriter(Vertex base) {
@@ -403,6 +571,8 @@ public class Layout {
         private HashSet<Vertex> set;
         /** Temporary field. */
         private int weight;
+        /** Temporary field, lane to move to during crossing reduction. */
+        private double position;
 
         public List<Vertex> getIncoming() {
             return Collections.unmodifiableList(incoming);
@@ -447,15 +617,33 @@ public class Layout {
         }
     }
 
-    /** Vertex for a commit. */
+    /** Vertex for a commit, or for a run of commits collapsed into one. */
     public class Node
             extends Vertex {
         public final ObjectId id;
         public final Set<Ref> refs;
+        /** Ids of commits of this vertex, newest first, more than one for a run. */
+        public final List<ObjectId> ids;
+
+        private Node(Graph.Node node) {
+            id = node;
+            if (node instanceof Graph.RunNode) {
+                ids = ((Graph.RunNode) node).getIds();
+                LinkedHashSet<Ref> union = new LinkedHashSet<>();
+                for (ObjectId member : ids) {
+                    union.addAll(graph.getRefs().byId(member));
+                }
+                refs = Collections.unmodifiableSet(union);
+            }
+            else {
+                ids = Collections.<ObjectId>singletonList(node);
+                refs = graph.getRefs().byId(node);
+            }
+        }
 
-        private Node(ObjectId id) {
-            this.id = id;
-            refs = graph.getRefs().byId(id);
+        /** @return A value indicating whether this vertex is a run of several commits. */
+        public boolean isRun() {
+            return ids.size() > 1;
         }
 
         @Override public void accept(VertexVisitor visitor) {
@@ -573,6 +761,12 @@ public class Layout {
                     return a.lane - b.lane;
                 }
             };
+    private static final Comparator<Vertex> VERTEX_BY_MEDIAN =
+            new Comparator<Vertex>() {
+                @Override public int compare(Vertex a, Vertex b) {
+                    return Double.compare(a.position, b.position);
+                }
+            };
     private static final Comparator<Vertex> VERTEX_BY_POSITION =
             new Comparator<Vertex>() {
                 @Override public int compare(Vertex a, Vertex b) {
@@ -589,12 +783,48 @@ public class Layout {
                     return a.points.size() - b.points.size();
                 }
             };
+    /** The number of vertexes to split crossing reduction work at. */
+    private static final int PARALLEL_THRESHOLD = 4096;
+    /** Default work budget of crossing reduction per partition, in vertex visits. */
+    public static final long DEFAULT_BUDGET = 5000000;
     private final Graph graph;
     private final ArrayList<Partition> partitions = new ArrayList<>();
+    /** Work budget of crossing reduction per partition, in vertex visits. */
+    private final long budget;
+    private final int parallelThreshold;
     private int totalLayers, totalLanes;
 
     public Layout(Graph graph) {
+        this(graph, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Lay out the graph.
+     *
+     * <p>Crossing reduction takes the most time for big graphs, so every
+     * partition stops sweeping once its sweeps have visited the budgeted
+     * number of vertexes, with the best arrangement found so far. Every
+     * partition gets at least one sweep. The budget counts work rather than
+     * time, so the layout does not depend on how busy the machine is, or on
+     * how partitions are scheduled.</p>
+     *
+     * @param graph  Graph to lay out.
+     * @param budget Work budget of crossing reduction per partition, in vertex visits.
+     */
+    public Layout(Graph graph, long budget) {
+        this(graph, budget, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param graph             Graph to lay out.
+     * @param budget            Work budget of crossing reduction per partition, in vertex visits.
+     * @param parallelThreshold The number of vertexes of a layer or a partition
+     *                          to split crossing reduction work at.
+     */
+    Layout(Graph graph, long budget, int parallelThreshold) {
         this.graph = graph;
+        this.budget = budget;
+        this.parallelThreshold = parallelThreshold;
         HashMap<Graph.Node, Node> mapping = new HashMap<>();
         for (Graph.Node node : graph) {
             mapping.put(node, new Node(node));
@@ -604,19 +834,67 @@ public class Layout {
                 mapping.get(node).outgoing.add(mapping.get(parent));
             }
         }
-        HashSet<Vertex> roots = new HashSet<>();
+        LinkedHashSet<Vertex> roots = new LinkedHashSet<>();
         for (Graph.Node node : graph.getRoots()) {
             roots.add(mapping.get(node));
         }
         for (Vertex root : roots) {
             partition(root);
         }
+        Workers.POOL.invoke(new RecursiveAction() {
+            @Override protected void compute() {
+                ArrayList<RecursiveAction> tasks = new ArrayList<>();
+                for (final Partition partition : partitions) {
+                    tasks.add(new RecursiveAction() {
+                        @Override protected void compute() {
+                            partition.layoutNodes();
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
         for (Partition partition : partitions) {
-            partition.layoutNodes();
+            totalLayers = Math.max(totalLayers, partition.layers);
+            totalLanes += partition.lanes;
         }
         Collections.sort(partitions, PARTITION_BY_SIZE);
     }
 
+    /**
+     * Count inversions in the sequence of edge ends with an accumulator
+     * tree, as suggested by Barth, J&uuml;nger and Mutzel, in
+     * <em>O(e&middot;log(n))</em> time.
+     *
+     * @param ends  Lanes of edge ends on the second layer, ordered by lanes
+     *              on the first layer, and then by lanes on the second one.
+     * @param size  The number of edges.
+     * @param lanes The number of lanes of the second layer.
+     * @return The number of edge crossings between the layers.
+     */
+    static long countCrossings(int[] ends, int size, int lanes) {
+        int first = 1;
+        while (first < lanes) {
+            first *= 2;
+        }
+        int[] tree = new int[2 * first - 1];
+        first--;
+        long crossings = 0;
+        for (int n = 0; n < size; n++) {
+            int index = ends[n] + first;
+            tree[index]++;
+            while (index > 0) {
+                if (index % 2 == 1) {
+                    // Edges ending to the right of this one started earlier.
+                    crossings += tree[index + 1];
+                }
+                index = (index - 1) / 2;
+                tree[index]++;
+            }
+        }
+        return crossings;
+    }
+
     private void partition(Vertex root) {
         // Find partition for this root node.
         Vertex node = root;
@@ -639,6 +917,7 @@ public class Layout {
         }
         // Copy partition onto all root children nodes.
         ArrayDeque<Vertex> queue = new ArrayDeque<>();
+        LinkedHashSet<Partition> others = new LinkedHashSet<>();
         if (root.partition == null) {
             root.partition = partition;
             queue.add(root);
@@ -648,10 +927,27 @@ public class Layout {
                         outgoing.partition = partition;
                         queue.push(outgoing);
                     }
+                    else if (outgoing.partition != partition) {
+                        others.add(outgoing.partition);
+                    }
                 }
             }
         }
         partition.roots.add((Node) root);
+        // Partitions sharing nodes are laid out as one, so that partitions
+        // are independent and can be laid out concurrently.
+        for (Partition other : others) {
+            merge(partition, other);
+        }
+    }
+
+    private void merge(Partition partition, Partition other) {
+        Iterator<Vertex> it = new BreadthFirstIterator(other.roots);
+        while (it.hasNext()) {
+            it.next().partition = partition;
+        }
+        partition.roots.addAll(other.roots);
+        partitions.remove(other);
     }
 
     public Graph getGraph() {
@@ -1,5 +1,6 @@
 package roadmap.plot;
 
+import org.eclipse.jgit.lib.ObjectId;
 import roadmap.ref.Ref;
 
 import java.awt.BasicStroke;
@@ -11,7 +12,10 @@ import java.awt.RenderingHints;
 import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class Plotter {
     private static final Stroke GRID_STROKE = new BasicStroke(1.0f);
@@ -30,6 +34,9 @@ public class Plotter {
     private static final int H_SPACE = 150;
     private static final int V_SPACE = 80;
     private static final int RADIUS = 15;
+    /** SVG has no font metrics, so we assume average character width. */
+    private static final int SVG_CHAR_WIDTH = 7;
+    private static final int SVG_LINE_HEIGHT = 15;
     private final Layout layout;
     private final int gridWidth;
     private final int gridHeight;
@@ -111,6 +118,161 @@ public class Plotter {
         }
     }
 
+    /**
+     * Write the graph as SVG document of the minimal size.
+     *
+     * @param out Output to write the document to.
+     * @throws IOException If I/O error occurs.
+     */
+    public void drawSvg(Appendable out)
+            throws IOException {
+        hScale = 1;
+        vScale = 1;
+        int width = getMinWidth();
+        int height = getMinHeight();
+        out.append("<svg xmlns=\"http://www.w3.org/2000/svg\"")
+                .append(" width=\"").append(String.valueOf(width))
+                .append("\" height=\"").append(String.valueOf(height)).append("\">\n");
+        out.append("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+
+        out.append("<g stroke=\"").append(svgColor(GRID_COLOR)).append("\" stroke-width=\"1\">\n");
+        for (int n = 0; n <= gridHeight; n++) {
+            svgLine(out, colX(0), rowY(n), colX(gridWidth), rowY(n));
+        }
+        for (int n = 0; n <= gridWidth; n++) {
+            svgLine(out, colX(n), rowY(0), colX(n), rowY(gridHeight));
+        }
+        out.append("</g>\n");
+
+        int offset = 0;
+        for (Layout.Partition partition : layout.getPartitions()) {
+            out.append("<g transform=\"translate(").append(String.valueOf(X(0)))
+                    .append(",").append(String.valueOf(Y(offset * vSpace))).append(")\">\n");
+            out.append("<g stroke=\"").append(svgColor(EDGE_COLOR))
+                    .append("\" stroke-width=\"2\" fill=\"none\">\n");
+            for (Layout.Vertex vertex : partition.getPoints()) {
+                svgEdge(out, vertex);
+            }
+            out.append("</g>\n");
+            for (Layout.Vertex vertex : partition.getPoints()) {
+                if (vertex instanceof Layout.Node) {
+                    Layout.Node node = (Layout.Node) vertex;
+                    svgVertex(out, node);
+                    svgLabels(out, node);
+                }
+            }
+            out.append("</g>\n");
+            offset += partition.getLanes();
+        }
+        out.append("</svg>\n");
+    }
+
+    private void svgEdge(Appendable out, Layout.Vertex vertex)
+            throws IOException {
+        int x = colX(vertex.col());
+        int y = rowY(vertex.row());
+        for (Layout.Vertex outgoing : vertex.getOutgoing()) {
+            int tx = colX(outgoing.col());
+            int ty = rowY(outgoing.row());
+            if (vertex.row() == outgoing.row()) {
+                svgLine(out, x, y, tx, ty);
+            }
+            else {
+                out.append("<path d=\"M").append(x + " " + y)
+                        .append(" C").append((tx + 50) + " " + y)
+                        .append(" ").append((x - 50) + " " + ty)
+                        .append(" ").append(tx + " " + ty).append("\"/>\n");
+            }
+        }
+    }
+
+    private void svgVertex(Appendable out, Layout.Node node)
+            throws IOException {
+        int x = colX(node.col());
+        int y = rowY(node.row());
+        Set<Ref> refs = stackedRefs(node);
+        if (refs.isEmpty()) {
+            svgCircle(out, x, y, COMMIT_L_COLOR, COMMIT_D_COLOR);
+        }
+        else {
+            int d = 0;
+            for (Ref ref : refs) {
+                if (ref.isTag()) {
+                    svgCircle(out, x + d, y + d, TAG_L_COLOR, TAG_D_COLOR);
+                }
+                else {
+                    svgCircle(out, x + d, y + d, BRANCH_L_COLOR, BRANCH_D_COLOR);
+                }
+                d = d - 3;
+            }
+        }
+    }
+
+    private void svgCircle(Appendable out, int x, int y, Color fill, Color stroke)
+            throws IOException {
+        out.append("<circle cx=\"").append(String.valueOf(x))
+                .append("\" cy=\"").append(String.valueOf(y))
+                .append("\" r=\"").append(String.valueOf(radius))
+                .append("\" fill=\"").append(svgColor(fill))
+                .append("\" stroke=\"").append(svgColor(stroke)).append("\"/>\n");
+    }
+
+    private void svgLabels(Appendable out, Layout.Node node)
+            throws IOException {
+        int x = colX(node.col());
+        int y = rowY(node.row());
+        int chars = X(hSpace - radius * 2) / SVG_CHAR_WIDTH;
+        String[] labels = nodeLabels(node);
+        for (int n = 0; n < labels.length; n++) {
+            String label = labels[n];
+            if (label.length() > chars) {
+                label = "..." + label.substring(label.length() - chars + 3);
+            }
+            out.append("<text x=\"").append(String.valueOf(x + radius))
+                    .append("\" y=\"").append(String.valueOf(y + radius + (n + 1) * SVG_LINE_HEIGHT))
+                    .append("\" font-family=\"sans-serif\" font-size=\"12\" fill=\"")
+                    .append(svgColor(LABEL_COLOR)).append("\">")
+                    .append(escapeXml(label)).append("</text>\n");
+        }
+    }
+
+    private static void svgLine(Appendable out, int x1, int y1, int x2, int y2)
+            throws IOException {
+        out.append("<line x1=\"").append(String.valueOf(x1))
+                .append("\" y1=\"").append(String.valueOf(y1))
+                .append("\" x2=\"").append(String.valueOf(x2))
+                .append("\" y2=\"").append(String.valueOf(y2)).append("\"/>\n");
+    }
+
+    private static String svgColor(Color color) {
+        return String.format("#%06x", color.getRGB() & 0xFFFFFF);
+    }
+
+    private static String escapeXml(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int n = 0; n < s.length(); n++) {
+            char c = s.charAt(n);
+            switch (c) {
+                case '<':
+                    b.append("&lt;");
+                    break;
+                case '>':
+                    b.append("&gt;");
+                    break;
+                case '&':
+                    b.append("&amp;");
+                    break;
+                case '"':
+                    b.append("&quot;");
+                    break;
+                default:
+                    b.append(c);
+                    break;
+            }
+        }
+        return b.toString();
+    }
+
     private void drawGrid(Graphics2D g) {
         g.setColor(GRID_COLOR);
         g.setStroke(GRID_STROKE);
@@ -148,7 +310,8 @@ public class Plotter {
     private void drawVertex(Graphics2D g, Layout.Node node) {
         int x = colX(node.col());
         int y = rowY(node.row());
-        if (node.refs.isEmpty()) {
+        Set<Ref> refs = stackedRefs(node);
+        if (refs.isEmpty()) {
             g.setColor(COMMIT_L_COLOR);
             g.fillOval(x - radius, y - radius, radius * 2, radius * 2);
             g.setColor(COMMIT_D_COLOR);
@@ -156,7 +319,7 @@ public class Plotter {
         }
         else {
             int d = 0;
-            for (Ref ref : node.refs) {
+            for (Ref ref : refs) {
                 if (ref.isTag()) {
                     g.setColor(TAG_L_COLOR);
                     g.fillOval(x - radius + d, y - radius + d, radius * 2, radius * 2);
@@ -187,17 +350,64 @@ public class Plotter {
         }
     }
 
-    private static String[] nodeLabels(Layout.Node node) {
+    private String[] nodeLabels(Layout.Node node) {
         ArrayList<String> l = new ArrayList<>();
-        if (node.refs.isEmpty()) {
-            l.add(node.id.getName().substring(0, 8));
+        if (node.isRun()) {
+            // Runs may have thousands of refs, only label the ends.
+            List<ObjectId> ids = node.ids;
+            addLabels(l, ids.get(0), layout.getGraph().getRefs().byId(ids.get(0)));
+            l.add("... " + ids.size() + " commits");
+            ObjectId last = ids.get(ids.size() - 1);
+            addLabels(l, last, layout.getGraph().getRefs().byId(last));
+        }
+        else {
+            addLabels(l, node.id, node.refs);
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    private static void addLabels(List<String> l, ObjectId id, Set<Ref> refs) {
+        if (refs.isEmpty()) {
+            l.add(id.getName().substring(0, 8));
         }
         else {
-            for (Ref ref : node.refs) {
+            for (Ref ref : refs) {
                 l.add(ref.getSuffix());
             }
         }
-        return l.toArray(new String[l.size()]);
+    }
+
+    /** @return Refs to draw a circle for, only those of the newest commit of a run. */
+    private Set<Ref> stackedRefs(Layout.Node node) {
+        if (node.isRun()) {
+            return layout.getGraph().getRefs().byId(node.id);
+        }
+        return node.refs;
+    }
+
+    /**
+     * Find the commit vertex at the specified point of the area
+     * last drawn with {@link #draw(Graphics2D, int, int)}.
+     *
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @return Vertex under the point, or {@code null} if there is none.
+     */
+    public Layout.Node vertexAt(int x, int y) {
+        int offset = 0;
+        for (Layout.Partition partition : layout.getPartitions()) {
+            for (Layout.Vertex vertex : partition.getPoints()) {
+                if (vertex instanceof Layout.Node) {
+                    int dx = x - colX(vertex.col());
+                    int dy = y - Y(offset * vSpace) - rowY(vertex.row());
+                    if (dx * dx + dy * dy <= radius * radius) {
+                        return (Layout.Node) vertex;
+                    }
+                }
+            }
+            offset += partition.getLanes();
+        }
+        return null;
     }
 
     private static String fitLabel(Graphics2D g, FontMetrics fm, String label, int width) {
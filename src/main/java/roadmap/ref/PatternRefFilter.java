@@ -0,0 +1,240 @@
+package roadmap.ref;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Ref filter compiled from a list of include and exclude patterns.
+ *
+ * <p>Pattern syntax:</p>
+ * <ul>
+ * <li><em>refs/heads/master</em> -- matches exactly this ref name.</li>
+ * <li><em>refs/heads/release/*</em> -- glob, where <em>*</em> matches any
+ * characters except slash, <em>**</em> matches any characters including slash,
+ * and <em>?</em> matches any single character except slash.</li>
+ * <li><em>re:refs/tags/v\d+\.\d+</em> -- regular expression that must match
+ * the whole ref name.</li>
+ * <li><em>!refs/tags/nightly-*</em> -- any of the above prefixed with
+ * <em>!</em> excludes matching refs.</li>
+ * </ul>
+ *
+ * <p>A ref is accepted if it matches any include pattern, or if there are no
+ * include patterns at all, and does not match any exclude pattern.</p>
+ *
+ * <p>Patterns are stored in a trie by their literal prefixes, the part before
+ * the first wildcard. Matching a ref name is a single walk down the trie,
+ * and only the patterns whose prefixes match the name are tested further.</p>
+ */
+public final class PatternRefFilter
+        implements RefFilter {
+    private static final String REGEX = "re:";
+
+    /** Compiled pattern. */
+    private static final class Rule {
+        final boolean exclude;
+        final String prefix;
+        /** Matches the rest of the name after the prefix, or {@code null} for literals. */
+        final Pattern rest;
+
+        Rule(boolean exclude, String prefix, Pattern rest) {
+            this.exclude = exclude;
+            this.prefix = prefix;
+            this.rest = rest;
+        }
+
+        boolean matches(String name) {
+            if (rest == null) {
+                return name.length() == prefix.length();
+            }
+            return rest.matcher(name).region(prefix.length(), name.length()).matches();
+        }
+    }
+
+    /** Trie node keyed by characters of literal prefixes. */
+    private static final class Node {
+        final HashMap<Character, Node> children = new HashMap<>(2);
+        final ArrayList<Rule> rules = new ArrayList<>(1);
+    }
+
+    private final List<String> patterns;
+    private final Node root = new Node();
+    private final boolean hasIncludes;
+    private final List<String> prefixes;
+
+    private PatternRefFilter(List<String> patterns) {
+        this.patterns = patterns;
+        boolean hasIncludes = false;
+        ArrayList<String> includePrefixes = new ArrayList<>();
+        for (String pattern : patterns) {
+            Rule rule = compile(pattern);
+            Node node = root;
+            for (int n = 0; n < rule.prefix.length(); n++) {
+                Character c = rule.prefix.charAt(n);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    node.children.put(c, child = new Node());
+                }
+                node = child;
+            }
+            node.rules.add(rule);
+            if (!rule.exclude) {
+                hasIncludes = true;
+                includePrefixes.add(rule.prefix.substring(0, rule.prefix.lastIndexOf('/') + 1));
+            }
+        }
+        this.hasIncludes = hasIncludes;
+        prefixes = hasIncludes ? minimize(includePrefixes) : Collections.singletonList("");
+    }
+
+    /**
+     * Compile the specified patterns.
+     *
+     * @param patterns Include and exclude patterns.
+     * @return Compiled ref filter.
+     * @throws IllegalArgumentException If any pattern is malformed.
+     */
+    public static PatternRefFilter compile(String... patterns) {
+        return compile(Arrays.asList(patterns));
+    }
+
+    /**
+     * Compile the specified patterns.
+     *
+     * @param patterns Include and exclude patterns.
+     * @return Compiled ref filter.
+     * @throws IllegalArgumentException If any pattern is malformed.
+     */
+    public static PatternRefFilter compile(Collection<String> patterns) {
+        return new PatternRefFilter(Collections.unmodifiableList(new ArrayList<>(patterns)));
+    }
+
+    /** @return Source patterns this filter was compiled from. */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Get ref name prefixes which every accepted ref starts with.
+     *
+     * <p>Prefixes always end with slash, so that refs can be loaded by
+     * prefix from a ref database. Prefixes do not overlap. If include
+     * patterns do not restrict names, the only prefix is empty string.</p>
+     *
+     * @return List of ref name prefixes.
+     */
+    public List<String> getPrefixes() {
+        return prefixes;
+    }
+
+    @Override public boolean accept(Ref ref) {
+        String name = ref.getName();
+        boolean included = !hasIncludes;
+        Node node = root;
+        int n = 0;
+        while (true) {
+            for (Rule rule : node.rules) {
+                // Once included, only exclude rules may change the result.
+                if ((rule.exclude || !included) && rule.matches(name)) {
+                    if (rule.exclude) {
+                        return false;
+                    }
+                    included = true;
+                }
+            }
+            if (n == name.length()) {
+                break;
+            }
+            node = node.children.get(name.charAt(n++));
+            if (node == null) {
+                break;
+            }
+        }
+        return included;
+    }
+
+    @Override public String toString() {
+        return "PatternRefFilter(" + patterns + ")";
+    }
+
+    private static Rule compile(String source) {
+        String pattern = source;
+        boolean exclude = false;
+        if (pattern.startsWith("!")) {
+            exclude = true;
+            pattern = pattern.substring(1);
+        }
+        if (pattern.startsWith(REGEX)) {
+            try {
+                return new Rule(exclude, "", Pattern.compile(pattern.substring(REGEX.length())));
+            }
+            catch (PatternSyntaxException ex) {
+                throw new IllegalArgumentException("malformed pattern: " + source, ex);
+            }
+        }
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("empty pattern: " + source);
+        }
+        int wildcard = 0;
+        while (wildcard < pattern.length() && !isWildcard(pattern.charAt(wildcard))) {
+            wildcard++;
+        }
+        if (wildcard == pattern.length()) {
+            return new Rule(exclude, pattern, null);
+        }
+        return new Rule(exclude, pattern.substring(0, wildcard),
+                Pattern.compile(globToRegex(pattern.substring(wildcard))));
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '?';
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int n = 0;
+        while (n < glob.length()) {
+            char c = glob.charAt(n);
+            if (c == '*') {
+                if (n + 1 < glob.length() && glob.charAt(n + 1) == '*') {
+                    regex.append(".*");
+                    n += 2;
+                    continue;
+                }
+                regex.append("[^/]*");
+            }
+            else if (c == '?') {
+                regex.append("[^/]");
+            }
+            else {
+                int end = n;
+                while (end < glob.length() && !isWildcard(glob.charAt(end))) {
+                    end++;
+                }
+                regex.append(Pattern.quote(glob.substring(n, end)));
+                n = end;
+                continue;
+            }
+            n++;
+        }
+        return regex.toString();
+    }
+
+    /** Remove prefixes covered by shorter prefixes. */
+    private static List<String> minimize(List<String> prefixes) {
+        TreeSet<String> sorted = new TreeSet<>(prefixes);
+        ArrayList<String> result = new ArrayList<>();
+        for (String prefix : sorted) {
+            if (result.isEmpty() || !prefix.startsWith(result.get(result.size() - 1))) {
+                result.add(prefix);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -65,24 +65,11 @@ import static org.eclipse.jgit.lib.Constants.R_TAGS;
 public final class Ref
         implements Comparable<Ref> {
     private final String name;
-    private final String suffix;
     private final ObjectId id;
 
     public Ref(String name, ObjectId id) {
         this.name = Objects.requireNonNull(name);
         this.id = Objects.requireNonNull(id).copy();
-        if (isLocal(name)) {
-            this.suffix = name.substring(R_HEADS.length());
-        }
-        else if (isRemote(name)) {
-            this.suffix = name.substring(R_REMOTES.length());
-        }
-        else if (isTag(name)) {
-            this.suffix = name.substring(R_TAGS.length());
-        }
-        else {
-            this.suffix = name;
-        }
     }
 
     /** @return Ref name. */
@@ -92,7 +79,16 @@ public final class Ref
 
     /** @return Ref name suffix without the prefix such as <em>refs/heads/</em>. */
     public String getSuffix() {
-        return suffix;
+        if (isLocal(name)) {
+            return name.substring(R_HEADS.length());
+        }
+        if (isRemote(name)) {
+            return name.substring(R_REMOTES.length());
+        }
+        if (isTag(name)) {
+            return name.substring(R_TAGS.length());
+        }
+        return name;
     }
 
     /**
@@ -37,5 +37,10 @@ public interface RefFilter {
         }
     };
 
+    /**
+     * @param ref A ref to test. When loading refs from a repository, the ref
+     *            id may be an annotated tag id rather than the peeled commit id.
+     * @return Value indicating whether to include the ref.
+     */
     boolean accept(Ref ref);
 }
@@ -2,28 +2,44 @@ package roadmap.ref;
 
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import static java.util.Collections.emptyMap;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
 import static java.util.Collections.unmodifiableList;
-import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
+import static org.eclipse.jgit.lib.Constants.CHARSET;
 import static org.eclipse.jgit.lib.Constants.HEAD;
 import static org.eclipse.jgit.lib.Constants.MASTER;
 import static org.eclipse.jgit.lib.Constants.R_HEADS;
@@ -33,6 +49,12 @@ import static org.eclipse.jgit.lib.Constants.R_HEADS;
  *
  * <p>We are only interested in refs that point to commits.
  * Refs pointing to trees and blobs will be excluded from the set.</p>
+ *
+ * <p>Repositories may have hundreds of thousands of refs, so the set
+ * stores them compactly: names are sorted and front coded, ids are packed
+ * into an int array, and refs are grouped by id with an array of indexes
+ * sorted by id. Ref objects are made on demand, sets of refs by id are
+ * made once per id and shared.</p>
  */
 public final class RefSet
         implements Iterable<Ref> {
@@ -41,48 +63,93 @@ public final class RefSet
         return from(db, RefFilter.ANY);
     }
 
+    /**
+     * Load refs from a repository.
+     *
+     * <p>If the filter is {@link PatternRefFilter}, only refs with the filter
+     * name prefixes are read from the ref database.</p>
+     *
+     * <p>The filter is applied to ref names before any object is loaded,
+     * refs passed to the filter may carry ids of annotated tags rather than
+     * peeled commit ids. Peeled ids are taken from <em>packed-refs</em>
+     * where present. The remaining refs are checked to point to commits,
+     * in parallel if there are many of them.</p>
+     *
+     * @param db     Repository to load refs from.
+     * @param filter Filters refs by name.
+     * @return Set of refs that point to commits.
+     * @throws IOException If I/O error occurs.
+     */
     public static RefSet from(Repository db, RefFilter filter)
             throws IOException {
-        return build(new RevWalk(db), db.getAllRefs(), filter);
+        Map<String, org.eclipse.jgit.lib.Ref> refs = getRefs(db, filter);
+        HashMap<String, Ref> map = new HashMap<>(refs.size());
+        Ref defaultBranch = init(db, refs, map, filter);
+        return new RefSet(map.values(), defaultBranch);
     }
 
     public static final Ref EMPTY_MASTER = new Ref(R_HEADS + MASTER, ObjectId.zeroId());
     /** Empty refs collection. */
-    public static final RefSet EMPTY = new RefSet();
-    /** All refs by name. */
-    private final Map<String, Ref> byName;
-    /** All refs grouped by object id. */
-    private final Map<AnyObjectId, Set<Ref>> byId;
+    public static final RefSet EMPTY = new RefSet(Collections.<Ref>emptyList(), EMPTY_MASTER);
+    /** The number of names in a front coded block. */
+    private static final int BLOCK_SIZE = 16;
+    private static final int ID_WORDS = Constants.OBJECT_ID_LENGTH / 4;
+    /** The number of refs. */
+    private final int size;
+    /**
+     * Ref names sorted and front coded in blocks. The first name of a block
+     * is stored as is, every other name as the length of the prefix shared
+     * with the previous name and the rest of the name.
+     */
+    private final byte[] names;
+    /** Offsets of blocks in the names array. */
+    private final int[] blocks;
+    /** Ref ids in the name order. */
+    private final int[] ids;
+    /** Ref indexes sorted by id, to group refs by id. */
+    private final int[] byId;
+    /**
+     * Ref sets by id, made on demand and kept so that every call to
+     * {@link #byId(AnyObjectId)} returns the same refs. Indexed by the
+     * position of the first ref of a group in {@link #byId}.
+     */
+    private final AtomicReferenceArray<Set<Ref>> groups;
     /** The default branch. */
     private final Ref defaultBranch;
 
-    /** Create empty ref set instance. */
-    private RefSet() {
-        byName = emptyMap();
-        byId = emptyMap();
-        defaultBranch = EMPTY_MASTER;
-    }
-
     private RefSet(Collection<Ref> refs, Ref defaultBranch) {
-        HashMap<String, Ref> byName = new HashMap<>();
-        HashMap<AnyObjectId, Set<Ref>> byId = new HashMap<>();
-
-        for (Ref ref : refs) {
-            byName.put(ref.getName(), ref);
-
-            Set<Ref> set = byId.get(ref.getId());
-            if (set == null) {
-                set = new HashSet<>();
+        Ref[] sorted = refs.toArray(new Ref[refs.size()]);
+        Arrays.sort(sorted);
+        size = sorted.length;
+        ids = new int[size * ID_WORDS];
+        blocks = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] prev = null;
+        for (int n = 0; n < size; n++) {
+            byte[] name = sorted[n].getName().getBytes(CHARSET);
+            int shared = 0;
+            if (n % BLOCK_SIZE == 0) {
+                blocks[n / BLOCK_SIZE] = out.size();
             }
             else {
-                set = new HashSet<>(set);
+                int l = Math.min(prev.length, name.length);
+                while (shared < l && prev[shared] == name[shared]) {
+                    shared++;
+                }
+                writeInt(out, shared);
             }
-            set.add(ref);
-            byId.put(ref.getId(), unmodifiableSet(set));
+            writeInt(out, name.length - shared);
+            out.write(name, shared, name.length - shared);
+            prev = name;
+            sorted[n].getId().copyRawTo(ids, n * ID_WORDS);
         }
-
-        this.byName = unmodifiableMap(byName);
-        this.byId = unmodifiableMap(byId);
+        names = out.toByteArray();
+        byId = new int[size];
+        for (int n = 0; n < size; n++) {
+            byId[n] = n;
+        }
+        sortById(byId, new int[size], 0, size);
+        groups = new AtomicReferenceArray<>(size);
         this.defaultBranch = defaultBranch;
     }
 
@@ -100,7 +167,122 @@ public final class RefSet
 
     /** @return All refs with branches and tags. */
     public Collection<Ref> all() {
-        return byName.values();
+        return new AbstractCollection<Ref>() {
+            @Override public int size() {
+                return size;
+            }
+
+            @Override public Iterator<Ref> iterator() {
+                return RefSet.this.iterator();
+            }
+
+            @Override public boolean contains(Object o) {
+                if (!(o instanceof Ref)) {
+                    return false;
+                }
+                Ref ref = (Ref) o;
+                int index = indexOf(ref.getName());
+                return index >= 0 && ref.getId().compareTo(ids, index * ID_WORDS) == 0;
+            }
+        };
+    }
+
+    /**
+     * Combine refs of several sets, like sets loaded with different filters.
+     * Refs with the same name must point to the same commit.
+     *
+     * @param other Refs to add.
+     * @return New ref set with the default branch of this set.
+     * @throws IllegalArgumentException If a ref points to different commits.
+     */
+    public RefSet union(RefSet other) {
+        HashMap<String, Ref> map = new HashMap<>(size + other.size);
+        for (Ref ref : this) {
+            map.put(ref.getName(), ref);
+        }
+        for (Ref ref : other) {
+            Ref prev = map.put(ref.getName(), ref);
+            if (prev != null && !prev.equals(ref)) {
+                throw new IllegalArgumentException("ref " + ref.getName() + " differs");
+            }
+        }
+        return new RefSet(map.values(), defaultBranch);
+    }
+
+    /**
+     * Select refs whose tips are among the specified number of the most
+     * recently committed tips.
+     *
+     * <p>Only tip commit headers are read, so this is cheap compared to
+     * walking the history, and lets the commit list skip stale refs
+     * entirely. The default branch is always kept.</p>
+     *
+     * @param reader Object reader to read tip commits.
+     * @param tips   Maximum number of distinct tips to keep.
+     * @return New ref set.
+     * @throws IOException If I/O error occurs.
+     */
+    public RefSet mostRecent(ObjectReader reader, int tips)
+            throws IOException {
+        final Map<ObjectId, Integer> times = commitTimes(reader);
+        ArrayList<ObjectId> ids = new ArrayList<>(times.keySet());
+        Collections.sort(ids, new Comparator<ObjectId>() {
+            @Override public int compare(ObjectId o1, ObjectId o2) {
+                int r = Integer.compare(times.get(o2), times.get(o1));
+                if (r == 0) {
+                    r = o1.compareTo(o2);
+                }
+                return r;
+            }
+        });
+        HashSet<ObjectId> keep = new HashSet<>(ids.subList(0, Math.min(tips, ids.size())));
+        return retain(keep);
+    }
+
+    /**
+     * Select refs whose tips were committed at or after the specified time.
+     * The default branch is always kept.
+     *
+     * @param reader Object reader to read tip commits.
+     * @param time   Commit time in seconds since the epoch.
+     * @return New ref set.
+     * @throws IOException If I/O error occurs.
+     */
+    public RefSet newerThan(ObjectReader reader, int time)
+            throws IOException {
+        HashSet<ObjectId> keep = new HashSet<>();
+        for (Map.Entry<ObjectId, Integer> entry : commitTimes(reader).entrySet()) {
+            if (entry.getValue() >= time) {
+                keep.add(entry.getKey());
+            }
+        }
+        return retain(keep);
+    }
+
+    private Map<ObjectId, Integer> commitTimes(ObjectReader reader)
+            throws IOException {
+        HashMap<ObjectId, Integer> times = new HashMap<>();
+        RevWalk revWalk = new RevWalk(reader);
+        revWalk.setRetainBody(false);
+        try {
+            for (ObjectId id : roots()) {
+                times.put(id, revWalk.parseCommit(id).getCommitTime());
+            }
+        }
+        finally {
+            revWalk.dispose();
+        }
+        return times;
+    }
+
+    private RefSet retain(Set<ObjectId> ids) {
+        ArrayList<Ref> refs = new ArrayList<>();
+        for (Ref ref : this) {
+            if (ids.contains(ref.getId()) || ref.equals(defaultBranch)) {
+                refs.add(ref);
+            }
+        }
+        return new RefSet(refs, defaultBranch);
     }
 
     /**
@@ -111,11 +293,11 @@ public final class RefSet
      * @throws RefNotFoundException If ref with that name does not exist.
      */
     public Ref byName(String name) {
-        Ref ref = byName.get(Objects.requireNonNull(name));
-        if (ref == null) {
+        int index = indexOf(Objects.requireNonNull(name));
+        if (index < 0) {
             throw new RefNotFoundException(name);
         }
-        return ref;
+        return new Ref(name, id(index));
     }
 
     /**
@@ -125,18 +307,55 @@ public final class RefSet
      * @return Unmodifiable set of refs for the specified id, or empty set if not found.
      */
     public Set<Ref> byId(AnyObjectId id) {
-        Set<Ref> set = byId.get(Objects.requireNonNull(id));
-        if (set == null) {
-            set = emptySet();
+        Objects.requireNonNull(id);
+        // Find the first ref with the id.
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (id.compareTo(ids, byId[mid] * ID_WORDS) > 0) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
         }
-        return set;
+        if (lo == size || id.compareTo(ids, byId[lo] * ID_WORDS) != 0) {
+            return emptySet();
+        }
+        Set<Ref> group = groups.get(lo);
+        if (group == null) {
+            group = group(lo);
+            if (!groups.compareAndSet(lo, null, group)) {
+                group = groups.get(lo);
+            }
+        }
+        return group;
+    }
+
+    private Set<Ref> group(int first) {
+        int end = first + 1;
+        while (end < size && compareIds(byId[first], byId[end]) == 0) {
+            end++;
+        }
+        ObjectId id = id(byId[first]);
+        if (end - first == 1) {
+            return singleton(new Ref(name(byId[first]), id));
+        }
+        HashSet<Ref> set = new HashSet<>();
+        for (int n = first; n < end; n++) {
+            set.add(new Ref(name(byId[n]), id));
+        }
+        return unmodifiableSet(set);
     }
 
     /** @return Set of all root commit ids. */
     public Set<ObjectId> roots() {
-        HashSet<ObjectId> tips = new HashSet<>(byName.size());
-        for (Ref ref : byName.values()) {
-            tips.add(ref.getId());
+        HashSet<ObjectId> tips = new HashSet<>(size);
+        for (int n = 0; n < size; n++) {
+            if (n == 0 || compareIds(byId[n], byId[n - 1]) != 0) {
+                tips.add(id(byId[n]));
+            }
         }
         return unmodifiableSet(tips);
     }
@@ -148,25 +367,39 @@ public final class RefSet
      * @return Refs with the specified names.
      */
     public Collection<Ref> selectAll(Collection<String> names) {
-        return select(names, byName);
-    }
-
-    private static Collection<Ref> select(Collection<String> names, Map<String, Ref> refs) {
-        if (refs.isEmpty()) {
+        if (size == 0) {
             return emptySet();
         }
         ArrayList<Ref> res = new ArrayList<>();
         for (String name : names) {
-            Ref ref = refs.get(name);
-            if (ref != null) {
-                res.add(ref);
+            int index = indexOf(name);
+            if (index >= 0) {
+                res.add(new Ref(name, id(index)));
             }
         }
         return unmodifiableList(res);
     }
 
     @Override public Iterator<Ref> iterator() {
-        return byName.values().iterator();
+        return new Iterator<Ref>() {
+            final Cursor cursor = new Cursor();
+
+            @Override public boolean hasNext() {
+                return cursor.index + 1 < size;
+            }
+
+            @Override public Ref next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                cursor.next();
+                return new Ref(cursor.name(), id(cursor.index));
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     @Override public boolean equals(Object o) {
@@ -177,40 +410,201 @@ public final class RefSet
             return false;
         }
         RefSet that = (RefSet) o;
-        return byName.equals(that.byName) && Objects.equals(defaultBranch, that.defaultBranch);
+        return Arrays.equals(names, that.names)
+                && Arrays.equals(ids, that.ids)
+                && Objects.equals(defaultBranch, that.defaultBranch);
     }
 
     @Override public int hashCode() {
-        return 31 * byName.hashCode() + Objects.hashCode(defaultBranch);
+        return 31 * (31 * Arrays.hashCode(names) + Arrays.hashCode(ids)) + Objects.hashCode(defaultBranch);
     }
 
-    private static RefSet build(RevWalk revWalk,
-                                Map<String, org.eclipse.jgit.lib.Ref> refs,
-                                RefFilter filter)
+    /** Compare ids of refs with the specified indexes as unsigned words. */
+    private int compareIds(int a, int b) {
+        for (int w = 0; w < ID_WORDS; w++) {
+            int x = ids[a * ID_WORDS + w] ^ Integer.MIN_VALUE;
+            int y = ids[b * ID_WORDS + w] ^ Integer.MIN_VALUE;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Merge sort ref indexes by id. Stable, so refs with the same id stay
+     * in the name order.
+     */
+    private void sortById(int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortById(order, tmp, from, mid);
+        sortById(order, tmp, mid, to);
+        if (compareIds(order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int n = from; n < to; n++) {
+            if (j == to || i < mid && compareIds(tmp[i], tmp[j]) <= 0) {
+                order[n] = tmp[i++];
+            }
+            else {
+                order[n] = tmp[j++];
+            }
+        }
+    }
+
+    private ObjectId id(int index) {
+        return ObjectId.fromRaw(ids, index * ID_WORDS);
+    }
+
+    private String name(int index) {
+        Cursor cursor = new Cursor();
+        cursor.seek(index / BLOCK_SIZE);
+        while (cursor.index < index) {
+            cursor.next();
+        }
+        return cursor.name();
+    }
+
+    /**
+     * Find ref by name.
+     *
+     * @param name Ref name.
+     * @return Ref index, or -1 if not found.
+     */
+    private int indexOf(String name) {
+        if (size == 0) {
+            return -1;
+        }
+        // Find the last block whose first name is not greater than the name.
+        Cursor cursor = new Cursor();
+        int lo = 0;
+        int hi = blocks.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            cursor.seek(mid);
+            if (cursor.name().compareTo(name) <= 0) {
+                lo = mid;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        cursor.seek(lo);
+        while (true) {
+            int r = cursor.name().compareTo(name);
+            if (r == 0) {
+                return cursor.index;
+            }
+            if (r > 0 || cursor.index + 1 == size || (cursor.index + 1) % BLOCK_SIZE == 0) {
+                return -1;
+            }
+            cursor.next();
+        }
+    }
+
+    /** Decodes front coded names one by one. */
+    private final class Cursor {
+        byte[] buffer = new byte[64];
+        int length;
+        int index = -1;
+        int ptr;
+
+        /** Position at the first name of the specified block. */
+        void seek(int block) {
+            index = block * BLOCK_SIZE - 1;
+            ptr = blocks[block];
+            length = 0;
+            next();
+        }
+
+        void next() {
+            index++;
+            int shared = 0;
+            if (index % BLOCK_SIZE != 0) {
+                shared = readInt();
+            }
+            int rest = readInt();
+            length = shared + rest;
+            if (length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+            }
+            System.arraycopy(names, ptr, buffer, shared, rest);
+            ptr += rest;
+        }
+
+        String name() {
+            return new String(buffer, 0, length, CHARSET);
+        }
+
+        int readInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = names[ptr++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write(0x80 | value & 0x7f);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static Map<String, org.eclipse.jgit.lib.Ref> getRefs(Repository db, RefFilter filter)
             throws IOException {
-        HashMap<String, Ref> map = new HashMap<>(refs.size());
-        Ref defaultBranch = init(revWalk, refs, map, filter);
-        return new RefSet(map.values(), defaultBranch);
+        if (filter instanceof PatternRefFilter) {
+            List<String> prefixes = ((PatternRefFilter) filter).getPrefixes();
+            if (!prefixes.contains("")) {
+                HashMap<String, org.eclipse.jgit.lib.Ref> refs = new HashMap<>();
+                for (String prefix : prefixes) {
+                    for (org.eclipse.jgit.lib.Ref ref : db.getRefDatabase().getRefs(prefix).values()) {
+                        refs.put(ref.getName(), ref);
+                    }
+                }
+                org.eclipse.jgit.lib.Ref head = db.exactRef(HEAD);
+                if (head != null) {
+                    refs.put(HEAD, head);
+                }
+                return refs;
+            }
+        }
+        return db.getAllRefs();
     }
 
-    private static Ref init(RevWalk revWalk,
+    /** The number of refs to check to use multiple threads. */
+    private static final int PARALLEL_THRESHOLD = 1000;
+
+    private static Ref init(Repository db,
                             Map<String, org.eclipse.jgit.lib.Ref> refs,
                             Map<String, Ref> map,
                             RefFilter filter)
             throws IOException {
+        ArrayList<org.eclipse.jgit.lib.Ref> candidates = new ArrayList<>();
         for (org.eclipse.jgit.lib.Ref gitRef : refs.values()) {
             String name = gitRef.getName();
             ObjectId id = gitRef.getObjectId();
-            if (Ref.isBranch(name) || Ref.isTag(name)) {
-                try {
-                    Ref ref = makeRef(revWalk, name, id);
-                    if (ref != null && filter.accept(ref)) {
-                        map.put(ref.getName(), ref);
-                    }
-                }
-                catch (MissingObjectException ex) {
-                    // Ref references missing object.
-                }
+            if (id != null && (Ref.isBranch(name) || Ref.isTag(name))
+                    && filter.accept(new Ref(name, id))) {
+                candidates.add(gitRef);
+            }
+        }
+        for (Ref ref : check(db, candidates)) {
+            if (ref != null) {
+                map.put(ref.getName(), ref);
             }
         }
         org.eclipse.jgit.lib.Ref gitRef = refs.get(HEAD);
@@ -225,6 +619,89 @@ public final class RefSet
         return EMPTY_MASTER;
     }
 
+    /**
+     * Make refs pointing to commits, using multiple threads with
+     * own object readers if there are many refs.
+     *
+     * @return Array of refs, with {@code null} elements for refs
+     * that point to missing objects, trees or blobs.
+     */
+    private static Ref[] check(final Repository db, final List<org.eclipse.jgit.lib.Ref> refs)
+            throws IOException {
+        final Ref[] result = new Ref[refs.size()];
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                refs.size() / PARALLEL_THRESHOLD);
+        if (threads <= 1) {
+            check(db, refs, result, 0, 1);
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>(threads);
+            for (int n = 0; n < threads; n++) {
+                final int offset = n;
+                final int step = threads;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call()
+                            throws IOException {
+                        check(db, refs, result, offset, step);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private static void check(Repository db, List<org.eclipse.jgit.lib.Ref> refs,
+                              Ref[] result, int offset, int step)
+            throws IOException {
+        try (ObjectReader reader = db.newObjectReader()) {
+            RevWalk revWalk = new RevWalk(reader);
+            for (int n = offset; n < result.length; n += step) {
+                try {
+                    result[n] = makeRef(reader, revWalk, refs.get(n));
+                }
+                catch (MissingObjectException ex) {
+                    // Ref references missing object.
+                }
+            }
+        }
+    }
+
+    private static Ref makeRef(ObjectReader reader, RevWalk revWalk, org.eclipse.jgit.lib.Ref gitRef)
+            throws IOException {
+        String name = gitRef.getName();
+        if (gitRef.isPeeled()) {
+            // Peeled id is known from packed refs, only check object type.
+            ObjectId id = gitRef.getPeeledObjectId();
+            if (id == null) {
+                id = gitRef.getObjectId();
+            }
+            if (reader.open(id).getType() == Constants.OBJ_COMMIT) {
+                return new Ref(name, id);
+            }
+            return null;
+        }
+        return makeRef(revWalk, name, gitRef.getObjectId());
+    }
+
     private static Ref makeRef(RevWalk revWalk, String name, ObjectId id)
             throws IOException {
         RevObject revObject = revWalk.parseAny(id);
@@ -0,0 +1,331 @@
+package roadmap.ref;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches ref storage of repositories and reports changed refs.
+ *
+ * <p>Loose refs, packed refs and the HEAD file are watched with the file
+ * system watch service, so there is no polling and idle repositories cost
+ * nothing. A single ref update touches several files, like the lock file,
+ * the ref itself and the reflog, and a push may update many refs at once.
+ * So events are coalesced, and the listener is notified only after
+ * the repository was quiet for the debounce period.</p>
+ *
+ * <p>The listener receives names of refs which were created, updated or
+ * deleted since the last notification, and it is called from the watcher
+ * thread, one repository at a time.</p>
+ */
+public class RefWatcher
+        implements Closeable {
+    /** Receives ref changes. */
+    public interface Listener {
+        /**
+         * @param db      Repository whose refs have changed.
+         * @param changed Names of created, updated and deleted refs.
+         */
+        void refsChanged(Repository db, Set<String> changed);
+    }
+
+    /** Watch state of a single repository. */
+    private static final class Watched {
+        final Repository db;
+        final Path gitDir;
+        final Path refsDir;
+        /** Ref values by name as of the last notification. */
+        Map<String, String> refs;
+        /** Time in nanoseconds to notify the listener at, while changes are pending. */
+        long due;
+
+        Watched(Repository db) {
+            this.db = db;
+            gitDir = db.getDirectory().toPath();
+            refsDir = gitDir.resolve(REFS);
+        }
+    }
+
+    private static final String REFS = "refs";
+    /** Files in the git directory itself which affect refs. */
+    private static final Set<String> GIT_DIR_FILES = new HashSet<>(Arrays.asList(
+            Constants.HEAD, Constants.PACKED_REFS));
+
+    private final Listener listener;
+    private final long debounce;
+    private final WatchService service;
+    private final HashMap<WatchKey, Watched> keys = new HashMap<>();
+    private final Thread thread;
+
+    /**
+     * @param listener Receives ref changes.
+     * @throws IOException If I/O error occurs.
+     */
+    public RefWatcher(Listener listener)
+            throws IOException {
+        this(listener, 250, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param listener Receives ref changes.
+     * @param debounce Quiet period after the last file event.
+     * @param unit     Unit of the debounce period.
+     * @throws IOException If I/O error occurs.
+     */
+    public RefWatcher(Listener listener, long debounce, TimeUnit unit)
+            throws IOException {
+        this.listener = listener;
+        this.debounce = unit.toNanos(debounce);
+        service = FileSystems.getDefault().newWatchService();
+        thread = new Thread(new Runnable() {
+            @Override public void run() {
+                loop();
+            }
+        }, "ref-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start watching refs of the specified repository.
+     *
+     * @param db Repository to watch.
+     * @throws IOException If I/O error occurs.
+     */
+    public void watch(Repository db)
+            throws IOException {
+        Watched watched = new Watched(db);
+        watched.refs = snapshot(db);
+        synchronized (keys) {
+            keys.put(watched.gitDir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), watched);
+            registerAll(watched, watched.refsDir);
+        }
+    }
+
+    /** Stop watching and terminate the watcher thread. */
+    @Override public void close()
+            throws IOException {
+        service.close();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Test whether any of the changed refs passes the filter.
+     *
+     * <p>Changes of <em>HEAD</em> always count, because it selects
+     * the default branch.</p>
+     *
+     * @param filter  Filter of interesting refs.
+     * @param changed Names of changed refs.
+     * @return A value indicating whether any interesting ref has changed.
+     */
+    public static boolean affects(RefFilter filter, Set<String> changed) {
+        for (String name : changed) {
+            if (name.equals(Constants.HEAD) || filter.accept(new Ref(name, ObjectId.zeroId()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Register the directory and all its subdirectories, since watch service is not recursive. */
+    private void registerAll(final Watched watched, Path dir)
+            throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                keys.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), watched);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void loop() {
+        HashSet<Watched> pending = new HashSet<>();
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = service.take();
+                }
+                else {
+                    long next = Long.MAX_VALUE;
+                    for (Watched watched : pending) {
+                        next = Math.min(next, watched.due);
+                    }
+                    key = service.poll(Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                if (key != null) {
+                    Watched watched = process(key);
+                    if (watched != null) {
+                        watched.due = System.nanoTime() + debounce;
+                        pending.add(watched);
+                    }
+                }
+                long now = System.nanoTime();
+                for (Watched watched : new ArrayList<>(pending)) {
+                    if (watched.due - now <= 0) {
+                        pending.remove(watched);
+                        if (!notify(watched)) {
+                            // Refs are being written right now, try again later.
+                            watched.due = now + debounce;
+                            pending.add(watched);
+                        }
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ex) {
+            // Watcher is closed.
+        }
+    }
+
+    /**
+     * Consume events of the key.
+     *
+     * @return The repository with relevant changes, or {@code null}.
+     */
+    private Watched process(WatchKey key) {
+        Watched watched;
+        synchronized (keys) {
+            watched = keys.get(key);
+        }
+        if (watched == null) {
+            key.cancel();
+            return null;
+        }
+        boolean relevant = false;
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                relevant = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            String fileName = name.toString();
+            if (fileName.endsWith(".lock")) {
+                continue;
+            }
+            if (dir.equals(watched.gitDir)) {
+                if (GIT_DIR_FILES.contains(fileName)) {
+                    relevant = true;
+                }
+                else if (fileName.equals(REFS) && event.kind() == ENTRY_CREATE) {
+                    relevant |= register(watched, dir.resolve(name));
+                }
+                continue;
+            }
+            relevant = true;
+            if (event.kind() == ENTRY_CREATE) {
+                register(watched, dir.resolve(name));
+            }
+        }
+        if (!key.reset()) {
+            synchronized (keys) {
+                keys.remove(key);
+            }
+        }
+        return relevant ? watched : null;
+    }
+
+    private boolean register(Watched watched, Path dir) {
+        try {
+            synchronized (keys) {
+                registerAll(watched, dir);
+            }
+            return true;
+        }
+        catch (IOException ex) {
+            // Directory is gone already.
+            return false;
+        }
+    }
+
+    /**
+     * Compare refs with the last snapshot and notify the listener.
+     *
+     * @return {@code false} if refs could not be read.
+     */
+    private boolean notify(Watched watched) {
+        Map<String, String> refs;
+        try {
+            refs = snapshot(watched.db);
+        }
+        catch (IOException ex) {
+            return false;
+        }
+        TreeSet<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : refs.entrySet()) {
+            if (!entry.getValue().equals(watched.refs.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String name : watched.refs.keySet()) {
+            if (!refs.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+        watched.refs = refs;
+        if (!changed.isEmpty()) {
+            listener.refsChanged(watched.db, Collections.unmodifiableSet(changed));
+        }
+        return true;
+    }
+
+    /** @return Current ref values by name, symbolic refs map to their target names. */
+    private static Map<String, String> snapshot(Repository db)
+            throws IOException {
+        HashMap<String, String> map = new HashMap<>();
+        for (org.eclipse.jgit.lib.Ref ref : db.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+            map.put(ref.getName(), value(ref));
+        }
+        org.eclipse.jgit.lib.Ref head = db.exactRef(Constants.HEAD);
+        if (head != null) {
+            map.put(Constants.HEAD, value(head));
+        }
+        return map;
+    }
+
+    private static String value(org.eclipse.jgit.lib.Ref ref) {
+        if (ref.isSymbolic()) {
+            return "ref: " + ref.getTarget().getName();
+        }
+        return ref.getObjectId() != null ? ref.getObjectId().getName() : "";
+    }
+}
@@ -0,0 +1,358 @@
+package roadmap.server;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs builds on a bounded pool of workers.
+ *
+ * <p>Builds with equal keys are coalesced, so a burst of requests for
+ * the same repository in the same ref state runs a single build, and every
+ * caller gets its result. Every caller holds its own future, and once all
+ * callers have cancelled their futures, the build is cancelled too. A queued
+ * build is simply dropped, a running build is interrupted.</p>
+ *
+ * <p>A caller which gives up waiting but may come back, like a client told
+ * to retry later, abandons its future instead. The build goes on for a grace
+ * period, so that the retry joins it, and is cancelled once the grace period
+ * is over unless another caller has joined it meanwhile.</p>
+ *
+ * <p>Queued builds are ordered by priority, then by submission order, so
+ * interactive requests overtake batch refreshes. In addition, the number
+ * of builds running concurrently for the same repository is limited, so
+ * a single large repository cannot occupy all workers and starve the rest.
+ * Builds over the limit wait in a per repository queue, without holding
+ * any worker.</p>
+ */
+final class BuildScheduler {
+    /** Build priority classes, from the most to the least urgent. */
+    enum Priority {
+        /** Somebody is waiting for the result. */
+        INTERACTIVE,
+        /** Background refresh. */
+        BATCH
+    }
+
+    /** A single build shared by all callers with the same key. */
+    private final class Build<V>
+            implements Runnable, Comparable<Build<?>> {
+        final Object key;
+        final String repo;
+        final long seq;
+        final Callable<V> task;
+        final CountDownLatch done = new CountDownLatch(1);
+        Priority priority;
+        /** The number of callers which have not cancelled their futures. */
+        int callers;
+        /** Whether the build is queued in the executor, as opposed to the repository queue. */
+        boolean dispatched;
+        boolean started;
+        boolean cancelled;
+        Thread thread;
+        V value;
+        Throwable error;
+
+        Build(Object key, String repo, long seq, Priority priority, Callable<V> task) {
+            this.key = key;
+            this.repo = repo;
+            this.seq = seq;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override public void run() {
+            synchronized (BuildScheduler.this) {
+                if (cancelled) {
+                    return;
+                }
+                started = true;
+                thread = Thread.currentThread();
+            }
+            try {
+                value = task.call();
+            }
+            catch (Throwable ex) {
+                error = ex;
+            }
+            finally {
+                synchronized (BuildScheduler.this) {
+                    thread = null;
+                    // Do not leak the interrupt to the next build of this worker.
+                    Thread.interrupted();
+                    if (cancelled) {
+                        value = null;
+                        error = new CancellationException();
+                    }
+                    finished(this);
+                    // Count down under the lock, so that a caller cancelling
+                    // right now either sees the build done, or still running.
+                    done.countDown();
+                }
+            }
+        }
+
+        @Override public int compareTo(Build<?> that) {
+            int r = priority.compareTo(that.priority);
+            if (r == 0) {
+                r = Long.compare(seq, that.seq);
+            }
+            return r;
+        }
+    }
+
+    /** Future of a single caller. */
+    private final class Ticket<V>
+            implements Future<V> {
+        final Build<V> build;
+        boolean cancelled;
+
+        Ticket(Build<V> build) {
+            this.build = build;
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (BuildScheduler.this) {
+                if (cancelled || build.done.getCount() == 0) {
+                    return false;
+                }
+                cancelled = true;
+                if (--build.callers == 0) {
+                    BuildScheduler.this.cancel(build);
+                }
+                return true;
+            }
+        }
+
+        @Override public boolean isCancelled() {
+            synchronized (BuildScheduler.this) {
+                return cancelled;
+            }
+        }
+
+        @Override public boolean isDone() {
+            return isCancelled() || build.done.getCount() == 0;
+        }
+
+        @Override public V get()
+                throws InterruptedException, ExecutionException {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            build.done.await();
+            return result();
+        }
+
+        @Override public V get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            if (!build.done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private V result()
+                throws ExecutionException {
+            if (build.error instanceof CancellationException) {
+                throw (CancellationException) build.error;
+            }
+            if (build.error != null) {
+                throw new ExecutionException(build.error);
+            }
+            return build.value;
+        }
+    }
+
+    private final int perRepo;
+    private final ThreadPoolExecutor executor;
+    /** Cancels abandoned futures once their grace periods are over. */
+    private final ScheduledThreadPoolExecutor timer;
+    private final HashMap<Object, Build<?>> inFlight = new HashMap<>();
+    /** The number of dispatched builds per repository. */
+    private final HashMap<String, Integer> running = new HashMap<>();
+    /** Builds waiting for a repository slot. */
+    private final HashMap<String, PriorityQueue<Build<?>>> waiting = new HashMap<>();
+    private long seq;
+
+    /**
+     * @param workers The number of worker threads.
+     * @param perRepo The maximum number of concurrent builds per repository.
+     */
+    BuildScheduler(int workers, int perRepo) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers: " + workers);
+        }
+        if (perRepo <= 0) {
+            throw new IllegalArgumentException("per repository limit: " + perRepo);
+        }
+        this.perRepo = perRepo;
+        final AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "build-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "build-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Submit a build, or join an in-flight build with the same key.
+     *
+     * <p>If the joined build is still queued and the new caller is more
+     * urgent, the build is promoted to the higher priority.</p>
+     *
+     * @param key      Build key, such as repository name and ref state.
+     * @param repo     Repository name for concurrency limits.
+     * @param priority Build priority.
+     * @param task     Build to run, unless already in flight.
+     * @param <V>      Build result type.
+     * @return The future of this caller.
+     */
+    synchronized <V> Future<V> submit(Object key, String repo, Priority priority, Callable<V> task) {
+        @SuppressWarnings("unchecked")
+        Build<V> build = (Build<V>) inFlight.get(key);
+        if (build == null) {
+            build = new Build<>(key, repo, seq++, priority, task);
+            inFlight.put(key, build);
+            dispatch(build);
+        }
+        else if (priority.compareTo(build.priority) < 0 && !build.started) {
+            promote(build, priority);
+        }
+        build.callers++;
+        return new Ticket<>(build);
+    }
+
+    /**
+     * Stop waiting for a build, but keep it going for a while in case
+     * the caller comes back. The future is cancelled after the grace
+     * period, which cancels the build unless other callers still wait
+     * for it, see {@link #submit(Object, String, Priority, Callable)}.
+     *
+     * @param future Future returned by this scheduler.
+     * @param grace  Grace period.
+     * @param unit   Unit of the grace period.
+     */
+    void abandon(final Future<?> future, long grace, TimeUnit unit) {
+        if (future.isDone()) {
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override public void run() {
+                future.cancel(true);
+            }
+        }, grace, unit);
+    }
+
+    /** Stop accepting builds, and interrupt running builds. */
+    void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void dispatch(Build<?> build) {
+        Integer count = running.get(build.repo);
+        if (count == null || count < perRepo) {
+            running.put(build.repo, count == null ? 1 : count + 1);
+            build.dispatched = true;
+            executor.execute(build);
+        }
+        else {
+            PriorityQueue<Build<?>> queue = waiting.get(build.repo);
+            if (queue == null) {
+                waiting.put(build.repo, queue = new PriorityQueue<>());
+            }
+            queue.add(build);
+        }
+    }
+
+    private void promote(Build<?> build, Priority priority) {
+        if (build.dispatched) {
+            if (executor.remove(build)) {
+                build.priority = priority;
+                executor.execute(build);
+            }
+        }
+        else {
+            PriorityQueue<Build<?>> queue = waiting.get(build.repo);
+            queue.remove(build);
+            build.priority = priority;
+            queue.add(build);
+        }
+    }
+
+    /** Cancel the build nobody is waiting for. */
+    private void cancel(Build<?> build) {
+        build.cancelled = true;
+        if (inFlight.get(build.key) == build) {
+            inFlight.remove(build.key);
+        }
+        if (build.started) {
+            if (build.thread != null) {
+                build.thread.interrupt();
+            }
+            return;
+        }
+        if (build.dispatched) {
+            executor.remove(build);
+            release(build.repo);
+        }
+        else {
+            waiting.get(build.repo).remove(build);
+        }
+        build.error = new CancellationException();
+        build.done.countDown();
+    }
+
+    private void finished(Build<?> build) {
+        if (inFlight.get(build.key) == build) {
+            inFlight.remove(build.key);
+        }
+        release(build.repo);
+    }
+
+    /** Free a repository slot and dispatch the next waiting build, if any. */
+    private void release(String repo) {
+        int count = running.get(repo) - 1;
+        if (count == 0) {
+            running.remove(repo);
+        }
+        else {
+            running.put(repo, count);
+        }
+        PriorityQueue<Build<?>> queue = waiting.get(repo);
+        if (queue != null) {
+            Build<?> next = queue.poll();
+            if (queue.isEmpty()) {
+                waiting.remove(repo);
+            }
+            if (next != null) {
+                dispatch(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package roadmap.server;
+
+import org.eclipse.jgit.lib.ObjectId;
+import roadmap.plot.Layout;
+import roadmap.ref.Ref;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Writes graph layout as JSON document.
+ *
+ * <p>The document lists every vertex with its grid position, and every edge
+ * as a pair of vertex indexes. Bends are synthetic vertexes of long edges,
+ * they have no commit id and refs. Runs of collapsed commits also list ids
+ * of all of their commits, newest first, and refs of all of them.</p>
+ *
+ * <pre>
+ * {"layers":3,"lanes":2,
+ *  "vertices":[{"id":"...","col":0,"row":0,"refs":["refs/heads/master"]},{"col":1,"row":0}],
+ *  "edges":[[0,1]]}
+ * </pre>
+ */
+final class JsonWriter {
+    private JsonWriter() {}
+
+    static void write(Layout layout, Appendable out)
+            throws IOException {
+        IdentityHashMap<Layout.Vertex, Integer> indexes = new IdentityHashMap<>();
+        out.append("{\"layers\":").append(String.valueOf(layout.getTotalLayers()));
+        out.append(",\"lanes\":").append(String.valueOf(layout.getTotalLanes()));
+        out.append(",\"vertices\":[");
+        int offset = 0;
+        for (Layout.Partition partition : layout.getPartitions()) {
+            for (Layout.Vertex vertex : partition.getPoints()) {
+                if (!indexes.isEmpty()) {
+                    out.append(",");
+                }
+                indexes.put(vertex, indexes.size());
+                out.append("{");
+                if (vertex instanceof Layout.Node) {
+                    Layout.Node node = (Layout.Node) vertex;
+                    out.append("\"id\":\"").append(node.id.getName()).append("\",");
+                }
+                out.append("\"col\":").append(String.valueOf(vertex.col()));
+                out.append(",\"row\":").append(String.valueOf(offset + vertex.row()));
+                if (vertex instanceof Layout.Node) {
+                    Layout.Node node = (Layout.Node) vertex;
+                    out.append(",\"refs\":");
+                    writeRefs(node.refs, out);
+                    if (node.isRun()) {
+                        out.append(",\"ids\":");
+                        writeIds(node.ids, out);
+                    }
+                }
+                out.append("}");
+            }
+            offset += partition.getLanes();
+        }
+        out.append("],\"edges\":[");
+        boolean first = true;
+        for (Layout.Partition partition : layout.getPartitions()) {
+            for (Layout.Vertex vertex : partition.getPoints()) {
+                for (Layout.Vertex outgoing : vertex.getOutgoing()) {
+                    if (!first) {
+                        out.append(",");
+                    }
+                    first = false;
+                    out.append("[").append(String.valueOf(indexes.get(vertex)))
+                            .append(",").append(String.valueOf(indexes.get(outgoing))).append("]");
+                }
+            }
+        }
+        out.append("]}");
+    }
+
+    private static void writeRefs(Collection<Ref> refs, Appendable out)
+            throws IOException {
+        out.append("[");
+        Iterator<Ref> it = refs.iterator();
+        while (it.hasNext()) {
+            writeString(it.next().getName(), out);
+            if (it.hasNext()) {
+                out.append(",");
+            }
+        }
+        out.append("]");
+    }
+
+    private static void writeIds(Collection<ObjectId> ids, Appendable out)
+            throws IOException {
+        out.append("[");
+        Iterator<ObjectId> it = ids.iterator();
+        while (it.hasNext()) {
+            out.append('"').append(it.next().getName()).append('"');
+            if (it.hasNext()) {
+                out.append(",");
+            }
+        }
+        out.append("]");
+    }
+
+    static void writeString(String s, Appendable out)
+            throws IOException {
+        out.append('"');
+        for (int n = 0; n < s.length(); n++) {
+            char c = s.charAt(n);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,274 @@
+package roadmap.server;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import roadmap.graph.CommitList;
+import roadmap.graph.Graph;
+import roadmap.graph.Horizon;
+import roadmap.graph.RefDiffPolicy;
+import roadmap.plot.Layout;
+import roadmap.plot.Plotter;
+import roadmap.ref.RefFilter;
+import roadmap.ref.RefSet;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Everything built for a single repository at a single ref state.
+ *
+ * <p>The rendered images and documents are made on first request
+ * and kept along with the graph. So are a few recently used roadmaps
+ * with some collapsed runs expanded.</p>
+ */
+final class Roadmap {
+    // Rough per object sizes to estimate the memory footprint.
+    private static final long COMMIT_BYTES = 120;
+    private static final long REF_BYTES = 100;
+    private static final long VERTEX_BYTES = 150;
+    /** The maximum number of expanded roadmaps kept along with this one. */
+    private static final int MAX_EXPANSIONS = 8;
+    private final ObjectId fingerprint;
+    private final RefSet refs;
+    private final CommitList commitList;
+    /** Graph to show, coarse if the full graph is too large. */
+    private final Graph view;
+    /** The minimum length of collapsed runs, or zero. */
+    private final int minRun;
+    private final Layout layout;
+    private final long baseFootprint;
+    /** Recently used expanded roadmaps by the set of expanded ids. */
+    private final LinkedHashMap<Set<ObjectId>, Roadmap> expansions =
+            new LinkedHashMap<Set<ObjectId>, Roadmap>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<Set<ObjectId>, Roadmap> eldest) {
+                    return size() > MAX_EXPANSIONS;
+                }
+            };
+    private byte[] png;
+    private byte[] svg;
+    private byte[] json;
+
+    private Roadmap(ObjectId fingerprint, RefSet refs, CommitList commitList,
+                    Graph view, int minRun, Set<ObjectId> expanded) {
+        this.fingerprint = fingerprint;
+        this.refs = refs;
+        this.commitList = commitList;
+        this.view = view;
+        this.minRun = minRun;
+        Graph graph = view;
+        if (minRun > 0) {
+            graph = graph.compress(minRun, expanded);
+        }
+        layout = new Layout(graph);
+        int vertices = 0;
+        for (Layout.Partition partition : layout.getPartitions()) {
+            vertices += partition.getPoints().size();
+        }
+        // Expanded roadmaps share the commit list and refs.
+        baseFootprint = (expanded.isEmpty() ? commitList.size() * COMMIT_BYTES + refs.all().size() * REF_BYTES : 0)
+                + vertices * VERTEX_BYTES;
+    }
+
+    /**
+     * Build roadmap of the specified repository.
+     *
+     * @param db          Repository to build roadmap of.
+     * @param fingerprint Ref state the repository is expected to be in.
+     * @param filter      Selects refs to show.
+     * @param maxRefs     The maximum number of the most recent ref tips, or zero.
+     * @param horizon     Decides how deep into history to walk.
+     * @param maxNodes    The maximum number of nodes to show, or zero.
+     * @param minRun      The minimum length of straight lines of commits
+     *                    to collapse into a single vertex, or zero.
+     * @return New roadmap instance.
+     * @throws IOException If I/O error occurs.
+     */
+    static Roadmap build(Repository db, ObjectId fingerprint,
+                         RefFilter filter, int maxRefs, Horizon horizon, int maxNodes, int minRun)
+            throws IOException {
+        try (ObjectReader reader = db.newObjectReader()) {
+            RefSet refs = RefSet.from(db, filter);
+            if (maxRefs > 0) {
+                refs = refs.mostRecent(reader, maxRefs);
+            }
+            CommitList commitList = new CommitList(reader, refs, RefDiffPolicy.DEFAULT, horizon);
+            Graph view = commitList.getGraph();
+            if (maxNodes > 0) {
+                view = view.coarsen(maxNodes);
+            }
+            return new Roadmap(fingerprint, refs, commitList, view, minRun, Collections.<ObjectId>emptySet());
+        }
+    }
+
+    /**
+     * Make roadmap with some collapsed runs expanded. It shares the commit
+     * list with this roadmap, but has a layout of its own, and is kept along
+     * with this roadmap until pushed out by other expansions.
+     *
+     * <p>The layout is made without holding any lock, so callers should
+     * run this on the build pool, which also joins concurrent requests
+     * for the same expansion.</p>
+     *
+     * @param expanded Ids of commits whose runs to expand.
+     * @return Expanded roadmap, or this one if no runs are collapsed.
+     */
+    Roadmap expand(Set<ObjectId> expanded) {
+        Roadmap roadmap = expansion(expanded);
+        if (roadmap != null) {
+            return roadmap;
+        }
+        roadmap = new Roadmap(fingerprint, refs, commitList, view, minRun, expanded);
+        synchronized (this) {
+            expansions.put(new HashSet<>(expanded), roadmap);
+        }
+        return roadmap;
+    }
+
+    /**
+     * @param expanded Ids of commits whose runs to expand.
+     * @return Cached expanded roadmap, this one if no runs are collapsed,
+     * or {@code null} if the expansion is yet to be made.
+     */
+    synchronized Roadmap expansion(Set<ObjectId> expanded) {
+        if (minRun == 0 || expanded.isEmpty()) {
+            return this;
+        }
+        return expansions.get(expanded);
+    }
+
+    /**
+     * Compute fingerprint of the current ref state of the specified repository.
+     *
+     * <p>The fingerprint is a hash of names and ids of refs accepted by
+     * the filter, so it is cheap to compute without loading any objects,
+     * and changes whenever any such ref is created, updated or deleted.
+     * <em>HEAD</em> is always included, since it selects the default
+     * branch.</p>
+     *
+     * @param db     Repository to inspect.
+     * @param filter Selects refs to show.
+     * @return Ref state fingerprint.
+     * @throws IOException If I/O error occurs.
+     */
+    static ObjectId fingerprint(Repository db, RefFilter filter)
+            throws IOException {
+        MessageDigest md = Constants.newMessageDigest();
+        TreeMap<String, Ref> refs = new TreeMap<>();
+        for (Ref ref : db.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+            if (ref.getObjectId() != null
+                    && filter.accept(new roadmap.ref.Ref(ref.getName(), ref.getObjectId()))) {
+                refs.put(ref.getName(), ref);
+            }
+        }
+        Ref head = db.exactRef(Constants.HEAD);
+        if (head != null) {
+            refs.put(Constants.HEAD, head);
+        }
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        for (Ref ref : refs.values()) {
+            md.update(Constants.encode(ref.getName()));
+            md.update((byte) 0);
+            if (ref.isSymbolic()) {
+                md.update(Constants.encode(ref.getTarget().getName()));
+            }
+            else if (ref.getObjectId() != null) {
+                ref.getObjectId().copyRawTo(raw, 0);
+                md.update(raw);
+            }
+            md.update((byte) '\n');
+        }
+        return ObjectId.fromRaw(md.digest());
+    }
+
+    /** @return Ref state this roadmap was built for. */
+    ObjectId getFingerprint() {
+        return fingerprint;
+    }
+
+    RefSet getRefs() {
+        return refs;
+    }
+
+    CommitList getCommitList() {
+        return commitList;
+    }
+
+    Graph getGraph() {
+        return commitList.getGraph();
+    }
+
+    Layout getLayout() {
+        return layout;
+    }
+
+    /** @return Estimated number of bytes this roadmap occupies in memory. */
+    synchronized long getFootprint() {
+        long footprint = 0;
+        for (Roadmap roadmap : expansions.values()) {
+            footprint += roadmap.getFootprint();
+        }
+        return footprint + baseFootprint
+                + (png != null ? png.length : 0)
+                + (svg != null ? svg.length : 0)
+                + (json != null ? json.length : 0);
+    }
+
+    synchronized byte[] png()
+            throws IOException {
+        if (png == null) {
+            Plotter plotter = new Plotter(layout);
+            int width = plotter.getMinWidth();
+            int height = plotter.getMinHeight();
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = (Graphics2D) image.getGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, height);
+                plotter.draw(g, width, height);
+            }
+            finally {
+                g.dispose();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            png = out.toByteArray();
+        }
+        return png;
+    }
+
+    synchronized byte[] svg()
+            throws IOException {
+        if (svg == null) {
+            StringBuilder out = new StringBuilder();
+            new Plotter(layout).drawSvg(out);
+            svg = out.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return svg;
+    }
+
+    synchronized byte[] json()
+            throws IOException {
+        if (json == null) {
+            StringBuilder out = new StringBuilder();
+            JsonWriter.write(layout, out);
+            json = out.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,128 @@
+package roadmap.server;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of roadmaps of many repositories.
+ *
+ * <p>There is at most one entry per repository, the entry remembers the ref
+ * state fingerprint it was built for, and is only served while the repository
+ * stays in the same state.</p>
+ *
+ * <p>Once the total estimated footprint exceeds the capacity, entries are
+ * evicted by the Greedy-Dual-Size-Frequency policy. The priority of an entry
+ * is its access count divided by its footprint, plus the priority of the last
+ * evicted entry. So large and rarely used roadmaps go first, and entries
+ * which were popular long ago age out eventually.</p>
+ */
+final class RoadmapCache {
+    private static final class Entry {
+        Roadmap roadmap;
+        int hits;
+        double priority;
+
+        Entry(Roadmap roadmap, int hits) {
+            this.roadmap = roadmap;
+            this.hits = hits;
+        }
+    }
+
+    private final long capacity;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    /** Priority of the last evicted entry. */
+    private double inflation;
+
+    /** @param capacity The maximum total footprint in bytes. */
+    RoadmapCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param name        Repository name.
+     * @param fingerprint The current ref state of the repository.
+     * @return Cached roadmap for this exact ref state, or {@code null}.
+     */
+    synchronized Roadmap get(String name, ObjectId fingerprint) {
+        Entry entry = entries.get(name);
+        if (entry == null || !entry.roadmap.getFingerprint().equals(fingerprint)) {
+            return null;
+        }
+        touch(entry);
+        return entry.roadmap;
+    }
+
+    /**
+     * Put a new roadmap replacing the old one, if any.
+     *
+     * <p>The access count of the old roadmap is inherited, because
+     * the repository is still as popular as it was.</p>
+     *
+     * @param name    Repository name.
+     * @param roadmap Roadmap to cache.
+     */
+    synchronized void put(String name, Roadmap roadmap) {
+        Entry old = entries.get(name);
+        Entry entry = new Entry(roadmap, old != null ? old.hits : 0);
+        entries.put(name, entry);
+        touch(entry);
+        trim();
+    }
+
+    /**
+     * @param name Repository name.
+     * @return Cached roadmap of any ref state, or {@code null}.
+     * This is not counted as an access.
+     */
+    synchronized Roadmap peek(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.roadmap : null;
+    }
+
+    /**
+     * Replace the cached roadmap, if any, with a newer one
+     * without counting it as an access.
+     *
+     * @param name    Repository name.
+     * @param roadmap Roadmap to cache.
+     */
+    synchronized void replace(String name, Roadmap roadmap) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.roadmap = roadmap;
+            trim();
+        }
+    }
+
+    /** Evict entries until the total footprint fits the capacity. */
+    synchronized void trim() {
+        long footprint = 0;
+        for (Entry entry : entries.values()) {
+            footprint += entry.roadmap.getFootprint();
+        }
+        // Always keep the last entry, however large it is.
+        while (footprint > capacity && entries.size() > 1) {
+            Map.Entry<String, Entry> victim = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (victim == null || e.getValue().priority < victim.getValue().priority) {
+                    victim = e;
+                }
+            }
+            entries.remove(victim.getKey());
+            inflation = victim.getValue().priority;
+            footprint -= victim.getValue().roadmap.getFootprint();
+        }
+    }
+
+    /** @return The number of cached roadmaps. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void touch(Entry entry) {
+        entry.hits++;
+        entry.priority = inflation + (double) entry.hits / Math.max(1, entry.roadmap.getFootprint());
+    }
+}
@@ -0,0 +1,481 @@
+package roadmap.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FS;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import roadmap.graph.Horizon;
+import roadmap.ref.RefFilter;
+import roadmap.ref.RefWatcher;
+import roadmap.util.RoadmapApp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long-running daemon which serves roadmaps of many repositories
+ * over a local HTTP endpoint.
+ *
+ * <p>Built roadmaps stay in memory, so requests to repositories whose refs
+ * have not changed are served from the cache. Concurrent requests for
+ * the same repository state share a single build, and builds run on
+ * a separate bounded pool, see {@link BuildScheduler}. Resources:</p>
+ * <ul>
+ * <li><em>/</em> -- JSON list of repository names.</li>
+ * <li><em>/NAME/graph.png</em> -- PNG image of the roadmap.</li>
+ * <li><em>/NAME/graph.svg</em> -- SVG image of the roadmap.</li>
+ * <li><em>/NAME/graph.json</em> -- JSON document with the roadmap layout.</li>
+ * </ul>
+ *
+ * <p>With <em>--compress-runs</em>, straight lines of commits are collapsed
+ * into single vertices, and the <em>expand=ID</em> query parameter, which
+ * may be repeated, expands the runs with the specified commits. Expanded
+ * roadmaps are laid out on the build pool, and a few recently used ones
+ * are cached along with the roadmap they expand.</p>
+ */
+public class Server
+        extends RoadmapApp {
+    public static void main(String[] args)
+            throws Exception {
+        exec(args, new Server());
+    }
+
+    @Option(
+            name = "--bind",
+            usage = "Address to listen on",
+            metaVar = "ADDRESS"
+    )
+    private String bind = "127.0.0.1";
+    @Option(
+            name = "--port",
+            usage = "Port to listen on",
+            metaVar = "PORT"
+    )
+    private int port = 8080;
+    @Option(
+            name = "--threads",
+            usage = "The number of request handling threads",
+            metaVar = "COUNT"
+    )
+    private int threads = 4;
+    @Option(
+            name = "--cache-size",
+            usage = "The maximum estimated size of cached roadmaps in megabytes",
+            metaVar = "MB"
+    )
+    private int cacheSize = 512;
+    @Option(
+            name = "--builders",
+            usage = "The number of roadmap building threads",
+            metaVar = "COUNT"
+    )
+    private int builders = 2;
+    @Option(
+            name = "--builds-per-repo",
+            usage = "The maximum number of concurrent builds of the same repository",
+            metaVar = "COUNT"
+    )
+    private int buildsPerRepo = 1;
+    @Option(
+            name = "--build-timeout",
+            usage = "Give up waiting for a roadmap build after the specified number of seconds",
+            metaVar = "SECONDS"
+    )
+    private int buildTimeout = 60;
+    @Option(
+            name = "--build-grace",
+            usage = "Cancel a build after the specified number of seconds once its clients have timed out and not retried",
+            metaVar = "SECONDS"
+    )
+    private int buildGrace = 60;
+    @Option(
+            name = "--watch",
+            usage = "Rebuild cached roadmaps in the background whenever refs change"
+    )
+    private boolean watch;
+    @Argument(
+            usage = "Repository directories, the directory name is the repository name",
+            metaVar = "DIR",
+            required = true
+    )
+    private List<File> dirs = new ArrayList<>();
+    private final TreeMap<String, Repository> repositories = new TreeMap<>();
+    private RoadmapCache cache;
+    private ExecutorService executor;
+    private BuildScheduler scheduler;
+    private RefFilter filter;
+    private Horizon horizon;
+
+    @Override protected void describe(PrintWriter out)
+            throws Exception {
+        out.println("Serve roadmaps of the specified repositories over HTTP.");
+    }
+
+    @Override protected void run(CmdLineParser parser)
+            throws Exception {
+        checkOptions();
+        cache = new RoadmapCache((long) cacheSize << 20);
+        filter = getRefFilter();
+        horizon = getHorizon();
+        executor = Executors.newFixedThreadPool(threads);
+        scheduler = new BuildScheduler(builders, buildsPerRepo);
+        try {
+            for (File dir : dirs) {
+                open(dir.getAbsoluteFile());
+            }
+            RefWatcher watcher = watch ? watch() : null;
+            try {
+                serve();
+            }
+            finally {
+                if (watcher != null) {
+                    watcher.close();
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+            scheduler.shutdown();
+            for (Repository repository : repositories.values()) {
+                repository.close();
+            }
+        }
+    }
+
+    private void open(File dir)
+            throws IOException {
+        File gitDir = RepositoryCache.FileKey.resolve(dir, FS.DETECTED);
+        if (gitDir == null) {
+            throw new StatusException("not a git repository: " + dir);
+        }
+        String name = dir.getName();
+        if (name.endsWith(".git") && name.length() > 4) {
+            name = name.substring(0, name.length() - 4);
+        }
+        if (repositories.containsKey(name)) {
+            throw new StatusException("duplicate repository name: " + name);
+        }
+        repositories.put(name, new FileRepositoryBuilder()
+                .setGitDir(gitDir)
+                .setMustExist(true)
+                .build());
+    }
+
+    private RefWatcher watch()
+            throws IOException {
+        RefWatcher watcher = new RefWatcher(new RefWatcher.Listener() {
+            @Override public void refsChanged(final Repository db, Set<String> changed) {
+                if (!RefWatcher.affects(filter, changed)) {
+                    return;
+                }
+                for (Map.Entry<String, Repository> entry : repositories.entrySet()) {
+                    if (entry.getValue() == db) {
+                        refresh(entry.getKey(), db);
+                    }
+                }
+            }
+        });
+        for (Repository repository : repositories.values()) {
+            watcher.watch(repository);
+        }
+        return watcher;
+    }
+
+    private void serve()
+            throws IOException, InterruptedException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange)
+                    throws IOException {
+                try {
+                    Server.this.handle(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                server.stop(1);
+                executor.shutdown();
+                stopped.countDown();
+            }
+        });
+        System.out.printf("Serving %d repositories at http://%s:%d/%n",
+                repositories.size(), bind, server.getAddress().getPort());
+        stopped.await();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private void handle(HttpExchange exchange)
+            throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            sendText(exchange, 405, "method not allowed");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if ("/".equals(path)) {
+            StringBuilder json = new StringBuilder("[");
+            for (String name : repositories.keySet()) {
+                if (json.length() > 1) {
+                    json.append(",");
+                }
+                JsonWriter.writeString(name, json);
+            }
+            json.append("]");
+            send(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        int slash = path.indexOf('/', 1);
+        Repository db = slash > 0 ? repositories.get(path.substring(1, slash)) : null;
+        String resource = slash > 0 ? path.substring(slash + 1) : "";
+        if (db == null || !resource.startsWith("graph.")) {
+            sendText(exchange, 404, "not found");
+            return;
+        }
+        String name = path.substring(1, slash);
+        Set<ObjectId> expanded = expanded(exchange.getRequestURI().getQuery());
+        if (expanded == null) {
+            sendText(exchange, 400, "invalid expand parameter");
+            return;
+        }
+        try {
+            Roadmap roadmap = expand(name, roadmap(name, db), expanded);
+            String etag = expanded.isEmpty() ? "\"" + roadmap.getFingerprint().getName() + "\"" : null;
+            if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body;
+            String contentType;
+            switch (resource) {
+                case "graph.png":
+                    body = roadmap.png();
+                    contentType = "image/png";
+                    break;
+                case "graph.svg":
+                    body = roadmap.svg();
+                    contentType = "image/svg+xml";
+                    break;
+                case "graph.json":
+                    body = roadmap.json();
+                    contentType = "application/json";
+                    break;
+                default:
+                    sendText(exchange, 404, "not found");
+                    return;
+            }
+            // Rendered documents add to the footprint.
+            cache.trim();
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            send(exchange, 200, contentType, body);
+        }
+        catch (TimeoutException ex) {
+            exchange.getResponseHeaders().set("Retry-After", "10");
+            sendText(exchange, 503, "roadmap is being built");
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "server is shutting down");
+        }
+        catch (IOException | RuntimeException ex) {
+            sendText(exchange, 500, ex.toString());
+        }
+    }
+
+    /**
+     * Get roadmap of the current ref state of the repository,
+     * either from the cache, or by building a new one.
+     *
+     * <p>The caller stops waiting after the build timeout, but the build
+     * goes on and populates the cache, and stays in flight, so that
+     * the retry of the caller joins it instead of starting another one.
+     * If nobody retries within the build grace period, the build is
+     * cancelled, so abandoned builds do not hold workers.</p>
+     */
+    private Roadmap roadmap(final String name, final Repository db)
+            throws IOException, InterruptedException, TimeoutException {
+        final ObjectId fingerprint = Roadmap.fingerprint(db, filter);
+        Roadmap roadmap = cache.get(name, fingerprint);
+        if (roadmap != null) {
+            return roadmap;
+        }
+        Future<Roadmap> future = scheduler.submit(key(name, fingerprint), name,
+                BuildScheduler.Priority.INTERACTIVE, new Callable<Roadmap>() {
+            @Override public Roadmap call()
+                    throws IOException {
+                // Another build might have finished while this one was queued.
+                Roadmap roadmap = cache.get(name, fingerprint);
+                if (roadmap != null) {
+                    return roadmap;
+                }
+                roadmap = Roadmap.build(db, fingerprint, filter, maxRefs, horizon, maxNodes, compressRuns);
+                cache.put(name, roadmap);
+                return roadmap;
+            }
+        });
+        return await(future);
+    }
+
+    /**
+     * Get roadmap with some collapsed runs expanded, either from the
+     * expansions cached along with the roadmap, or by laying it out
+     * on the build pool, like any other build.
+     */
+    private Roadmap expand(String name, final Roadmap roadmap, final Set<ObjectId> expanded)
+            throws IOException, InterruptedException, TimeoutException {
+        Roadmap expansion = roadmap.expansion(expanded);
+        if (expansion != null) {
+            return expansion;
+        }
+        Future<Roadmap> future = scheduler.submit(
+                Arrays.asList(name, roadmap.getFingerprint(), filter, expanded), name,
+                BuildScheduler.Priority.INTERACTIVE, new Callable<Roadmap>() {
+            @Override public Roadmap call() {
+                return roadmap.expand(expanded);
+            }
+        });
+        return await(future);
+    }
+
+    /** Wait for the build up to the build timeout, see {@link #roadmap(String, Repository)}. */
+    private Roadmap await(Future<Roadmap> future)
+            throws IOException, InterruptedException, TimeoutException {
+        try {
+            return future.get(buildTimeout, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException ex) {
+            scheduler.abandon(future, buildGrace, TimeUnit.SECONDS);
+            throw ex;
+        }
+        catch (InterruptedException ex) {
+            // Shutting down.
+            future.cancel(true);
+            throw ex;
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Rebuild the cached roadmap of the repository ahead of requests.
+     * Repositories nobody has asked for are not built.
+     *
+     * <p>Refreshes run at batch priority, so they never delay requests,
+     * and a request arriving meanwhile joins the refresh instead of
+     * starting another build.</p>
+     */
+    private void refresh(final String name, final Repository db) {
+        Roadmap cached = cache.peek(name);
+        if (cached == null) {
+            return;
+        }
+        final ObjectId fingerprint;
+        try {
+            fingerprint = Roadmap.fingerprint(db, filter);
+        }
+        catch (IOException ex) {
+            // The next request will try again.
+            return;
+        }
+        if (cached.getFingerprint().equals(fingerprint)) {
+            return;
+        }
+        scheduler.submit(key(name, fingerprint), name,
+                BuildScheduler.Priority.BATCH, new Callable<Roadmap>() {
+            @Override public Roadmap call()
+                    throws IOException {
+                Roadmap roadmap = Roadmap.build(db, fingerprint, filter, maxRefs, horizon, maxNodes, compressRuns);
+                cache.replace(name, roadmap);
+                return roadmap;
+            }
+        });
+    }
+
+    /**
+     * @param query Raw request query, may be {@code null}.
+     * @return Ids of commits whose runs to expand, or {@code null} if any id is invalid.
+     */
+    private static Set<ObjectId> expanded(String query) {
+        Set<ObjectId> expanded = new HashSet<>();
+        if (query == null) {
+            return expanded;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith("expand=")) {
+                String id = param.substring("expand=".length());
+                if (!ObjectId.isId(id)) {
+                    return null;
+                }
+                expanded.add(ObjectId.fromString(id));
+            }
+        }
+        return expanded;
+    }
+
+    /** @return Build key, every repository state and ref filter is built once. */
+    private Object key(String name, ObjectId fingerprint) {
+        return Arrays.asList(name, fingerprint, filter);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text)
+            throws IOException {
+        send(exchange, status, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        // Zero length means chunked encoding, which is not what we want.
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package roadmap.ui;
 
+import roadmap.plot.Layout;
 import roadmap.plot.Plotter;
 
 import javax.swing.JPanel;
@@ -7,14 +8,56 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 
 /** Swing component to draw graph of commits. */
 public class GraphPanel
         extends JPanel {
-    private final Plotter plotter;
+    /** Receives clicks on commit vertices. */
+    public interface Listener {
+        /**
+         * Called from the event dispatch thread.
+         *
+         * @param node Vertex clicked.
+         */
+        void vertexClicked(Layout.Node node);
+    }
+
+    private Plotter plotter;
+    private Listener listener;
 
     public GraphPanel(Plotter plotter) {
         this.plotter = plotter;
+        addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                Layout.Node node = GraphPanel.this.plotter.vertexAt(e.getX(), e.getY());
+                if (node != null && listener != null) {
+                    listener.vertexClicked(node);
+                }
+            }
+        });
+    }
+
+    /**
+     * Must be called from the event dispatch thread.
+     *
+     * @param listener Listener of vertex clicks, or {@code null}.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replace the plotter, like when the graph was rebuilt.
+     * Must be called from the event dispatch thread.
+     *
+     * @param plotter New plotter.
+     */
+    public void setPlotter(Plotter plotter) {
+        this.plotter = plotter;
+        revalidate();
+        repaint();
     }
 
     @Override public Dimension getPreferredSize() {
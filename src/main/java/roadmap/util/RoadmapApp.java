@@ -0,0 +1,89 @@
+package roadmap.util;
+
+import org.kohsuke.args4j.Option;
+import roadmap.graph.Horizon;
+import roadmap.ref.PatternRefFilter;
+import roadmap.ref.Ref;
+import roadmap.ref.RefFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Options shared by all front ends which build roadmaps. */
+public abstract class RoadmapApp
+        extends CliApp {
+    @Option(
+            name = "--tags",
+            usage = "Include tags"
+    )
+    private boolean tags;
+    @Option(
+            name = "--remotes",
+            usage = "Include remote branches"
+    )
+    private boolean remotes;
+    @Option(
+            name = "--refs",
+            usage = "Include refs matching pattern, such as refs/heads/release/*, "
+                    + "!refs/tags/nightly-* or re:refs/tags/v\\d+, may be repeated",
+            metaVar = "PATTERN"
+    )
+    private List<String> patterns = new ArrayList<>();
+    @Option(
+            name = "--max-refs",
+            usage = "Include only refs pointing to the specified number of the most recent commits",
+            metaVar = "COUNT"
+    )
+    protected int maxRefs;
+    @Option(
+            name = "--depth",
+            usage = "Walk only the specified number of the most recent commits",
+            metaVar = "COMMITS"
+    )
+    private int depth;
+    @Option(
+            name = "--max-nodes",
+            usage = "Coarsen graphs down to the specified number of nodes, keeping the most recent refs",
+            metaVar = "COUNT"
+    )
+    protected int maxNodes;
+    @Option(
+            name = "--compress-runs",
+            usage = "Collapse straight lines of at least the specified number of commits into one vertex",
+            metaVar = "COUNT"
+    )
+    protected int compressRuns;
+
+    /**
+     * Check values of the shared options.
+     *
+     * @throws StatusException If any option value is invalid.
+     */
+    protected void checkOptions()
+            throws StatusException {
+        if (compressRuns == 1 || compressRuns < 0) {
+            throw new StatusException("--compress-runs must be at least 2");
+        }
+    }
+
+    protected RefFilter getRefFilter() {
+        if (!patterns.isEmpty()) {
+            return PatternRefFilter.compile(patterns);
+        }
+        return new RefFilter() {
+            @Override public boolean accept(Ref ref) {
+                return ref.isLocal()
+                        || remotes && ref.isRemote()
+                        || tags && ref.isTag();
+            }
+        };
+    }
+
+    protected Horizon getHorizon() {
+        Horizon horizon = Horizon.NONE;
+        if (depth > 0) {
+            horizon = horizon.and(Horizon.depth(depth));
+        }
+        return horizon;
+    }
+}
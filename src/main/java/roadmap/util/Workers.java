@@ -0,0 +1,11 @@
+package roadmap.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Worker pool shared by parallel graph algorithms and layouts. */
+public final class Workers {
+    private Workers() {}
+
+    /** Pool with a thread per processor, its threads do not keep the process alive. */
+    public static final ForkJoinPool POOL = new ForkJoinPool();
+}
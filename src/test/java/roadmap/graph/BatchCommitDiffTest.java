@@ -0,0 +1,106 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.test.RepositorySetupRule;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchCommitDiffTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    class Sink
+            implements BatchCommitDiff.Sink {
+        /** Commits added by any update. */
+        final HashSet<ObjectId> seen = new HashSet<>();
+        final HashMap<String, Set<ObjectId>> added = new HashMap<>();
+        final HashMap<String, Set<ObjectId>> removed = new HashMap<>();
+
+        @Override public void added(ObjectId id, List<BatchCommitDiff.Update> updates) {
+            assertTrue(seen.add(id));
+            for (BatchCommitDiff.Update update : updates) {
+                get(added, update.getRef()).add(id);
+            }
+        }
+
+        @Override public void removed(ObjectId id, List<BatchCommitDiff.Update> updates) {
+            for (BatchCommitDiff.Update update : updates) {
+                get(removed, update.getRef()).add(id);
+            }
+        }
+
+        Set<ObjectId> get(HashMap<String, Set<ObjectId>> map, String ref) {
+            Set<ObjectId> set = map.get(ref);
+            if (set == null) {
+                map.put(ref, set = new HashSet<>());
+            }
+            return set;
+        }
+    }
+
+    @Test public void diff()
+            throws Exception {
+        CommitDiffTest.Setup s = new CommitDiffTest().new Setup();
+        Repository db = setup.setupBare(s);
+
+        List<BatchCommitDiff.Update> updates = Arrays.asList(
+                new BatchCommitDiff.Update("refs/heads/X", s.e, s.f),
+                new BatchCommitDiff.Update("refs/heads/Y", s.a, s.b),
+                new BatchCommitDiff.Update("refs/heads/Z", s.c, s.b),
+                new BatchCommitDiff.Update("refs/heads/N", null, s.d),
+                new BatchCommitDiff.Update("refs/heads/D", s.a, ObjectId.zeroId()),
+                new BatchCommitDiff.Update("refs/heads/U", s.g, s.g));
+
+        Sink sink = new Sink();
+        new BatchCommitDiff(new RevWalk(db)).diff(updates, sink);
+
+        // Compare with diffs of every single update.
+        for (BatchCommitDiff.Update update : updates) {
+            final HashSet<ObjectId> added = new HashSet<>();
+            final HashSet<ObjectId> removed = new HashSet<>();
+            new CommitDiff(new RevWalk(db)).diff(update.getOldId(), update.getNewId(), new CommitDiff.Sink() {
+                @Override public void added(ObjectId id) {
+                    added.add(id);
+                }
+
+                @Override public void removed(ObjectId id) {
+                    removed.add(id);
+                }
+            });
+            assertEquals(added, sink.get(sink.added, update.getRef()));
+            assertEquals(removed, sink.get(sink.removed, update.getRef()));
+        }
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.f, s.b, s.d, s.e, s.g, s.h, s.i)),
+                sink.seen);
+    }
+
+    @Test public void skewed()
+            throws Exception {
+        CommitDiffTest.SkewSetup s = new CommitDiffTest().new SkewSetup();
+        Repository db = setup.setupBare(s);
+
+        // The commit c is met before its child w.
+        List<BatchCommitDiff.Update> updates = Arrays.asList(
+                new BatchCommitDiff.Update("refs/heads/X", null, s.x),
+                new BatchCommitDiff.Update("refs/heads/W", null, s.w),
+                new BatchCommitDiff.Update("refs/heads/Y", s.x, s.y));
+
+        Sink sink = new Sink();
+        new BatchCommitDiff(new RevWalk(db)).diff(updates, sink);
+
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.x, s.c)), sink.get(sink.added, "refs/heads/X"));
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.w, s.c)), sink.get(sink.added, "refs/heads/W"));
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.y, s.w)), sink.get(sink.added, "refs/heads/Y"));
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.x)), sink.get(sink.removed, "refs/heads/Y"));
+    }
+}
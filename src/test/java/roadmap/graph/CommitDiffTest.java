@@ -10,6 +10,8 @@ import org.junit.Test;
 import roadmap.test.RepositorySetup;
 import roadmap.test.RepositorySetupRule;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 
 import static org.eclipse.jgit.lib.Constants.HEAD;
@@ -59,6 +61,36 @@ public class CommitDiffTest {
         }
     }
 
+    /**
+     * Creates the following commit graph, where w is older than its parent c:
+     *
+     * <pre>
+     *     X,x
+     * o--o
+     * c   \
+     *      o--o Y,y
+     *      w
+     * </pre>
+     */
+    class SkewSetup
+            implements RepositorySetup {
+        RevCommit c, w, x, y;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            c = util.commit().message("c").create();
+            util.tick(-1000);
+            w = util.commit().message("w").parent(c).create();
+            util.tick(2000);
+            x = util.commit().message("x").parent(c).create();
+            y = util.commit().message("y").parent(w).create();
+
+            util.update(R_HEADS + "X", x);
+            util.update(R_HEADS + "Y", y);
+        }
+    }
+
     class Sink
             implements CommitDiff.Sink {
         final HashSet<ObjectId> added = new HashSet<>();
@@ -300,4 +332,115 @@ public class CommitDiffTest {
             assertTrue(sink.removed.contains(s.b));
         }
     }
+
+    @Test public void skewed()
+            throws Exception {
+        SkewSetup s = new SkewSetup();
+        Repository db = setup.setupBare(s);
+        assertTrue(s.w.getCommitTime() < s.c.getCommitTime());
+        CommitDiff diff = new CommitDiff(new RevWalk(db));
+        Sink sink = new Sink();
+        diff.diff(s.x, s.y, sink);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.y, s.w)), sink.added);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.x)), sink.removed);
+    }
+
+    @Test public void nested()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        final CommitDiff diff = new CommitDiff(new RevWalk(db));
+        final Setup t = s;
+        final Sink inner = new Sink();
+        Sink outer = new Sink() {
+            @Override public void added(ObjectId id) {
+                super.added(id);
+                try {
+                    // Diff again from within the sink.
+                    diff.diff(t.b, t.a, inner);
+                }
+                catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+        diff.diff(s.e, s.f, outer);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.f)), outer.added);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.e)), outer.removed);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.a, s.c)), inner.added);
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.b, s.d)), inner.removed);
+    }
+
+    @Test public void streaming()
+            throws Exception {
+        class Setup
+                implements RepositorySetup {
+            RevCommit base, a, b;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                base = util.commit().message("base").create();
+                a = util.commit().message("a").parent(base).create();
+                b = base;
+                for (int n = 0; n < 50; n++) {
+                    b = util.commit().message("b" + n).parent(b).create();
+                }
+                util.update(HEAD, a);
+                util.update(R_HEADS + "B", b);
+            }
+        }
+
+        final Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        final RevWalk walk = new RevWalk(db);
+        final boolean[] early = new boolean[1];
+        Sink sink = new Sink() {
+            @Override public void added(ObjectId id) {
+                if (added.isEmpty()) {
+                    // The walk has not reached the base yet.
+                    early[0] = walk.lookupCommit(s.base).getCommitTime() == 0;
+                }
+                super.added(id);
+            }
+        };
+        new CommitDiff(walk).diff(s.a, s.b, sink);
+        assertTrue(early[0]);
+        assertEquals(50, sink.added.size());
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.a)), sink.removed);
+    }
+
+    @Test public void longDivergence()
+            throws Exception {
+        final int commits = 500;
+
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                RevCommit base = util.commit().message("base").create();
+                a = base;
+                b = base;
+                for (int n = 0; n < commits; n++) {
+                    a = util.commit().message("a" + n).parent(a).create();
+                    b = util.commit().message("b" + n).parent(b).create();
+                }
+                util.update(HEAD, a);
+                util.update(R_HEADS + "B", b);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        CommitDiff diff = new CommitDiff(new RevWalk(db));
+        Sink sink = new Sink();
+        diff.diff(s.a, s.b, sink);
+        assertEquals(commits, sink.added.size());
+        assertTrue(sink.added.contains(s.b));
+        assertEquals(commits, sink.removed.size());
+        assertTrue(sink.removed.contains(s.a));
+    }
 }
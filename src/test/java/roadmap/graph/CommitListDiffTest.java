@@ -1,11 +1,101 @@
 package roadmap.graph;
 
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
 import org.junit.Test;
+import roadmap.ref.RefSet;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
 
-import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.junit.Assert.assertEquals;
 
 public class CommitListDiffTest {
-    @Test public void test() {
-        assertTrue(true);
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     * HEAD,a  X,b    c (initial)
+     * o------o------o
+     * </pre>
+     */
+    static class Setup
+            implements RepositorySetup {
+        RevCommit a, b, c;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            c = util.commit().message("C").create();
+            b = util.commit().message("B").parent(c).create();
+            a = util.commit().message("A").parent(b).create();
+
+            util.update(HEAD, a);
+            util.update(R_HEADS + "X", b);
+        }
+    }
+
+    @Test public void snapshot()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        CommitList from = new CommitList(db.newObjectReader(), RefSet.from(db));
+
+        // Force push master, delete X, create Y.
+        TestRepository<Repository> util = new TestRepository<>(db);
+        RevCommit d = util.commit().message("D").parent(s.b).create();
+        util.update(R_HEADS + "master", d);
+        util.update(R_HEADS + "Y", s.c);
+        RefUpdate ru = db.updateRef(R_HEADS + "X");
+        ru.setForceUpdate(true);
+        assertEquals(RefUpdate.Result.FORCED, ru.delete());
+        CommitList to = new CommitList(db.newObjectReader(), RefSet.from(db));
+
+        CommitListDiff.Snapshot diff = CommitListDiff.snapshot(from, to);
+        assertEquals(bits(from, s.a), diff.getRemoved());
+        assertEquals(bits(to, d), diff.getAdded());
+        assertEquals(bits(from, s.a), diff.getRemoved("refs/heads/master"));
+        assertEquals(bits(to, d), diff.getAdded("refs/heads/master"));
+        assertEquals(bits(from, s.b, s.c), diff.getRemoved("refs/heads/X"));
+        assertEquals(bits(to), diff.getAdded("refs/heads/X"));
+        assertEquals(bits(from), diff.getRemoved("refs/heads/Y"));
+        assertEquals(bits(to, s.c), diff.getAdded("refs/heads/Y"));
+        assertEquals(new HashSet<>(Arrays.asList("refs/heads/master", "refs/heads/X")),
+                diff.getRefsWithRemoved());
+        assertEquals(new HashSet<>(Arrays.asList("refs/heads/master", "refs/heads/Y")),
+                diff.getRefsWithAdded());
+
+        final HashSet<ObjectId> added = new HashSet<>();
+        final HashSet<ObjectId> removed = new HashSet<>();
+        diff.diff(new CommitDiff.Sink() {
+            @Override public void added(ObjectId id) {
+                added.add(id);
+            }
+
+            @Override public void removed(ObjectId id) {
+                removed.add(id);
+            }
+        });
+        assertEquals(new HashSet<ObjectId>(Arrays.asList(d)), added);
+        assertEquals(new HashSet<ObjectId>(Arrays.asList(s.a)), removed);
+    }
+
+    private static BitSet bits(CommitList list, ObjectId... ids) {
+        BitSet bits = new BitSet();
+        for (ObjectId id : ids) {
+            bits.set(list.indexOf(id));
+        }
+        return bits;
     }
 }
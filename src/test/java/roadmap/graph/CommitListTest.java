@@ -7,6 +7,8 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Rule;
 import org.junit.Test;
 import roadmap.ref.Ref;
+import roadmap.ref.RefDiff;
+import roadmap.ref.RefFilter;
 import roadmap.ref.RefSet;
 import roadmap.test.RepositorySetup;
 import roadmap.test.RepositorySetupRule;
@@ -14,12 +16,15 @@ import roadmap.test.RepositorySetupRule;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import static org.eclipse.jgit.lib.Constants.HEAD;
 import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_TAGS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class CommitListTest {
@@ -223,4 +228,359 @@ public class CommitListTest {
         assertEquals(1, map.getTotal(refs.byName("refs/heads/F")));
         assertEquals(1, map.getMatched(refs.byName("refs/heads/F")));
     }
+
+    @Test public void aheadBehind()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        CommitList list = new CommitList(db.newObjectReader(), refs);
+
+        AheadBehind ab = list.aheadBehind(refs.byName("refs/heads/B"), refs.byName("refs/heads/D"));
+        assertEquals(2, ab.getAhead());
+        assertEquals(2, ab.getBehind());
+        assertEquals(s.f, ab.getMergeBase());
+
+        ab = list.aheadBehind(refs.byName("refs/heads/D"), refs.byName("refs/heads/B"));
+        assertEquals(2, ab.getAhead());
+        assertEquals(2, ab.getBehind());
+
+        List<AheadBehind> results = list.aheadBehind(refs.byName("refs/heads/C"),
+                refs.selectAll(Arrays.asList("refs/heads/B", "refs/heads/F", "refs/heads/C", "refs/heads/A")));
+        assertEquals(4, results.size());
+        assertEquals(refs.byName("refs/heads/B"), results.get(0).getRef());
+        assertEquals(1, results.get(0).getAhead());
+        assertEquals(0, results.get(0).getBehind());
+        assertEquals(s.c, results.get(0).getMergeBase());
+        assertEquals(0, results.get(1).getAhead());
+        assertEquals(1, results.get(1).getBehind());
+        assertEquals(s.f, results.get(1).getMergeBase());
+        assertEquals(0, results.get(2).getAhead());
+        assertEquals(0, results.get(2).getBehind());
+        assertEquals(1, results.get(3).getAhead());
+        assertEquals(1, results.get(3).getBehind());
+
+        // Memoized result.
+        ab = list.aheadBehind(refs.byName("refs/heads/B"), refs.byName("refs/heads/C"));
+        assertEquals(1, ab.getAhead());
+        assertEquals(0, ab.getBehind());
+    }
+
+    @Test public void horizon()
+            throws Exception {
+        /**
+         * Creates the following commit graph:
+         *
+         * <pre>
+         *       x     y
+         *       o     o
+         *       |     |
+         * o--o--o-...-o--o--o HEAD
+         * r0 r1 r2    r7 r8 r9
+         * </pre>
+         */
+        class Setup
+                implements RepositorySetup {
+            final RevCommit[] r = new RevCommit[10];
+            RevCommit x, y;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                for (int n = 0; n < r.length; n++) {
+                    TestRepository<Repository>.CommitBuilder cb = util.commit().message("r" + n);
+                    r[n] = n == 0 ? cb.create() : cb.parent(r[n - 1]).create();
+                }
+                x = util.commit().message("x").parent(r[2]).create();
+                y = util.commit().message("y").parent(r[7]).create();
+                util.update(HEAD, r[9]);
+                util.update(R_HEADS + "X", x);
+                util.update(R_HEADS + "Y", y);
+                r[7] = util.parseBody(r[7]);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefSet refs = RefSet.from(db);
+
+        for (Horizon horizon : Arrays.asList(Horizon.depth(5), Horizon.since(s.r[7].getCommitTime()))) {
+            CommitList list = new CommitList(db.newObjectReader(), refs, RefDiffPolicy.DEFAULT, horizon);
+            assertEquals(new HashSet<>(Arrays.asList(s.x, s.y, s.r[9], s.r[8], s.r[7])),
+                    new HashSet<>(list.adapt()));
+            assertTrue(list.isBoundary(list.map(s.x)));
+            assertTrue(list.isBoundary(list.map(s.r[7])));
+            assertFalse(list.isBoundary(list.map(s.y)));
+            assertEquals(0, list.map(s.x).getParentCount());
+
+            Ref master = refs.byName("refs/heads/master");
+            AheadBehind ab = list.aheadBehind(refs.byName("refs/heads/X"), master);
+            assertEquals(1, ab.getAhead());
+            assertEquals(3, ab.getBehind());
+            assertEquals(null, ab.getMergeBase());
+            assertTrue(ab.isMergeBaseOutsideHorizon());
+
+            ab = list.aheadBehind(refs.byName("refs/heads/Y"), master);
+            assertEquals(1, ab.getAhead());
+            assertEquals(2, ab.getBehind());
+            assertEquals(s.r[7], ab.getMergeBase());
+            assertFalse(ab.isMergeBaseOutsideHorizon());
+        }
+
+        CommitList list = new CommitList(db.newObjectReader(), refs);
+        assertEquals(12, list.size());
+        AheadBehind ab = list.aheadBehind(refs.byName("refs/heads/X"), refs.byName("refs/heads/master"));
+        assertEquals(s.r[2], ab.getMergeBase());
+        assertFalse(ab.isMergeBaseOutsideHorizon());
+    }
+
+    @Test public void graphFor()
+            throws Exception {
+        /**
+         * Creates the following commit graph:
+         *
+         * <pre>
+         * T,a
+         * o------+
+         *         \
+         * HEAD,b   \ U,c   d (initial)
+         * o---------o-----o
+         *                /
+         * V,f      X,e  /
+         * o--------o---+
+         * </pre>
+         */
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b, c, d, e, f;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                d = util.commit().message("d").create();
+                c = util.commit().message("c").parent(d).create();
+                b = util.commit().message("b").parent(c).create();
+                a = util.commit().message("a").parent(c).create();
+                e = util.commit().message("e").parent(d).create();
+                f = util.commit().message("f").parent(e).create();
+                util.update(HEAD, b);
+                util.update(R_HEADS + "X", e);
+                util.update(R_TAGS + "T", a);
+                util.update(R_TAGS + "U", c);
+                util.update(R_TAGS + "V", f);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefSet refs = RefSet.from(db);
+        CommitList list = new CommitList(db.newObjectReader(), refs);
+
+        Graph branches = list.graphFor(RefFilter.BRANCHES);
+        assertSame(branches, list.graphFor(RefFilter.BRANCHES));
+        assertSame(list.getGraph(), list.graphFor(RefFilter.ANY));
+        assertEquals(new HashSet<>(Arrays.asList(s.b, s.e, s.d)), new HashSet<>(branches.getNodes()));
+        assertEquals(new HashSet<>(Arrays.asList(s.b, s.e)), new HashSet<>(branches.getRoots()));
+        assertEquals(new HashSet<>(Arrays.asList(s.d)), new HashSet<>(branches.node(s.b).getParents()));
+        assertEquals(new HashSet<>(Arrays.asList(s.d)), new HashSet<>(branches.node(s.e).getParents()));
+        for (RefDiff diff : branches.getRefDiffs()) {
+            assertFalse(diff.getA().equals(s.a) || diff.getB().equals(s.a));
+        }
+        assertSameGraph(list.getGraph().copy(RefFilter.BRANCHES), branches);
+
+        RefFilter tags = new RefFilter() {
+            @Override public boolean accept(Ref ref) {
+                return ref.isTag();
+            }
+        };
+        Graph view = list.graphFor(tags);
+        assertEquals(new HashSet<>(Arrays.asList(s.a, s.c, s.f, s.d)), new HashSet<>(view.getNodes()));
+        assertSameGraph(list.getGraph().copy(tags), view);
+    }
+
+    @Test public void merge()
+            throws Exception {
+        /**
+         * Creates the following commit graph:
+         *
+         * <pre>
+         * T,a
+         * o------+
+         *         \
+         * HEAD,b   \ U,c   d      o (initial)
+         * o---------o-----o------o
+         *                /
+         * V,f      X,e  /
+         * o--------o---+
+         * </pre>
+         */
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b, c, d, e, f, o;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                o = util.commit().message("o").create();
+                d = util.commit().message("d").parent(o).create();
+                c = util.commit().message("c").parent(d).create();
+                b = util.commit().message("b").parent(c).create();
+                a = util.commit().message("a").parent(c).create();
+                e = util.commit().message("e").parent(d).create();
+                f = util.commit().message("f").parent(e).create();
+                util.update(HEAD, b);
+                util.update(R_HEADS + "X", e);
+                util.update(R_TAGS + "T", a);
+                util.update(R_TAGS + "U", c);
+                util.update(R_TAGS + "V", f);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefFilter tags = new RefFilter() {
+            @Override public boolean accept(Ref ref) {
+                return ref.isTag();
+            }
+        };
+        RefSet branchRefs = RefSet.from(db, RefFilter.BRANCHES);
+        RefSet tagRefs = RefSet.from(db, tags);
+        Graph branches = new CommitList(db.newObjectReader(), branchRefs).getGraph();
+        Graph tagged = new CommitList(db.newObjectReader(), tagRefs).getGraph();
+        Graph all = new CommitList(db.newObjectReader(), branchRefs.union(tagRefs)).getGraph();
+
+        Graph merged = Graph.merge(db.newObjectReader(), Arrays.asList(branches, tagged));
+        assertTrue(merged.isFrozen());
+        assertTrue(merged.isConsistent());
+        assertSameGraph(all, merged);
+        assertTrue(merged.getRefDiffs().containsAll(branches.getRefDiffs()));
+        assertTrue(merged.getRefDiffs().containsAll(tagged.getRefDiffs()));
+        assertEquals(new HashSet<>(branchRefs.union(tagRefs).all()), new HashSet<>(merged.getRefs().all()));
+
+        // Merging a graph with itself changes nothing.
+        assertSameGraph(tagged, Graph.merge(db.newObjectReader(), Arrays.asList(tagged, tagged)));
+    }
+
+    @Test public void mergeRefsMeetingAcrossGraphs()
+            throws Exception {
+        /**
+         * Creates the following commit graph, where c2 was committed with
+         * a clock far behind, so it looks older than its parent p:
+         *
+         * <pre>
+         * z      x,c1
+         * o------o---+
+         *  \    /     \
+         *   \  /       \ p (initial)
+         *    \/         o
+         *    /\        /
+         *   /  \      /
+         *  /    \    /
+         * o------o---+
+         * w      y,c2
+         * </pre>
+         *
+         * <p>Branches x and z, and tags y and w, so either graph alone has
+         * no merge base at p, but all refs together have one.</p>
+         */
+        class Setup
+                implements RepositorySetup {
+            RevCommit p, c1, c2, z, w;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                p = util.commit().message("p").create();
+                c1 = util.commit().message("c1").parent(p).create();
+                util.tick(-10000);
+                c2 = util.commit().message("c2").parent(p).create();
+                util.tick(20000);
+                z = util.commit().message("z").parent(c1).parent(c2).create();
+                w = util.commit().message("w").parent(c2).parent(c1).create();
+                util.update(R_HEADS + "x", c1);
+                util.update(R_HEADS + "z", z);
+                util.update(R_TAGS + "y", c2);
+                util.update(R_TAGS + "w", w);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefFilter tags = new RefFilter() {
+            @Override public boolean accept(Ref ref) {
+                return ref.isTag();
+            }
+        };
+        RefSet branchRefs = RefSet.from(db, RefFilter.BRANCHES);
+        RefSet tagRefs = RefSet.from(db, tags);
+        Graph branches = new CommitList(db.newObjectReader(), branchRefs).getGraph();
+        Graph tagged = new CommitList(db.newObjectReader(), tagRefs).getGraph();
+        Graph all = new CommitList(db.newObjectReader(), branchRefs.union(tagRefs)).getGraph();
+        assertTrue(all.contains(s.p));
+
+        Graph merged = Graph.merge(db.newObjectReader(), Arrays.asList(branches, tagged));
+        assertTrue(merged.isConsistent());
+        assertSameGraph(all, merged);
+        assertSameGraph(all, Graph.merge(db.newObjectReader(), Arrays.asList(tagged, branches)));
+    }
+
+    @Test public void mergeStopsAtFrontier()
+            throws Exception {
+        final int history = 100;
+
+        class Setup
+                implements RepositorySetup {
+            RevCommit m;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                m = util.commit().message("root").create();
+                for (int n = 1; n < history; n++) {
+                    m = util.commit().message("commit " + n).parent(m).create();
+                }
+                util.update(R_HEADS + "x", util.commit().message("x").parent(m).create());
+                util.update(R_TAGS + "y", util.commit().message("y").parent(m).create());
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefFilter tags = new RefFilter() {
+            @Override public boolean accept(Ref ref) {
+                return ref.isTag();
+            }
+        };
+        RefSet branchRefs = RefSet.from(db, RefFilter.BRANCHES);
+        RefSet tagRefs = RefSet.from(db, tags);
+        Graph branches = new CommitList(db.newObjectReader(), branchRefs).getGraph();
+        Graph tagged = new CommitList(db.newObjectReader(), tagRefs).getGraph();
+
+        GraphMerger merger = new GraphMerger(db.newObjectReader(), Arrays.asList(branches, tagged));
+        Graph merged = merger.merge();
+        assertTrue(merged.contains(s.m));
+        assertSameGraph(new CommitList(db.newObjectReader(), branchRefs.union(tagRefs)).getGraph(), merged);
+        // Both tips, the merge base, and the slop past it, but never the root.
+        assertEquals(3 + CommitDiff.OVERSCAN, merger.walked());
+    }
+
+    private static void assertSameGraph(Graph expected, Graph actual) {
+        assertEquals(new HashSet<>(expected.getNodes()), new HashSet<>(actual.getNodes()));
+        assertEquals(new HashSet<>(expected.getRoots()), new HashSet<>(actual.getRoots()));
+        for (Graph.Node node : expected) {
+            assertEquals(new HashSet<>(node.getParents()), new HashSet<>(actual.node(node).getParents()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class) public void aheadBehindUnknownRef()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        CommitList list = new CommitList(db.newObjectReader(), refs);
+
+        list.aheadBehind(new Ref("refs/heads/X", s.a), refs.byName("refs/heads/B"));
+    }
 }
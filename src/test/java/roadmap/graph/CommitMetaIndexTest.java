@@ -0,0 +1,122 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.ref.RefFilter;
+import roadmap.ref.RefSet;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommitMetaIndexTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     * HEAD,a  b     c (initial)
+     * o------o-----o
+     * </pre>
+     */
+    static class Setup
+            implements RepositorySetup {
+        RevCommit a, b, c;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            PersonIdent alice = new PersonIdent("Alice", "Alice@Example.com", util.getDate(), util.getTimeZone());
+            PersonIdent bob = new PersonIdent("Bob", "bob@example.com", util.getDate(), util.getTimeZone());
+            c = util.commit().message("C").author(alice).create();
+            b = util.commit().message("B").author(bob).parent(c).create();
+            a = util.commit().message("A").author(alice).parent(b).create();
+
+            util.update(HEAD, a);
+            util.update(R_HEADS + "X", b);
+
+            a = util.parseBody(a);
+            b = util.parseBody(b);
+            c = util.parseBody(c);
+        }
+    }
+
+    @Test public void matchers()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        CommitList list = new CommitList(db.newObjectReader(), RefSet.from(db));
+        CommitMetaIndex index = CommitMetaIndex.build(db.newObjectReader(), list);
+
+        assertEquals(3, index.size());
+        assertEquals("alice@example.com", index.getAuthorEmail(list.indexOf(s.a)));
+        assertEquals("bob@example.com", index.getAuthorEmail(list.indexOf(s.b)));
+        assertEquals(s.a.getCommitTime(), index.getCommitTime(list.indexOf(s.a)));
+
+        CommitList.CommitMatcher alice = index.authorIn(Collections.singleton("alice@example.com"));
+        assertTrue(alice.matches(list.map(s.a)));
+        assertFalse(alice.matches(list.map(s.b)));
+        assertTrue(alice.matches(list.map(s.c)));
+
+        CommitList.CommitMatcher nobody = index.authorIn(Collections.singleton("nobody@example.com"));
+        assertFalse(nobody.matches(list.map(s.a)));
+
+        CommitList.CommitMatcher time = index.committedBetween(s.b.getCommitTime(), s.a.getCommitTime());
+        assertFalse(time.matches(list.map(s.a)));
+        assertTrue(time.matches(list.map(s.b)));
+        assertFalse(time.matches(list.map(s.c)));
+
+        CommitList.GroupByRefMap map = list.countGroupByRef(
+                index.authorIn(Arrays.asList("ALICE@example.com")));
+        assertEquals(3, map.getTotal(list.getRefs().byName("refs/heads/master")));
+        assertEquals(2, map.getMatched(list.getRefs().byName("refs/heads/master")));
+        assertEquals(2, map.getTotal(list.getRefs().byName("refs/heads/X")));
+        assertEquals(1, map.getMatched(list.getRefs().byName("refs/heads/X")));
+    }
+
+    @Test public void readWrite()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        CommitList list = new CommitList(db.newObjectReader(), RefSet.from(db));
+        CommitMetaIndex index = CommitMetaIndex.build(db.newObjectReader(), list);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        CommitMetaIndex copy = CommitMetaIndex.read(new ByteArrayInputStream(out.toByteArray()), list);
+        for (int n = 0; n < list.size(); n++) {
+            assertEquals(index.getCommitTime(n), copy.getCommitTime(n));
+            assertEquals(index.getAuthorTime(n), copy.getAuthorTime(n));
+            assertEquals(index.getAuthorEmail(n), copy.getAuthorEmail(n));
+            assertEquals(index.getCommitterEmail(n), copy.getCommitterEmail(n));
+        }
+
+        CommitList other = new CommitList(db.newObjectReader(),
+                RefSet.from(db, RefFilter.NONE));
+        try {
+            CommitMetaIndex.read(new ByteArrayInputStream(out.toByteArray()), other);
+            fail();
+        }
+        catch (IOException ex) {
+            // Expected.
+        }
+    }
+}
@@ -2,6 +2,7 @@ package roadmap.graph;
 
 import org.eclipse.jgit.junit.TestRepository;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -12,16 +13,31 @@ import roadmap.ref.RefFilter;
 import roadmap.ref.RefSet;
 import roadmap.test.RepositorySetup;
 import roadmap.test.RepositorySetupRule;
+import roadmap.util.Util;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.eclipse.jgit.lib.Constants.HEAD;
 import static org.eclipse.jgit.lib.Constants.R_HEADS;
 import static org.eclipse.jgit.lib.Constants.R_TAGS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class GraphTest {
@@ -105,6 +121,19 @@ public class GraphTest {
         assertSetsEquals(set(s.e), mergeBases(graph, s.d, s.e));
         assertSetsEquals(set(s.f), mergeBases(graph, s.c, s.f));
         assertSetsEquals(set(s.f), mergeBases(graph, s.e, s.f));
+
+        // The reachability index agrees on every pair.
+        for (RevCommit x : Arrays.asList(s.a, s.b, s.c, s.d, s.e, s.f)) {
+            for (RevCommit y : Arrays.asList(s.a, s.b, s.c, s.d, s.e, s.f)) {
+                assertSetsEquals(mergeBases(graph, x, y),
+                        new HashSet<>(graph.commonAncestors(graph.node(x), graph.node(y))));
+            }
+        }
+        assertTrue(graph.isAncestor(graph.node(s.f), graph.node(s.b)));
+        assertTrue(graph.isAncestor(graph.node(s.c), graph.node(s.b)));
+        assertTrue(graph.isAncestor(graph.node(s.a), graph.node(s.a)));
+        assertFalse(graph.isAncestor(graph.node(s.b), graph.node(s.c)));
+        assertFalse(graph.isAncestor(graph.node(s.c), graph.node(s.d)));
     }
 
     @Test public void mergeBases2()
@@ -210,10 +239,18 @@ public class GraphTest {
         assertEquals(1, graph.getRefDiffs().size());
         assertTrue(graph.getRefDiffs().contains(new RefDiff(s.d, s.a, 2, s.b, 1)));
 
-        graph = graph.copy(RefFilter.BRANCHES);
-        assertSetsEquals(set(s.b), graph.getRoots());
-        assertEquals(0, graph.node(s.b).getParents().size());
-        assertEquals(1, graph.getRefDiffs().size());
+        Graph copy = graph.copy(RefFilter.BRANCHES);
+        assertSetsEquals(set(s.b), copy.getRoots());
+        assertEquals(0, copy.node(s.b).getParents().size());
+        assertEquals(1, copy.getRefDiffs().size());
+        assertTrue(copy.isConsistent());
+
+        // The source graph is intact.
+        assertSetsEquals(set(s.a, s.b), graph.getRoots());
+        assertEquals(1, graph.node(s.a).getParents().size());
+        assertEquals(1, graph.node(s.b).getParents().size());
+        assertTrue(graph.isConsistent());
+        graph = copy;
         assertTrue(graph.getRefDiffs().contains(new RefDiff(s.d, s.a, 2, s.b, 1)));
     }
 
@@ -330,6 +367,349 @@ public class GraphTest {
         assertEquals(0, graph.node(s.d).getParents().size());
     }
 
+    @Test public void compress()
+            throws Exception {
+        /*
+         * Nightly tags T1..T5, and branch B, both based on M:
+         *
+         *  T1  T2  T3  T4  T5  M   O1  O2  O3
+         * o---o---o---o---o---o---o---o---o
+         *                    /
+         *                   o B
+         */
+        Graph.Node[] t = new Graph.Node[5];
+        for (int n = 0; n < t.length; n++) {
+            t[n] = new Graph.Node(Util.newId());
+        }
+        Graph.Node m = new Graph.Node(Util.newId());
+        Graph.Node b = new Graph.Node(Util.newId());
+        Graph.Node[] o = new Graph.Node[3];
+        for (int n = 0; n < o.length; n++) {
+            o[n] = new Graph.Node(Util.newId());
+        }
+        for (int n = 1; n < t.length; n++) {
+            t[n - 1].link(t[n]);
+        }
+        t[4].link(m);
+        b.link(m);
+        m.link(o[0]);
+        o[0].link(o[1]);
+        o[1].link(o[2]);
+        NodeSet roots = new NodeSet();
+        roots.add(t[0]);
+        roots.add(b);
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>()).freeze();
+
+        Graph compressed = graph.compress(3, Collections.<ObjectId>emptySet());
+        assertTrue(compressed.isConsistent());
+        assertEquals(3, compressed.getNodes().size());
+        assertEquals(2, compressed.getRoots().size());
+        Graph.RunNode tags = (Graph.RunNode) compressed.node(t[0]);
+        Graph.RunNode base = (Graph.RunNode) compressed.node(m);
+        assertEquals(Arrays.<ObjectId>asList(t), tags.getIds());
+        assertEquals(Arrays.<ObjectId>asList(m, o[0], o[1], o[2]), base.getIds());
+        assertEquals(o[2], base.getLast());
+        assertEquals(Collections.singleton(base), tags.getParents());
+        assertEquals(Collections.singleton(base), compressed.node(b).getParents());
+        assertFalse(compressed.node(b) instanceof Graph.RunNode);
+        assertFalse(compressed.contains(t[1]));
+        // The source graph is intact.
+        assertEquals(10, graph.getNodes().size());
+        assertEquals(Collections.singleton(t[1]), t[0].getParents());
+
+        // Runs are flattened when compressed again, copies keep them.
+        assertEquals(3, compressed.compress(2, Collections.<ObjectId>emptySet()).getNodes().size());
+        assertTrue(compressed.copy().node(m) instanceof Graph.RunNode);
+
+        compressed = graph.compress(3, Collections.singleton(t[2]));
+        assertEquals(7, compressed.getNodes().size());
+        assertTrue(compressed.node(m) instanceof Graph.RunNode);
+        assertFalse(compressed.node(t[0]) instanceof Graph.RunNode);
+
+        // Short runs are not collapsed.
+        assertEquals(10, graph.compress(6, Collections.<ObjectId>emptySet()).getNodes().size());
+    }
+
+    @Test public void mergeBasesAsPropagated()
+            throws Exception {
+        // Random lines of commits, with merges and forks every now and then.
+        Random random = new Random(7);
+        Graph.Node[] nodes = new Graph.Node[400];
+        for (int n = 0; n < nodes.length; n++) {
+            nodes[n] = new Graph.Node(Util.newId());
+        }
+        boolean[] linked = new boolean[nodes.length];
+        for (int n = 0; n < nodes.length - 1; n++) {
+            if (random.nextInt(8) != 0) {
+                nodes[n].link(nodes[n + 1]);
+                linked[n + 1] = true;
+            }
+            if (random.nextInt(4) == 0) {
+                int parent = n + 1 + random.nextInt(Math.min(50, nodes.length - n - 1));
+                nodes[n].link(nodes[parent]);
+                linked[parent] = true;
+            }
+        }
+        NodeSet roots = new NodeSet();
+        for (int n = 0; n < nodes.length; n++) {
+            if (!linked[n]) {
+                roots.add(nodes[n]);
+            }
+        }
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>()).freeze();
+
+        // Histories of A and B meet at C, and again at F through D and E,
+        // so F is a merge base, though not the best common ancestor.
+        Graph.Node a = new Graph.Node(Util.newId());
+        Graph.Node b = new Graph.Node(Util.newId());
+        Graph.Node c = new Graph.Node(Util.newId());
+        Graph.Node d = new Graph.Node(Util.newId());
+        Graph.Node e = new Graph.Node(Util.newId());
+        Graph.Node f = new Graph.Node(Util.newId());
+        a.link(d);
+        d.link(c);
+        b.link(e);
+        e.link(c);
+        d.link(f);
+        e.link(f);
+        c.link(f);
+        NodeSet tips = new NodeSet();
+        tips.add(a);
+        tips.add(b);
+        Graph diamond = new Graph(RefSet.EMPTY, tips, new HashSet<RefDiff>()).freeze();
+        HashSet<Graph.Node> bases = new HashSet<>();
+        diamond.findMergeBases(a, b, bases);
+        assertEquals(new HashSet<>(Arrays.asList(c, f)), bases);
+        assertEquals(Arrays.asList(c), diamond.commonAncestors(a, b));
+
+        for (int i = 0; i < 200; i++) {
+            HashSet<Graph.Node> heads = new HashSet<>();
+            int count = 2 + random.nextInt(4);
+            while (heads.size() < count) {
+                heads.add(nodes[random.nextInt(nodes.length)]);
+            }
+            HashSet<Graph.Node> found = new HashSet<>();
+            graph.findMergeBases(heads, found);
+            assertEquals(propagate(graph, heads), found);
+            if (count == 2) {
+                Graph.Node[] pair = heads.toArray(new Graph.Node[2]);
+                found.clear();
+                graph.findMergeBases(pair[0], pair[1], found);
+                assertEquals(propagate(graph, heads), found);
+                // Best common ancestors are merge bases, but not every merge base is the best.
+                assertTrue(found.containsAll(graph.commonAncestors(pair[0], pair[1])));
+            }
+        }
+    }
+
+    /** Find merge bases by pushing sets of heads down to parents, in topological order. */
+    private static Set<Graph.Node> propagate(Graph graph, Set<Graph.Node> heads) {
+        HashMap<Graph.Node, HashSet<Graph.Node>> reached = new HashMap<>();
+        for (Graph.Node head : heads) {
+            reached.put(head, new HashSet<>(Collections.singleton(head)));
+        }
+        HashSet<Graph.Node> mergeBases = new HashSet<>();
+        for (Graph.Node node : graph.ordinals()) {
+            HashSet<Graph.Node> mine = reached.remove(node);
+            if (mine == null) {
+                continue;
+            }
+            for (Graph.Node parent : node.getParents()) {
+                HashSet<Graph.Node> theirs = reached.get(parent);
+                if (theirs == null) {
+                    reached.put(parent, new HashSet<>(mine));
+                }
+                else {
+                    if (!theirs.containsAll(mine) && !mine.containsAll(theirs)) {
+                        mergeBases.add(parent);
+                    }
+                    theirs.addAll(mine);
+                }
+            }
+        }
+        return mergeBases;
+    }
+
+    @Test public void concurrentRewrites()
+            throws Exception {
+        // Random lines of commits, with a merge every now and then.
+        Random random = new Random(1);
+        Graph.Node[] nodes = new Graph.Node[2000];
+        for (int n = 0; n < nodes.length; n++) {
+            nodes[n] = new Graph.Node(Util.newId());
+        }
+        boolean[] linked = new boolean[nodes.length];
+        for (int n = 0; n < nodes.length - 1; n++) {
+            if (random.nextInt(20) != 0) {
+                nodes[n].link(nodes[n + 1]);
+                linked[n + 1] = true;
+            }
+            if (random.nextInt(10) == 0) {
+                int parent = n + 1 + random.nextInt(nodes.length - n - 1);
+                nodes[n].link(nodes[parent]);
+                linked[parent] = true;
+            }
+        }
+        NodeSet roots = new NodeSet();
+        for (int n = 0; n < nodes.length; n++) {
+            if (!linked[n]) {
+                roots.add(nodes[n]);
+            }
+        }
+        final Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>()).freeze();
+        final Set<Graph.Node> heads = new HashSet<>();
+        for (int n = 0; n < nodes.length; n += 100) {
+            heads.add(nodes[n]);
+        }
+        final String compressed = shape(graph.compress(3, Collections.<ObjectId>emptySet()));
+        final HashSet<Graph.Node> mergeBases = new HashSet<>();
+        graph.findMergeBases(heads, mergeBases);
+
+        // The shared frozen graph is rewritten by many threads at once.
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (int n = 0; n < 100; n++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() {
+                        assertEquals(compressed, shape(graph.compress(3, Collections.<ObjectId>emptySet())));
+                        HashSet<Graph.Node> found = new HashSet<>();
+                        graph.findMergeBases(heads, found);
+                        assertEquals(mergeBases, found);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void coarsen()
+            throws Exception {
+        /**
+         * Creates the following commit graph:
+         *
+         * <pre>
+         * nightly-6     nightly-1
+         * o---o---o---o---o
+         *                  \
+         * HEAD,master,m2    \ r
+         * o-------o---------o
+         *        / m1
+         *       o topic,t
+         *
+         * o old-1
+         * </pre>
+         */
+        class Setup
+                implements RepositorySetup {
+            RevCommit r, m1, m2, t, o;
+            RevCommit[] n = new RevCommit[6];
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                r = util.commit().message("r").create();
+                m1 = util.commit().message("m1").parent(r).create();
+                m2 = util.commit().message("m2").parent(m1).create();
+                t = util.commit().message("t").parent(m1).create();
+                RevCommit parent = r;
+                for (int i = 0; i < n.length; i++) {
+                    parent = n[i] = util.commit().message("n" + i).parent(parent).create();
+                    util.update(R_TAGS + "nightly-" + (i + 1), n[i]);
+                }
+                o = util.commit().message("o").create();
+                util.update(HEAD, m2);
+                util.update(R_HEADS + "topic", t);
+                util.update(R_TAGS + "old-1", o);
+            }
+        }
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        Graph graph = graph(db.newObjectReader(), refs);
+        assertEquals(11, graph.getNodes().size());
+        assertSame(graph, graph.coarsen(11));
+
+        Graph coarse = graph.coarsen(5);
+        assertEquals(5, coarse.getNodes().size());
+        assertTrue(coarse.isFrozen());
+        assertTrue(coarse.isConsistent());
+        // Every partition and every branch namespace is kept,
+        // and the nightly tags take no more than their share.
+        assertTrue(coarse.contains(s.o));
+        assertTrue(coarse.contains(s.m2));
+        assertTrue(coarse.contains(s.t));
+        int nightly = 0;
+        for (RevCommit c : s.n) {
+            if (coarse.contains(c)) {
+                nightly++;
+            }
+        }
+        assertTrue(nightly <= 2);
+        // Ancestry of the kept nodes is preserved.
+        for (Graph.Node a : coarse.getNodes()) {
+            for (Graph.Node b : coarse.getNodes()) {
+                assertEquals(graph.isAncestor(graph.node(a), graph.node(b)), coarse.isAncestor(a, b));
+            }
+        }
+
+        List<Graph> levels = graph.hierarchy(2);
+        assertSame(graph, levels.get(0));
+        for (int i = 1; i < levels.size(); i++) {
+            assertTrue(levels.get(i).getNodes().size() < levels.get(i - 1).getNodes().size());
+        }
+        Graph last = levels.get(levels.size() - 1);
+        assertEquals(2, last.getNodes().size());
+        assertTrue(last.contains(s.o));
+
+        assertEquals("refs/tags/nightly-", Coarsener.namespace("refs/tags/nightly-20200101"));
+        assertEquals("refs/tags/v", Coarsener.namespace("refs/tags/v1.2"));
+        assertEquals("refs/heads/master", Coarsener.namespace("refs/heads/master"));
+    }
+
+    @Test public void coarsenByRecency()
+            throws Exception {
+        /*
+         * Four single commit partitions, tagged in an order other than
+         * their commit time order, which is c, a, d, b.
+         */
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b, c, d;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                a = util.commit().message("a").create();
+                util.tick(-10000);
+                b = util.commit().message("b").create();
+                util.tick(20000);
+                c = util.commit().message("c").create();
+                util.tick(-15000);
+                d = util.commit().message("d").create();
+                util.update(R_TAGS + "a", a);
+                util.update(R_TAGS + "b", b);
+                util.update(R_TAGS + "c", c);
+                util.update(R_TAGS + "d", d);
+            }
+        }
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        Graph graph = new CommitList(db.newObjectReader(), RefSet.from(db)).getGraph();
+        assertTrue(graph.node(s.c).getCommitTime() > graph.node(s.a).getCommitTime());
+        assertSetsEquals(set(s.c), graph.coarsen(1).getNodes());
+        assertSetsEquals(set(s.c, s.a), graph.coarsen(2).getNodes());
+        assertSetsEquals(set(s.c, s.a, s.d), graph.coarsen(3).getNodes());
+    }
+
     @Test public void refDiff1()
             throws Exception {
         /**
@@ -463,6 +843,19 @@ public class GraphTest {
         assertTrue(graph.getRefDiffs().contains(new RefDiff(s.d, s.b, 1, s.c, 1)));
     }
 
+    /** @return Text of node ids with their parent ids, in id order. */
+    static String shape(Graph graph) {
+        TreeMap<String, TreeSet<String>> shape = new TreeMap<>();
+        for (Graph.Node node : graph) {
+            TreeSet<String> parents = new TreeSet<>();
+            for (Graph.Node parent : node.getParents()) {
+                parents.add(parent.name());
+            }
+            shape.put(node.name(), parents);
+        }
+        return shape.toString();
+    }
+
     static Graph graph(ObjectReader reader, RefSet refs)
             throws IOException {
         return new CommitList(reader, refs).getGraph().copy();
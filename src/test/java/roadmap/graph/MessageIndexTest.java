@@ -0,0 +1,111 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.ref.Ref;
+import roadmap.ref.RefSet;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageIndexTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     *  B,b    C,c
+     * o------o
+     *         \
+     * HEAD,a   \ d (initial)
+     * o---------o
+     * </pre>
+     */
+    static class Setup
+            implements RepositorySetup {
+        RevCommit a, b, c, d;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            d = util.commit().message("Initial commit").create();
+            c = util.commit().message("Fix ABC-123: memory leak").parent(d).create();
+            b = util.commit().message("Refactor parser").parent(c).create();
+            a = util.commit().message("Implement ABC-124").parent(d).create();
+
+            util.update(HEAD, a);
+            util.update(R_HEADS + "B", b);
+            util.update(R_HEADS + "C", c);
+        }
+    }
+
+    @Test public void tokenize() {
+        ArrayList<String> tokens = new ArrayList<>();
+        MessageIndex.tokenize("Fix ABC-123, see -x- and foo_bar.", tokens);
+        assertEquals(Arrays.asList("fix", "abc-123", "abc", "123", "see",
+                "x", "and", "foo_bar", "foo", "bar"), tokens);
+    }
+
+    @Test public void findRefs()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        CommitList list = new CommitList(db.newObjectReader(), refs);
+        MessageIndex.Builder builder = new MessageIndex.Builder(list);
+        builder.add(db.newObjectReader(), 2);
+        assertFalse(builder.isComplete());
+        try {
+            builder.build();
+            fail();
+        }
+        catch (IllegalStateException ex) {
+            // Expected.
+        }
+        builder.addAll(db.newObjectReader());
+        assertTrue(builder.isComplete());
+        MessageIndex index = builder.build();
+
+        assertArrayEquals(new int[] {list.indexOf(s.c)}, index.postings("ABC-123"));
+        assertEquals(2, index.postings("abc").length);
+        assertEquals(0, index.postings("unknown").length);
+        assertTrue(index.matcher("abc-123").matches(list.map(s.c)));
+        assertFalse(index.matcher("abc-123").matches(list.map(s.a)));
+        assertTrue(index.matcher("memory leak").matches(list.map(s.c)));
+        assertFalse(index.matcher("memory parser").matches(list.map(s.c)));
+
+        HashSet<Ref> found = new HashSet<>();
+        index.findRefs(list, "ABC-123", found);
+        assertEquals(new HashSet<>(refs.selectAll(Arrays.asList(
+                "refs/heads/B", "refs/heads/C"))), found);
+
+        found.clear();
+        index.findRefs(list, "abc", found);
+        assertEquals(new HashSet<>(refs.selectAll(Arrays.asList(
+                "refs/heads/master", "refs/heads/B", "refs/heads/C"))), found);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        MessageIndex copy = MessageIndex.read(new ByteArrayInputStream(out.toByteArray()), list);
+        assertEquals(index.getTokenCount(), copy.getTokenCount());
+        assertArrayEquals(index.postings("abc"), copy.postings("abc"));
+    }
+}
@@ -125,4 +125,30 @@ public class NodeSetTest {
 
         assertTrue(set.isEmpty());
     }
+
+    @Test public void deleted()
+            throws Exception {
+        NodeSet set = new NodeSet();
+        Set<Graph.Node> ref = new HashSet<>();
+        for (int n = 0; n < 100; n++) {
+            Graph.Node node = new Graph.Node(Util.newId());
+            set.add(node);
+            ref.add(node);
+        }
+        // Deleted slots must not fill up the table, nor hide live nodes.
+        for (int n = 0; n < 10000; n++) {
+            Graph.Node node = new Graph.Node(Util.newId());
+            assertTrue(set.add(node));
+            assertTrue(set.remove(node));
+        }
+        for (Graph.Node node : ref) {
+            assertFalse(set.add(node));
+        }
+        assertEquals(ref, set);
+        for (Graph.Node node : ref) {
+            assertTrue(set.remove(node));
+            assertFalse(set.remove(new Graph.Node(Util.newId())));
+        }
+        assertTrue(set.isEmpty());
+    }
 }
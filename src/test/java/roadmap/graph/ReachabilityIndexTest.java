@@ -0,0 +1,184 @@
+package roadmap.graph;
+
+import org.junit.Test;
+import roadmap.ref.RefDiff;
+import roadmap.ref.RefSet;
+import roadmap.util.Util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReachabilityIndexTest {
+    @Test public void reaches()
+            throws Exception {
+        Random random = new Random(42);
+        // Two components, so labels of one do not span chains of the other.
+        Graph.Node[] nodes = new Graph.Node[300];
+        for (int n = 0; n < nodes.length; n++) {
+            nodes[n] = new Graph.Node(Util.newId());
+        }
+        for (int n = 0; n < nodes.length; n++) {
+            int from = n < 200 ? 0 : 200;
+            for (int i = 0; i < 3 && n > from; i++) {
+                int parent = from + random.nextInt(n - from);
+                if (random.nextInt(3) > 0) {
+                    nodes[n].link(nodes[parent]);
+                }
+            }
+        }
+        HashSet<Graph.Node> parents = new HashSet<>();
+        for (Graph.Node node : nodes) {
+            parents.addAll(node.getParents());
+        }
+        NodeSet roots = new NodeSet();
+        for (Graph.Node node : nodes) {
+            if (!parents.contains(node)) {
+                roots.add(node);
+            }
+        }
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>());
+
+        assertReaches(nodes, new ReachabilityIndex(graph));
+        // Components indexed in parallel.
+        assertReaches(nodes, new ReachabilityIndex(graph, 1));
+    }
+
+    @Test public void fan()
+            throws Exception {
+        // A fan of tags T on a line of commits L, every tag is a chain
+        // of its own, so the component gets bit set labels.
+        Graph.Node[] nodes = new Graph.Node[110];
+        for (int n = 0; n < nodes.length; n++) {
+            nodes[n] = new Graph.Node(Util.newId());
+        }
+        NodeSet roots = new NodeSet();
+        for (int n = 0; n < 100; n++) {
+            nodes[n].link(nodes[100 + n % 10]);
+            roots.add(nodes[n]);
+        }
+        for (int n = 100; n < 109; n++) {
+            nodes[n].link(nodes[n + 1]);
+        }
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>());
+
+        ReachabilityIndex index = new ReachabilityIndex(graph);
+        assertReaches(nodes, index);
+        assertEquals(Arrays.asList(nodes[105]), index.commonAncestors(nodes[3], nodes[15]));
+    }
+
+    private static void assertReaches(Graph.Node[] nodes, ReachabilityIndex index) {
+        assertEquals(nodes.length, index.size());
+        HashMap<Graph.Node, HashSet<Graph.Node>> ancestors = new HashMap<>();
+        for (Graph.Node from : nodes) {
+            HashSet<Graph.Node> set = new HashSet<>();
+            BreadthFirstIterator it = new BreadthFirstIterator(from);
+            while (it.hasNext()) {
+                set.add(it.next());
+            }
+            ancestors.put(from, set);
+            for (Graph.Node to : nodes) {
+                assertEquals(set.contains(to), index.reaches(from, to));
+            }
+        }
+        assertFalse(index.contains(new Graph.Node(Util.newId())));
+
+        // Best common ancestors are common ancestors without common ancestor children.
+        for (int i = 0; i < nodes.length; i += 3) {
+            for (int j = i; j < nodes.length; j += 7) {
+                HashSet<Graph.Node> common = new HashSet<>(ancestors.get(nodes[i]));
+                common.retainAll(ancestors.get(nodes[j]));
+                HashSet<Graph.Node> best = new HashSet<>();
+                for (Graph.Node node : common) {
+                    if (Collections.disjoint(node.getChildren(), common)) {
+                        best.add(node);
+                    }
+                }
+                assertEquals(best, new HashSet<>(index.commonAncestors(nodes[i], nodes[j])));
+            }
+        }
+    }
+
+    @Test public void beautify()
+            throws Exception {
+        Graph.Node a = new Graph.Node(Util.newId());
+        Graph.Node b = new Graph.Node(Util.newId());
+        Graph.Node c = new Graph.Node(Util.newId());
+        Graph.Node d = new Graph.Node(Util.newId());
+        // A-B-C-D and the shortcuts A-D and A-C.
+        a.link(b);
+        b.link(c);
+        c.link(d);
+        a.link(d);
+        a.link(c);
+        NodeSet roots = new NodeSet();
+        roots.add(a);
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>());
+
+        new Beautifier(graph).beautify();
+        assertEquals(1, a.getParents().size());
+        assertTrue(a.getParents().contains(b));
+        assertEquals(1, d.getChildren().size());
+        assertTrue(graph.isConsistent());
+    }
+
+    @Test public void freeze()
+            throws Exception {
+        Graph.Node a = new Graph.Node(Util.newId());
+        Graph.Node b = new Graph.Node(Util.newId());
+        Graph.Node c = new Graph.Node(Util.newId());
+        Graph.Node d = new Graph.Node(Util.newId());
+        // A-B-D and A-C-D.
+        a.link(b);
+        a.link(c);
+        b.link(d);
+        c.link(d);
+        NodeSet roots = new NodeSet();
+        roots.add(a);
+        Graph graph = new Graph(RefSet.EMPTY, roots, new HashSet<RefDiff>());
+
+        assertTrue(graph.freeze().isFrozen());
+        assertTrue(graph.isConsistent());
+        assertEquals(2, a.getParents().size());
+        assertTrue(a.getParents().contains(c));
+        assertFalse(b.getParents().contains(c));
+        assertEquals(2, d.getChildren().size());
+        assertEquals(2, a.parentCount());
+        assertEquals(0, a.childCount());
+        assertEquals(2, d.childCount());
+        assertTrue(d.getChildren().contains(b));
+        assertFalse(d.getChildren().contains(a));
+        assertTrue(graph.isAncestor(d, a));
+        assertFalse(graph.isAncestor(c, b));
+        assertEquals(Arrays.asList(d), graph.commonAncestors(b, c));
+
+        Graph.Node[] ordinals = graph.ordinals();
+        for (int n = 0; n < ordinals.length; n++) {
+            assertEquals(n, ordinals[n].index);
+            for (Graph.Node parent : ordinals[n].getParents()) {
+                assertTrue(parent.index > n);
+            }
+        }
+
+        try {
+            b.link(c);
+            fail();
+        }
+        catch (IllegalStateException ex) {
+            // Expected.
+        }
+
+        Graph copy = graph.copy();
+        assertFalse(copy.isFrozen());
+        assertEquals(4, copy.getNodes().size());
+        assertTrue(copy.isConsistent());
+        assertTrue(copy.isAncestor(copy.node(d), copy.node(a)));
+    }
+}
@@ -0,0 +1,145 @@
+package roadmap.graph;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.ref.RefDiff;
+import roadmap.ref.RefSet;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RefDiffStoreTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     *       B00   B01       B69
+     *       o     o         o
+     *       |     |         |
+     *       o-----o-- ... --o HEAD
+     *       t00   t01       t69
+     * </pre>
+     *
+     * <p>There are 71 heads and 71 * 70 / 2 = 2485 ref diff pairs.</p>
+     */
+    static class Setup
+            implements RepositorySetup {
+        static final int BRANCHES = 70;
+        final RevCommit[] branches = new RevCommit[BRANCHES];
+        RevCommit trunk;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            trunk = null;
+            for (int n = 0; n < BRANCHES; n++) {
+                TestRepository<Repository>.CommitBuilder cb = util.commit().message("t" + n);
+                trunk = trunk == null ? cb.create() : cb.parent(trunk).create();
+                branches[n] = util.commit().message("b" + n).parent(trunk).create();
+                util.update(R_HEADS + String.format("B%02d", n), branches[n]);
+            }
+            util.update(HEAD, trunk);
+        }
+    }
+
+    @Test public void all()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        RefSet refs = RefSet.from(db);
+
+        Set<RefDiff> diffs = refDiffs(db, refs, RefDiffPolicy.all());
+        assertEquals(71 * 70 / 2, diffs.size());
+        assertEquals(71 * 70 / 2, new HashSet<>(diffs).size());
+    }
+
+    @Test public void spill()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        RefSet refs = RefSet.from(db);
+
+        Set<RefDiff> expected = new HashSet<>(refDiffs(db, refs, RefDiffPolicy.all()));
+        int files = spillFiles();
+        Set<RefDiff> spilled = refDiffs(db, refs, RefDiffPolicy.all().spillThreshold(1));
+        assertEquals(expected.size(), spilled.size());
+        assertEquals(expected, new HashSet<>(spilled));
+        // Temporary file is gone once the list is built.
+        assertEquals(files, spillFiles());
+    }
+
+    @Test public void recent()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefSet refs = RefSet.from(db);
+
+        Set<RefDiff> diffs = refDiffs(db, refs, RefDiffPolicy.recent(10));
+        assertEquals(10 * 9 / 2, diffs.size());
+        // The most recent tips are among the last ones.
+        HashSet<ObjectId> recent = new HashSet<>();
+        recent.add(s.trunk);
+        for (int n = Setup.BRANCHES - 10; n < Setup.BRANCHES; n++) {
+            recent.add(s.branches[n]);
+        }
+        for (RefDiff diff : diffs) {
+            assertTrue(recent.contains(diff.getA()));
+            assertTrue(recent.contains(diff.getB()));
+        }
+    }
+
+    @Test public void topPerRef()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        RefSet refs = RefSet.from(db);
+
+        Set<RefDiff> all = new HashSet<>(refDiffs(db, refs, RefDiffPolicy.all()));
+        Set<RefDiff> diffs = refDiffs(db, refs, RefDiffPolicy.topPerRef(3));
+        assertTrue(diffs.size() <= 71 * 3);
+        HashMap<ObjectId, Integer> counts = new HashMap<>();
+        for (RefDiff diff : diffs) {
+            assertTrue(all.contains(diff));
+            count(counts, diff.getA());
+            count(counts, diff.getB());
+        }
+        assertEquals(71, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count >= 3);
+        }
+
+        assertEquals(0, refDiffs(db, refs, RefDiffPolicy.topPerRef(0)).size());
+    }
+
+    private static Set<RefDiff> refDiffs(Repository db, RefSet refs, RefDiffPolicy policy)
+            throws Exception {
+        return new CommitList(db.newObjectReader(), refs, policy).getGraph().getRefDiffs();
+    }
+
+    private static void count(HashMap<ObjectId, Integer> counts, ObjectId id) {
+        Integer count = counts.get(id);
+        counts.put(id, count == null ? 1 : count + 1);
+    }
+
+    private static int spillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.startsWith("refdiff") && name.endsWith(".tmp");
+            }
+        });
+        return names != null ? names.length : 0;
+    }
+}
@@ -0,0 +1,164 @@
+package roadmap.plot;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.graph.CommitList;
+import roadmap.graph.Graph;
+import roadmap.ref.RefSet;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_TAGS;
+import static org.junit.Assert.assertEquals;
+
+public class LayoutTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    @Test public void partitions()
+            throws Exception {
+        /*
+         * Creates the following commit graph, where y merges histories of
+         * two root commits:
+         *
+         * <pre>
+         *    x
+         * o--o
+         * t1  \
+         *      o y
+         * o---/
+         * t2
+         *
+         * o--o--o
+         * u1    u2
+         * </pre>
+         */
+        class Setup
+                implements RepositorySetup {
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                RevCommit t1 = util.commit().message("t1").create();
+                RevCommit t2 = util.commit().message("t2").create();
+                RevCommit x = util.commit().message("x").parent(t1).create();
+                RevCommit y = util.commit().message("y").parent(t2).parent(t1).create();
+                RevCommit u1 = util.commit().message("u1").create();
+                RevCommit u2 = util.commit().message("u2").parent(util.commit().parent(u1).create()).create();
+                util.update(R_TAGS + "t1", t1);
+                util.update(R_TAGS + "t2", t2);
+                util.update(R_HEADS + "x", x);
+                util.update(R_HEADS + "y", y);
+                util.update(R_TAGS + "u1", u1);
+                util.update(R_HEADS + "u2", u2);
+            }
+        }
+
+        Repository db = setup.setupBare(new Setup());
+        Graph graph = new CommitList(db.newObjectReader(), RefSet.from(db)).getGraph();
+        Layout layout = new Layout(graph);
+
+        // Histories sharing commits are laid out together.
+        assertEquals(2, layout.getPartitions().size());
+        for (Layout.Partition partition : layout.getPartitions()) {
+            for (Layout.Vertex vertex : partition) {
+                assertEquals(partition, vertex.getPartition());
+            }
+        }
+        HashMap<String, Integer> positions = positions(layout);
+        assertEquals(graph.getNodes().size(), positions.size());
+
+        // Concurrent layout is the same every time.
+        for (int n = 0; n < 10; n++) {
+            assertEquals(positions, positions(new Layout(graph)));
+        }
+    }
+
+    @Test public void parallel()
+            throws Exception {
+        // Random history with plenty of merges, every commit has a ref.
+        class Setup
+                implements RepositorySetup {
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                Random random = new Random(1);
+                RevCommit[] commits = new RevCommit[150];
+                for (int n = 0; n < commits.length; n++) {
+                    TestRepository<Repository>.CommitBuilder commit = util.commit().message("c" + n);
+                    if (n > 0) {
+                        commit.parent(commits[random.nextInt(n)]);
+                        if (n > 1 && random.nextBoolean()) {
+                            commit.parent(commits[random.nextInt(n)]);
+                        }
+                    }
+                    commits[n] = commit.create();
+                    util.update(R_TAGS + "c" + n, commits[n]);
+                }
+            }
+        }
+
+        Repository db = setup.setupBare(new Setup());
+        Graph graph = new CommitList(db.newObjectReader(), RefSet.from(db)).getGraph();
+
+        // Every layer and every stack is split down to single vertexes.
+        assertEquals(positions(new Layout(graph, Layout.DEFAULT_BUDGET, Integer.MAX_VALUE)),
+                positions(new Layout(graph, Layout.DEFAULT_BUDGET, 1)));
+    }
+
+    @Test public void countCrossings() {
+        // a b c
+        //  X  |
+        // d e f
+        assertEquals(1, Layout.countCrossings(new int[]{1, 0, 2}, 3, 3));
+        assertEquals(0, Layout.countCrossings(new int[]{0, 1, 1, 2}, 4, 3));
+        assertEquals(3, Layout.countCrossings(new int[]{2, 1, 0}, 3, 3));
+        assertEquals(0, Layout.countCrossings(new int[0], 0, 0));
+
+        // Same as counting pairs of edges one by one.
+        Random random = new Random(1);
+        for (int round = 0; round < 100; round++) {
+            int lanes = 1 + random.nextInt(20);
+            int size = random.nextInt(50);
+            int[] north = new int[size];
+            int[] ends = new int[size];
+            long[] edges = new long[size];
+            for (int n = 0; n < size; n++) {
+                edges[n] = (long) random.nextInt(20) << 32 | random.nextInt(lanes);
+            }
+            Arrays.sort(edges);
+            for (int n = 0; n < size; n++) {
+                north[n] = (int) (edges[n] >>> 32);
+                ends[n] = (int) edges[n];
+            }
+            long expected = 0;
+            for (int a = 0; a < size; a++) {
+                for (int b = a + 1; b < size; b++) {
+                    if (north[a] < north[b] && ends[a] > ends[b]) {
+                        expected++;
+                    }
+                }
+            }
+            assertEquals(expected, Layout.countCrossings(ends, size, lanes));
+        }
+    }
+
+    /** @return Columns and rows of nodes by id. */
+    private static HashMap<String, Integer> positions(Layout layout) {
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (Layout.Partition partition : layout.getPartitions()) {
+            for (Layout.Vertex vertex : partition) {
+                if (vertex instanceof Layout.Node) {
+                    positions.put(((Layout.Node) vertex).id.name(), vertex.col() * 1000 + vertex.row());
+                }
+            }
+        }
+        return positions;
+    }
+}
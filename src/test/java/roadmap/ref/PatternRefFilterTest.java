@@ -0,0 +1,61 @@
+package roadmap.ref;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PatternRefFilterTest {
+    @Test public void literal() {
+        PatternRefFilter filter = PatternRefFilter.compile("refs/heads/master");
+        assertTrue(filter.accept(ref("refs/heads/master")));
+        assertFalse(filter.accept(ref("refs/heads/master2")));
+        assertFalse(filter.accept(ref("refs/heads/maste")));
+        assertEquals(Arrays.asList("refs/heads/"), filter.getPrefixes());
+    }
+
+    @Test public void glob() {
+        PatternRefFilter filter = PatternRefFilter.compile(
+                "refs/heads/release/*", "refs/tags/v?.*", "refs/remotes/**");
+        assertTrue(filter.accept(ref("refs/heads/release/2.3")));
+        assertFalse(filter.accept(ref("refs/heads/release/2.3/fix")));
+        assertFalse(filter.accept(ref("refs/heads/master")));
+        assertTrue(filter.accept(ref("refs/tags/v1.0")));
+        assertFalse(filter.accept(ref("refs/tags/v10.0")));
+        assertTrue(filter.accept(ref("refs/remotes/origin/feature/x")));
+        assertEquals(Arrays.asList("refs/heads/release/", "refs/remotes/", "refs/tags/"),
+                filter.getPrefixes());
+    }
+
+    @Test public void exclude() {
+        PatternRefFilter filter = PatternRefFilter.compile("refs/tags/*", "!refs/tags/nightly-*");
+        assertTrue(filter.accept(ref("refs/tags/v1.0")));
+        assertFalse(filter.accept(ref("refs/tags/nightly-2016")));
+        assertFalse(filter.accept(ref("refs/heads/master")));
+
+        filter = PatternRefFilter.compile("!refs/tags/**");
+        assertTrue(filter.accept(ref("refs/heads/master")));
+        assertFalse(filter.accept(ref("refs/tags/v1.0")));
+        assertEquals(Arrays.asList(""), filter.getPrefixes());
+    }
+
+    @Test public void regex() {
+        PatternRefFilter filter = PatternRefFilter.compile("re:refs/tags/v\\d+\\.\\d+", "refs/heads/master");
+        assertTrue(filter.accept(ref("refs/tags/v1.10")));
+        assertFalse(filter.accept(ref("refs/tags/v1.10-rc")));
+        assertTrue(filter.accept(ref("refs/heads/master")));
+        assertEquals(Arrays.asList(""), filter.getPrefixes());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void malformed() {
+        PatternRefFilter.compile("re:refs/(");
+    }
+
+    private static Ref ref(String name) {
+        return new Ref(name, ObjectId.zeroId());
+    }
+}
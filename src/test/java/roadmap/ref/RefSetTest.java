@@ -0,0 +1,198 @@
+package roadmap.ref;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_TAGS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RefSetTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     * HEAD,a  X,b (initial)
+     * o------o
+     * </pre>
+     *
+     * <p>Tag <em>T1</em> is annotated tag of commit <em>a</em>, tag <em>T2</em>
+     * is annotated tag of tag <em>T1</em>, and tag <em>T3</em> is annotated tag
+     * of a blob.</p>
+     */
+    static class Setup
+            implements RepositorySetup {
+        final boolean pack;
+        RevCommit a, b;
+
+        Setup(boolean pack) {
+            this.pack = pack;
+        }
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            b = util.commit().message("B").create();
+            a = util.commit().message("A").parent(b).create();
+            RevTag t1 = util.tag("T1", a);
+            RevTag t2 = util.tag("T2", t1);
+            RevBlob blob = util.blob("blob");
+            RevTag t3 = util.tag("T3", blob);
+
+            util.update(HEAD, a);
+            util.update(R_HEADS + "X", b);
+            util.update(R_TAGS + "T1", t1);
+            util.update(R_TAGS + "T2", t2);
+            util.update(R_TAGS + "T3", t3);
+            if (pack) {
+                util.packAndPrune();
+            }
+        }
+    }
+
+    @Test public void loose()
+            throws Exception {
+        verify(new Setup(false));
+    }
+
+    @Test public void packed()
+            throws Exception {
+        verify(new Setup(true));
+    }
+
+    private void verify(Setup s)
+            throws Exception {
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/heads/master", s.a),
+                new Ref("refs/heads/X", s.b),
+                new Ref("refs/tags/T1", s.a),
+                new Ref("refs/tags/T2", s.a))), new HashSet<>(refs.all()));
+        assertEquals(new Ref("refs/heads/master", s.a), refs.defaultBranch());
+
+        refs = RefSet.from(db, RefFilter.TAGS);
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/tags/T1", s.a),
+                new Ref("refs/tags/T2", s.a))), new HashSet<>(refs.all()));
+        assertEquals("refs/heads/master", refs.defaultBranch().getName());
+
+        refs = RefSet.from(db, PatternRefFilter.compile("refs/tags/T1", "refs/heads/*"));
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/heads/master", s.a),
+                new Ref("refs/heads/X", s.b),
+                new Ref("refs/tags/T1", s.a))), new HashSet<>(refs.all()));
+        assertEquals(new Ref("refs/heads/master", s.a), refs.defaultBranch());
+    }
+
+    @Test public void manyRefs()
+            throws Exception {
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                b = util.commit().message("B").create();
+                a = util.commit().message("A").parent(b).create();
+                util.update(HEAD, a);
+                for (int n = 0; n < 100; n++) {
+                    util.update(String.format("refs/heads/feature/%03d", n), n % 2 == 0 ? a : b);
+                }
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        RefSet refs = RefSet.from(db);
+        assertEquals(101, refs.all().size());
+        String prev = "";
+        for (Ref ref : refs) {
+            assertTrue(prev.compareTo(ref.getName()) < 0);
+            assertEquals(ref, refs.byName(ref.getName()));
+            assertTrue(refs.all().contains(ref));
+            prev = ref.getName();
+        }
+        assertEquals(new Ref("refs/heads/feature/042", s.a), refs.byName("refs/heads/feature/042"));
+        assertEquals(new Ref("refs/heads/feature/099", s.b), refs.byName("refs/heads/feature/099"));
+        assertFalse(refs.all().contains(new Ref("refs/heads/feature/042", s.b)));
+        assertFalse(refs.all().contains(new Ref("refs/heads/feature/100", s.a)));
+        assertEquals(51, refs.byId(s.a).size());
+        assertEquals(50, refs.byId(s.b).size());
+        assertSame(refs.byId(s.a), refs.byId(s.a.copy()));
+        assertSame(refs.byId(s.b), refs.byId(s.b.copy()));
+        assertTrue(refs.byId(ObjectId.zeroId()).isEmpty());
+        assertEquals(new HashSet<>(Arrays.<ObjectId>asList(s.a, s.b)), refs.roots());
+        assertEquals(1, refs.selectAll(Arrays.asList("refs/heads/feature/007", "refs/heads/x")).size());
+        assertEquals(refs, RefSet.from(db));
+    }
+
+    @Test public void mostRecent()
+            throws Exception {
+        class Setup
+                implements RepositorySetup {
+            RevCommit a, b, c;
+
+            @Override public void play(Repository repository)
+                    throws Exception {
+                TestRepository<Repository> util = new TestRepository<>(repository);
+                c = util.commit().message("C").create();
+                b = util.commit().message("B").parent(c).create();
+                a = util.commit().message("A").parent(b).create();
+                util.update(HEAD, c);
+                util.update(R_HEADS + "A", a);
+                util.update(R_HEADS + "A2", a);
+                util.update(R_HEADS + "B", b);
+                a = util.parseBody(a);
+                b = util.parseBody(b);
+            }
+        }
+
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        RefSet refs = RefSet.from(db);
+
+        RefSet recent = refs.mostRecent(db.newObjectReader(), 1);
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/heads/master", s.c),
+                new Ref("refs/heads/A", s.a),
+                new Ref("refs/heads/A2", s.a))), new HashSet<>(recent.all()));
+        assertEquals(refs.defaultBranch(), recent.defaultBranch());
+
+        recent = refs.newerThan(db.newObjectReader(), s.b.getCommitTime());
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/heads/master", s.c),
+                new Ref("refs/heads/A", s.a),
+                new Ref("refs/heads/A2", s.a),
+                new Ref("refs/heads/B", s.b))), new HashSet<>(recent.all()));
+
+        recent = refs.newerThan(db.newObjectReader(), s.a.getCommitTime() + 1);
+        assertEquals(new HashSet<>(Arrays.asList(
+                new Ref("refs/heads/master", s.c))), new HashSet<>(recent.all()));
+    }
+
+    @Test(expected = RefNotFoundException.class) public void refNotFound()
+            throws Exception {
+        RefSet.from(setup.setupBare(new Setup(false))).byName("refs/heads/feature");
+    }
+}
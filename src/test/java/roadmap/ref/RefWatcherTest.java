@@ -0,0 +1,86 @@
+package roadmap.ref;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_TAGS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RefWatcherTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    static class Setup
+            implements RepositorySetup {
+        RevCommit a, b;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            a = util.commit().message("a").create();
+            b = util.commit().message("b").parent(a).create();
+            util.update(HEAD, a);
+        }
+    }
+
+    @Test public void watch()
+            throws Exception {
+        Setup s = new Setup();
+        final Repository db = setup.setupBare(s);
+        final BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<>();
+        try (RefWatcher watcher = new RefWatcher(new RefWatcher.Listener() {
+            @Override public void refsChanged(Repository repository, Set<String> changed) {
+                assertSame(db, repository);
+                changes.add(changed);
+            }
+        }, 200, TimeUnit.MILLISECONDS)) {
+            watcher.watch(db);
+
+            // A burst of updates is reported once.
+            TestRepository<Repository> util = new TestRepository<>(db);
+            util.update(R_HEADS + "master", s.b);
+            util.update(R_HEADS + "feature/x", s.a);
+            util.update(R_TAGS + "v1", s.a);
+            Set<String> changed = new HashSet<>();
+            while (changed.size() < 3) {
+                Set<String> next = changes.poll(10, TimeUnit.SECONDS);
+                assertTrue(next != null);
+                changed.addAll(next);
+            }
+            assertEquals(new HashSet<>(Arrays.asList(
+                    R_HEADS + "master", R_HEADS + "feature/x", R_TAGS + "v1")), changed);
+
+            RefUpdate ru = db.updateRef(R_TAGS + "v1");
+            ru.setForceUpdate(true);
+            ru.delete();
+            assertEquals(Collections.singleton(R_TAGS + "v1"), changes.poll(10, TimeUnit.SECONDS));
+            assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test public void affects() {
+        Set<String> tags = Collections.singleton(R_TAGS + "v1");
+        assertTrue(RefWatcher.affects(RefFilter.TAGS, tags));
+        assertFalse(RefWatcher.affects(RefFilter.LOCALS, tags));
+        assertTrue(RefWatcher.affects(RefFilter.NONE, Collections.singleton(HEAD)));
+    }
+}
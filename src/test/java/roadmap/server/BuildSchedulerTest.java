@@ -0,0 +1,250 @@
+package roadmap.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static roadmap.server.BuildScheduler.Priority.BATCH;
+import static roadmap.server.BuildScheduler.Priority.INTERACTIVE;
+
+public class BuildSchedulerTest {
+    private BuildScheduler scheduler;
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    @After public void tearDown() {
+        gate.countDown();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /** @return Build which logs its key and waits for the gate to open. */
+    private Callable<String> task(final String key) {
+        return new Callable<String>() {
+            @Override public String call()
+                    throws Exception {
+                log.add(key);
+                gate.await();
+                return key;
+            }
+        };
+    }
+
+    @Test public void coalesce()
+            throws Exception {
+        scheduler = new BuildScheduler(2, 2);
+        Future<String> first = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        Future<String> second = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        gate.countDown();
+        assertEquals("a", first.get(5, TimeUnit.SECONDS));
+        assertEquals("a", second.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a"), log);
+
+        // Finished builds are not reused.
+        scheduler.submit("a", "x", INTERACTIVE, task("a")).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a", "a"), log);
+    }
+
+    @Test public void priority()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        Future<String> a = scheduler.submit("a", "x", BATCH, task("a"));
+        Future<String> b = scheduler.submit("b", "y", BATCH, task("b"));
+        Future<String> c = scheduler.submit("c", "z", INTERACTIVE, task("c"));
+        Future<String> d = scheduler.submit("d", "w", BATCH, task("d"));
+        // Joining a queued build with higher priority promotes it.
+        Future<String> e = scheduler.submit("d", "w", INTERACTIVE, task("d"));
+        gate.countDown();
+        for (Future<String> future : Arrays.asList(a, b, c, d, e)) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("a", "c", "d", "b"), log);
+    }
+
+    @Test public void perRepository()
+            throws Exception {
+        scheduler = new BuildScheduler(2, 1);
+        Future<String> a = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        Future<String> b = scheduler.submit("b", "x", INTERACTIVE, new Callable<String>() {
+            @Override public String call() {
+                log.add("b");
+                return "b";
+            }
+        });
+        Future<String> c = scheduler.submit("c", "y", INTERACTIVE, new Callable<String>() {
+            @Override public String call() {
+                log.add("c");
+                return "c";
+            }
+        });
+        // The other repository is not blocked by the busy one.
+        assertEquals("c", c.get(5, TimeUnit.SECONDS));
+        assertFalse(b.isDone());
+        gate.countDown();
+        assertEquals("a", a.get(5, TimeUnit.SECONDS));
+        assertEquals("b", b.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "c", "b"), log);
+    }
+
+    @Test public void cancelQueued()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        Future<String> a = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        Future<String> first = scheduler.submit("b", "y", INTERACTIVE, task("b"));
+        Future<String> second = scheduler.submit("b", "y", INTERACTIVE, task("b"));
+
+        // Somebody is still waiting.
+        assertTrue(first.cancel(true));
+        assertFalse(second.isDone());
+
+        // Nobody is waiting anymore.
+        assertTrue(second.cancel(true));
+        assertTrue(second.isCancelled());
+        try {
+            second.get();
+            fail();
+        }
+        catch (CancellationException ex) {
+            // Expected.
+        }
+
+        // The cancelled build is dropped, the new one starts afresh.
+        Future<String> third = scheduler.submit("b", "y", INTERACTIVE, task("b"));
+        gate.countDown();
+        assertEquals("a", a.get(5, TimeUnit.SECONDS));
+        assertEquals("b", third.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b"), log);
+    }
+
+    @Test public void cancelRunning()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<String> task = new Callable<String>() {
+            @Override public String call()
+                    throws Exception {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    gate.await();
+                }
+                catch (InterruptedException ex) {
+                    interrupted.countDown();
+                    throw ex;
+                }
+                return "a";
+            }
+        };
+        Future<String> future = scheduler.submit("a", "x", INTERACTIVE, task);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // The worker is free for the next build.
+        assertEquals("b", scheduler.submit("b", "x", INTERACTIVE, new Callable<String>() {
+            @Override public String call() {
+                return "b";
+            }
+        }).get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test public void cancelWhileFinishing()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        for (int n = 0; n < 1000; n++) {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch go = new CountDownLatch(1);
+            final AtomicReference<Thread> worker = new AtomicReference<>();
+            Future<String> future = scheduler.submit("a", "x", INTERACTIVE, new Callable<String>() {
+                @Override public String call()
+                        throws Exception {
+                    worker.set(Thread.currentThread());
+                    started.countDown();
+                    go.await();
+                    return "a";
+                }
+            });
+            // Hold the worker at the end of the build, then cancel as soon
+            // as it lets go of the scheduler, while it is finishing.
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            synchronized (scheduler) {
+                go.countDown();
+                while (worker.get().getState() != Thread.State.BLOCKED) {
+                    Thread.yield();
+                }
+            }
+            if (future.cancel(true)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail();
+                }
+                catch (CancellationException ex) {
+                    // Expected.
+                }
+            }
+            else {
+                assertEquals("a", future.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test public void abandon()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<String> future = scheduler.submit("a", "x", INTERACTIVE, new Callable<String>() {
+            @Override public String call()
+                    throws Exception {
+                try {
+                    gate.await();
+                }
+                catch (InterruptedException ex) {
+                    interrupted.countDown();
+                    throw ex;
+                }
+                return "a";
+            }
+        });
+        scheduler.abandon(future, 50, TimeUnit.MILLISECONDS);
+        assertFalse(future.isDone());
+
+        // Nobody came back.
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+    }
+
+    @Test public void abandonAndRetry()
+            throws Exception {
+        scheduler = new BuildScheduler(1, 1);
+        Future<String> first = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        scheduler.abandon(first, 50, TimeUnit.MILLISECONDS);
+
+        // The retry joins the build within the grace period.
+        Future<String> retry = scheduler.submit("a", "x", INTERACTIVE, task("a"));
+        Thread.sleep(200);
+        assertTrue(first.isCancelled());
+        assertFalse(retry.isDone());
+        gate.countDown();
+        assertEquals("a", retry.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a"), log);
+    }
+}
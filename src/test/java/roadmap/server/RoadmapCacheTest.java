@@ -0,0 +1,140 @@
+package roadmap.server;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import roadmap.graph.Horizon;
+import roadmap.ref.RefFilter;
+import roadmap.test.RepositorySetup;
+import roadmap.test.RepositorySetupRule;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.eclipse.jgit.lib.Constants.HEAD;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_TAGS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RoadmapCacheTest {
+    @Rule public final RepositorySetupRule setup = new RepositorySetupRule();
+
+    /**
+     * Creates the following commit graph:
+     *
+     * <pre>
+     *    b
+     *    o topic
+     *    |
+     * o--o HEAD
+     * r  a
+     * </pre>
+     */
+    static class Setup
+            implements RepositorySetup {
+        RevCommit r, a, b;
+
+        @Override public void play(Repository repository)
+                throws Exception {
+            TestRepository<Repository> util = new TestRepository<>(repository);
+            r = util.commit().message("r").create();
+            a = util.commit().message("a").parent(r).create();
+            b = util.commit().message("b").parent(a).create();
+            util.update(HEAD, a);
+            util.update(R_HEADS + "topic", b);
+        }
+    }
+
+    @Test public void fingerprint()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+
+        ObjectId fingerprint = Roadmap.fingerprint(db, RefFilter.ANY);
+        assertEquals(fingerprint, Roadmap.fingerprint(db, RefFilter.ANY));
+
+        new TestRepository<>(db).update(R_HEADS + "topic", s.a);
+        assertFalse(fingerprint.equals(Roadmap.fingerprint(db, RefFilter.ANY)));
+
+        // Changes of refs which are not shown do not matter.
+        fingerprint = Roadmap.fingerprint(db, RefFilter.LOCALS);
+        new TestRepository<>(db).update(R_TAGS + "v1", s.b);
+        assertEquals(fingerprint, Roadmap.fingerprint(db, RefFilter.LOCALS));
+    }
+
+    @Test public void cache()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        ObjectId fingerprint = Roadmap.fingerprint(db, RefFilter.ANY);
+        Roadmap roadmap = Roadmap.build(db, fingerprint, RefFilter.ANY, 0, Horizon.NONE, 0, 0);
+
+        RoadmapCache cache = new RoadmapCache(1 << 20);
+        assertNull(cache.get("repo", fingerprint));
+        cache.put("repo", roadmap);
+        assertSame(roadmap, cache.get("repo", fingerprint));
+        assertNull(cache.get("repo", ObjectId.zeroId()));
+        assertNull(cache.get("other", fingerprint));
+    }
+
+    @Test public void evict()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        ObjectId fingerprint = Roadmap.fingerprint(db, RefFilter.ANY);
+        Roadmap roadmap = Roadmap.build(db, fingerprint, RefFilter.ANY, 0, Horizon.NONE, 0, 0);
+
+        // Fits two roadmaps, but not three.
+        RoadmapCache cache = new RoadmapCache(roadmap.getFootprint() * 2);
+        cache.put("a", Roadmap.build(db, fingerprint, RefFilter.ANY, 0, Horizon.NONE, 0, 0));
+        cache.put("b", Roadmap.build(db, fingerprint, RefFilter.ANY, 0, Horizon.NONE, 0, 0));
+        // Make the first one popular.
+        cache.get("a", fingerprint);
+        cache.get("a", fingerprint);
+        cache.put("c", Roadmap.build(db, fingerprint, RefFilter.ANY, 0, Horizon.NONE, 0, 0));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a", fingerprint));
+        assertNull(cache.get("b", fingerprint));
+        assertNotNull(cache.get("c", fingerprint));
+    }
+
+    @Test public void render()
+            throws Exception {
+        Repository db = setup.setupBare(new Setup());
+        Roadmap roadmap = Roadmap.build(db, Roadmap.fingerprint(db, RefFilter.ANY), RefFilter.ANY, 0, Horizon.NONE, 0, 0);
+
+        long footprint = roadmap.getFootprint();
+        String json = new String(roadmap.json(), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"refs/heads/topic\""));
+        assertTrue(json.contains("\"edges\":[["));
+        String svg = new String(roadmap.svg(), StandardCharsets.UTF_8);
+        assertTrue(svg.startsWith("<svg "));
+        assertTrue(svg.contains(">topic</text>"));
+        assertTrue(roadmap.png().length > 0);
+        assertTrue(roadmap.getFootprint() > footprint);
+    }
+
+    @Test public void compressRuns()
+            throws Exception {
+        Setup s = new Setup();
+        Repository db = setup.setupBare(s);
+        Roadmap roadmap = Roadmap.build(db, Roadmap.fingerprint(db, RefFilter.ANY), RefFilter.ANY, 0, Horizon.NONE, 0, 2);
+
+        String json = new String(roadmap.json(), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"ids\":[\"" + s.b.name() + "\",\"" + s.a.name() + "\"]"));
+        assertTrue(json.contains("\"refs/heads/topic\""));
+        assertTrue(json.contains("\"edges\":[]"));
+        assertSame(roadmap, roadmap.expand(Collections.<ObjectId>emptySet()));
+
+        Roadmap expanded = roadmap.expand(Collections.<ObjectId>singleton(s.a));
+        json = new String(expanded.json(), StandardCharsets.UTF_8);
+        assertFalse(json.contains("\"ids\""));
+        assertTrue(json.contains("\"edges\":[["));
+    }
+}